@@ -411,4 +411,19 @@ public class MailProtocolTestTask extends Task implements Monitor {
     public void debug(String message) {
         log(message, Project.MSG_DEBUG);
     }
+
+    public boolean isNoteEnabled() {
+        return true;
+    }
+
+    public boolean isDebugEnabled() {
+        return true;
+    }
+
+    public boolean isEventEnabled() {
+        return false;
+    }
+
+    public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp) {
+    }
 }
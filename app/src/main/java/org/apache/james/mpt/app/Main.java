@@ -20,6 +20,7 @@
 package org.apache.james.mpt.app;
 
 import java.io.File;
+import java.util.Locale;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,12 +32,17 @@ import org.apache.commons.cli.ParseException;
 
 /**
  * <p>Runs MPT application.</p>
+ * <p>When the first argument is <code>load</code>, the script is replayed as
+ * load by concurrent virtual users rather than run once, for example
+ * <code>mpt load -f script.test -p 143 -c 500 -d 10m</code>.</p>
  * <p>Return values:</p>
  * <table>
  * <tr><td>0</td><td>Success</td></tr>
  * <tr><td>-1</td><td>Illegal Arguments</td></tr>
  * <tr><td>1</td><td>Script not found</td></tr>
- * <tr><td>1</td><td>Port not a number</td></tr>
+ * <tr><td>2</td><td>Port not a number</td></tr>
+ * <tr><td>3</td><td>Illegal load parameter</td></tr>
+ * <tr><td>4</td><td>Illegal pipeline depth</td></tr>
  * </table>
  */
 public class Main {
@@ -44,25 +50,42 @@ public class Main {
     
     private static final int FILE_NOT_FOUND = 1;
     private static final int PORT_NOT_A_NUMBER = 2;
+    private static final int ILLEGAL_LOAD_PARAMETER = 3;
+    private static final int ILLEGAL_PIPELINE_DEPTH = 4;
+    
+    private static final String LOAD_COMMAND = "load";
     
     private static final char FILE_OPTION = 'f';
     private static final char PORT_OPTION = 'p';
     private static final char HOST_OPTION = 'h';
     private static final char SHABANG_OPTION = 's';
     private static final char VERBOSE_OPTION = 'v';
+    private static final char CONCURRENCY_OPTION = 'c';
+    private static final char DURATION_OPTION = 'd';
+    private static final char THREADS_OPTION = 't';
+    private static final char INTERVAL_OPTION = 'i';
+    private static final char PIPELINE_OPTION = 'n';
+    private static final char LITERAL_PLUS_OPTION = 'l';
 
     public static final void main(final String[] args) throws Exception {
-        final Options options = buildOptions();
+        final boolean load = args.length > 0 && LOAD_COMMAND.equals(args[0]);
+        final Options options = load ? buildLoadOptions() : buildOptions();
         
         try {
             
             CommandLineParser parser = new GnuParser();
-            CommandLine cmd = parser.parse(options, args);
-            runCommand(cmd);
+            if (load) {
+                final String[] loadArgs = new String[args.length - 1];
+                System.arraycopy(args, 1, loadArgs, 0, loadArgs.length);
+                runLoad(parser.parse(options, loadArgs));
+            } else {
+                CommandLine cmd = parser.parse(options, args);
+                runCommand(cmd);
+            }
             
         } catch (ParseException e) {
             System.out.println(e.getMessage());
-            new HelpFormatter().printHelp( "mpt", options );
+            new HelpFormatter().printHelp( load ? "mpt load" : "mpt", options );
             System.exit(-1);
         }
         
@@ -72,16 +95,68 @@ public class Main {
         final boolean verbose = Boolean.parseBoolean(cmd.getOptionValue(VERBOSE_OPTION, Boolean.toString(false)));
         final File file = new File(cmd.getOptionValue(FILE_OPTION));
         if (file.exists()) {
+            final int port;
+            try {
+                port = Integer.parseInt(cmd.getOptionValue(PORT_OPTION));    
+            } catch (NumberFormatException e) {
+                System.out.println("Port must be numeric");
+                System.exit(PORT_NOT_A_NUMBER);
+                return;
+            }
+            final int pipelineDepth;
+            try {
+                pipelineDepth = Integer.parseInt(cmd.getOptionValue(PIPELINE_OPTION, "1"));
+                if (pipelineDepth <= 0) {
+                    throw new NumberFormatException("must be positive");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Pipeline depth must be a positive number: " + e.getMessage());
+                System.exit(ILLEGAL_PIPELINE_DEPTH);
+                return;
+            }
+            final String host = cmd.getOptionValue(HOST_OPTION, "localhost");
+            final String shabang = cmd.getOptionValue(SHABANG_OPTION, null);
+            final boolean literalPlus = cmd.hasOption(LITERAL_PLUS_OPTION);
+            RunScript runner = new RunScript(file, port, host, shabang, verbose, pipelineDepth, literalPlus);
+            runner.run();
+        } else {
+            System.out.println("Script not found");
+            System.exit(FILE_NOT_FOUND);
+        }
+    }
+
+    private static void runLoad(CommandLine cmd) throws Exception {
+        final boolean verbose = cmd.hasOption(VERBOSE_OPTION);
+        final File file = new File(cmd.getOptionValue(FILE_OPTION));
+        if (file.exists()) {
+            final int port;
+            try {
+                port = Integer.parseInt(cmd.getOptionValue(PORT_OPTION));
+            } catch (NumberFormatException e) {
+                System.out.println("Port must be numeric");
+                System.exit(PORT_NOT_A_NUMBER);
+                return;
+            }
             try {
-                final int port = Integer.parseInt(cmd.getOptionValue(PORT_OPTION));    
                 final String host = cmd.getOptionValue(HOST_OPTION, "localhost");
                 final String shabang = cmd.getOptionValue(SHABANG_OPTION, null);
-                RunScript runner = new RunScript(file, port, host, shabang, verbose);
+                final int concurrency = Integer.parseInt(cmd.getOptionValue(CONCURRENCY_OPTION, "10"));
+                final long duration = parseDuration(cmd.getOptionValue(DURATION_OPTION, "1m"));
+                final int threads = Integer.parseInt(cmd.getOptionValue(THREADS_OPTION, 
+                        Integer.toString(Runtime.getRuntime().availableProcessors())));
+                final long interval = parseDuration(cmd.getOptionValue(INTERVAL_OPTION, "10s"));
+                final int pipelineDepth = Integer.parseInt(cmd.getOptionValue(PIPELINE_OPTION, "1"));
+                if (concurrency <= 0 || threads <= 0 || duration <= 0 || interval <= 0 || pipelineDepth <= 0) {
+                    throw new NumberFormatException("Load parameters must be positive");
+                }
+                final boolean literalPlus = cmd.hasOption(LITERAL_PLUS_OPTION);
+                RunLoad runner = new RunLoad(file, port, host, shabang, verbose, concurrency, duration, threads, 
+                        interval, pipelineDepth, literalPlus);
                 runner.run();
                 
             } catch (NumberFormatException e) {
-                System.out.println("Port must be numeric");
-                System.exit(PORT_NOT_A_NUMBER);
+                System.out.println("Illegal load parameter: " + e.getMessage());
+                System.exit(ILLEGAL_LOAD_PARAMETER);
             }
         } else {
             System.out.println("Script not found");
@@ -89,6 +164,81 @@ public class Main {
         }
     }
 
+    /**
+     * Parses a duration such as <code>500ms</code>, <code>30s</code>, 
+     * <code>10m</code> or <code>1h</code>. Plain numbers are seconds.
+     * @param value not null
+     * @return milliseconds
+     */
+    static long parseDuration(final String value) {
+        final String trimmed = value.trim().toLowerCase(Locale.US);
+        final long multiplier;
+        final String number;
+        if (trimmed.endsWith("ms")) {
+            multiplier = 1;
+            number = trimmed.substring(0, trimmed.length() - 2);
+        } else if (trimmed.endsWith("s")) {
+            multiplier = 1000;
+            number = trimmed.substring(0, trimmed.length() - 1);
+        } else if (trimmed.endsWith("m")) {
+            multiplier = 60 * 1000;
+            number = trimmed.substring(0, trimmed.length() - 1);
+        } else if (trimmed.endsWith("h")) {
+            multiplier = 60 * 60 * 1000;
+            number = trimmed.substring(0, trimmed.length() - 1);
+        } else {
+            multiplier = 1000;
+            number = trimmed;
+        }
+        return Long.parseLong(number) * multiplier;
+    }
+
+    @SuppressWarnings("static-access")
+    private static Options buildLoadOptions() {
+        final Options options = new Options();
+        
+        addRunScriptOptions(options);
+        addLoadOptions(options);
+        
+        return options;
+    }
+
+    @SuppressWarnings("static-access")
+    private static void addLoadOptions(final Options options) {
+        // -c <users> number of concurrent virtual users
+        options.addOption(OptionBuilder
+                    .withArgName("users")
+                    .hasArg()
+                    .withDescription("number of concurrent virtual users (defaults to 10)")
+                    .withLongOpt("concurrency")
+                    .isRequired(false)
+                    .create(CONCURRENCY_OPTION));
+        // -d <duration> how long to generate load
+        options.addOption(OptionBuilder
+                    .withArgName("duration")
+                    .hasArg()
+                    .withDescription("how long to run, for example 30s, 10m or 1h (defaults to 1m)")
+                    .withLongOpt("duration")
+                    .isRequired(false)
+                    .create(DURATION_OPTION));
+        // -t <threads> number of event loop threads
+        options.addOption(OptionBuilder
+                    .withArgName("threads")
+                    .hasArg()
+                    .withDescription("number of network threads (defaults to the number of processors)")
+                    .withLongOpt("threads")
+                    .isRequired(false)
+                    .create(THREADS_OPTION));
+        // -i <interval> reporting interval
+        options.addOption(OptionBuilder
+                    .withArgName("interval")
+                    .hasArg()
+                    .withDescription("time between reports (defaults to 10s)")
+                    .withLongOpt("interval")
+                    .isRequired(false)
+                    .create(INTERVAL_OPTION));
+    }
+
     @SuppressWarnings("static-access")
     private static Options buildOptions() {
         final Options options = new Options();
@@ -104,7 +254,7 @@ public class Main {
         options.addOption(OptionBuilder
                     .withArgName("file")
                     .hasArg()
-                    .withDescription("run this script")
+                    .withDescription("run this script, or script compiled by ScriptCompiler")
                     .withLongOpt("file")
                     .isRequired()
                     .create(FILE_OPTION));
@@ -134,6 +284,20 @@ public class Main {
                     .withLongOpt("shabang")
                     .isRequired(false)
                     .create(SHABANG_OPTION));
+        // -n <depth> pipelines commands
+        options.addOption(OptionBuilder
+                    .withArgName("depth")
+                    .hasArg()
+                    .withDescription("pipelines up to this number of tagged commands (defaults to 1)")
+                    .withLongOpt("pipeline")
+                    .isRequired(false)
+                    .create(PIPELINE_OPTION));
+        // -l sends non-synchronizing literals
+        options.addOption(OptionBuilder
+                    .withDescription("sends literals without waiting for continuation when the server supports LITERAL+")
+                    .withLongOpt("literal-plus")
+                    .isRequired(false)
+                    .create(LITERAL_PLUS_OPTION));
         // -v sets logging to verbose
         options.addOption(OptionBuilder
                     .withDescription("prints lots of logging")
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.app;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+
+import org.apache.james.mpt.load.LoadGenerator;
+import org.apache.james.mpt.monitor.SystemLoggingMonitor;
+import org.apache.james.mpt.protocol.Bindings;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptPlan;
+import org.apache.james.mpt.session.SelectorSession;
+import org.apache.james.mpt.session.SessionMultiplexer;
+
+/**
+ * Replays a single script as load. Each virtual user binds
+ * <code>${user}</code> to its number and counts <code>${seq}</code> from one.
+ */
+class RunLoad {
+
+    private static final LoadGenerator.UserBindings USER_BINDINGS = new LoadGenerator.UserBindings() {
+        public Bindings newBindings(int user) {
+            final Bindings bindings = new Bindings();
+            bindings.setVariable("user", Integer.toString(user));
+            bindings.setCounter("seq", 1);
+            return bindings;
+        }
+    };
+
+    private final File file;
+    private final int port;
+    private final String host;
+    private final String shabang;
+    private final SystemLoggingMonitor monitor;
+    private final int concurrency;
+    private final long duration;
+    private final int threads;
+    private final long interval;
+    private final int pipelineDepth;
+    private final boolean literalPlus;
+    
+    public RunLoad(final File file, final int port, final String host, final String shabang, final boolean verbose,
+            final int concurrency, final long duration, final int threads, final long interval, 
+            final int pipelineDepth, final boolean literalPlus) {
+        super();
+        this.pipelineDepth = pipelineDepth;
+        this.literalPlus = literalPlus;
+        this.file = file;
+        this.port = port;
+        this.host = host;
+        this.shabang = shabang;
+        this.concurrency = concurrency;
+        this.duration = duration;
+        this.threads = threads;
+        this.interval = interval;
+        monitor = new SystemLoggingMonitor(verbose);
+    }
+
+    /**
+     * Runs the load.
+     */
+    public void run() throws Exception {
+       System.out.println("Loading " + host + ":"  + port + " with " + file + " by " + concurrency 
+               + " users for " + duration + "ms...");
+       
+       final ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+       final ProtocolSession session = new ProtocolSession();
+       session.setPipelineDepth(pipelineDepth);
+       session.setLiteralPlus(literalPlus);
+       builder.addScriptFile(file, session);
+       final ScriptPlan plan = session.compile();
+       
+       final SessionMultiplexer multiplexer = new SessionMultiplexer(new InetSocketAddress(host, port), monitor, 
+               shabang, threads, SelectorSession.DEFAULT_LINE_TIMEOUT);
+       multiplexer.start();
+       try {
+           final LoadGenerator generator = new LoadGenerator(plan, multiplexer, concurrency);
+           generator.setUserBindings(USER_BINDINGS);
+           generator.run(duration, interval, System.out);
+       } finally {
+           multiplexer.stop();
+       }
+    }
+}
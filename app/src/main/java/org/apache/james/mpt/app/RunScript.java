@@ -20,12 +20,12 @@
 package org.apache.james.mpt.app;
 
 import java.io.File;
-import java.io.FileInputStream;
 
 import org.apache.james.mpt.Runner;
 import org.apache.james.mpt.host.ExternalHostSystem;
 import org.apache.james.mpt.monitor.SystemLoggingMonitor;
 import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.stats.CommandLatencyReport;
 
 /**
  * Runs a single script.
@@ -37,9 +37,18 @@ class RunScript {
     private final String host;
     private final String shabang;
     private final SystemLoggingMonitor monitor;
+    private final int pipelineDepth;
+    private final boolean literalPlus;
     
     public RunScript(final File file, final int port, final String host, final String shabang, final boolean verbose) {
+        this(file, port, host, shabang, verbose, 1, false);
+    }
+    
+    public RunScript(final File file, final int port, final String host, final String shabang, final boolean verbose,
+            final int pipelineDepth, final boolean literalPlus) {
         super();
+        this.pipelineDepth = pipelineDepth;
+        this.literalPlus = literalPlus;
         this.file = file;
         this.port = port;
         this.host = host;
@@ -57,7 +66,14 @@ class RunScript {
        final ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
        final Runner runner = new Runner();
        
-       builder.addProtocolLines(file.getName(), new FileInputStream(file), runner.getTestElements());
+       final CommandLatencyReport latencies = new CommandLatencyReport();
+       runner.setCommandLatencyListener(latencies);
+       runner.setPipelineDepth(pipelineDepth);
+       runner.setLiteralPlus(literalPlus);
+       
+       builder.addScriptFile(file, runner.getTestElements());
        runner.runSessions(host);
+       
+       System.out.print(latencies);
     }
 }
@@ -0,0 +1,230 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFactory;
+import org.apache.james.mpt.protocol.ScriptCursor;
+import org.apache.james.mpt.protocol.ScriptPlan;
+import org.apache.james.mpt.stats.CommandLatencyListener;
+import org.apache.james.mpt.stats.TaggedCommandTimer;
+
+/**
+ * <p>
+ * Runs instances of a script, made of pre, test and post plans, each on its
+ * own sessions.
+ * </p>
+ * <p>
+ * Instances are handed to an {@link Executor}, at most
+ * <code>concurrency</code> at a time. Each instance blocks its thread while
+ * its sessions wait for input, so the executor should supply as many threads
+ * as the concurrency allows: a thread per task executor, or on a JVM which
+ * supports them, a virtual thread per task executor.
+ * </p>
+ */
+public class ConcurrentRunner {
+
+    /** Runs instances on the thread submitting them */
+    private static final Executor CALLER = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Runs one instance on the calling thread.
+     * 
+     * @param pre
+     *            plan run first, not null
+     * @param test
+     *            plan run next, not null
+     * @param post
+     *            plan run last, not null
+     * @param factory
+     *            opens the sessions, not null
+     * @param latencyListener
+     *            receives the latency of each command, or null
+     */
+    public static void runInstance(ScriptPlan pre, ScriptPlan test, ScriptPlan post, SessionFactory factory,
+            CommandLatencyListener latencyListener) throws Exception {
+        final Instance instance = new Instance();
+        final Session[] sessions = new Session[test.getSessionCount()];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = factory.newSession(instance);
+                sessions[i].start();
+            }
+            final TaggedCommandTimer timer = latencyListener == null ? null : new TaggedCommandTimer(
+                    latencyListener, sessions.length);
+            instance.run(pre, sessions, timer);
+            instance.run(test, sessions, timer);
+            instance.run(post, sessions, timer);
+        }
+        finally {
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i] != null) {
+                    sessions[i].stop();
+                }
+            }
+        }
+    }
+
+    private final Executor executor;
+
+    private final int concurrency;
+
+    /**
+     * Constructs a runner which runs instances one after another on the
+     * calling thread.
+     */
+    public ConcurrentRunner() {
+        this(CALLER, 1);
+    }
+
+    /**
+     * Constructs a runner.
+     * 
+     * @param executor
+     *            runs the instances, not null
+     * @param concurrency
+     *            maximum number of instances running at once, positive
+     */
+    public ConcurrentRunner(final Executor executor, final int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+        }
+        this.executor = executor;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Runs instances of the script and waits for all of them to complete.
+     * 
+     * @param pre
+     *            plan run first by each instance, not null
+     * @param test
+     *            plan run next, not null
+     * @param post
+     *            plan run last, not null
+     * @param factory
+     *            opens the sessions, safe for concurrent use, not null
+     * @param latencyListener
+     *            receives the latency of each command, safe for concurrent
+     *            use, or null
+     * @param instances
+     *            number of instances to run
+     * @throws Exception
+     *             the failure of the first instance which failed
+     */
+    public void run(final ScriptPlan pre, final ScriptPlan test, final ScriptPlan post,
+            final SessionFactory factory, final CommandLatencyListener latencyListener, final int instances)
+            throws Exception {
+        final Semaphore permits = new Semaphore(concurrency);
+        final CountDownLatch done = new CountDownLatch(instances);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < instances; i++) {
+            permits.acquire();
+            final Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        runInstance(pre, test, post, factory, latencyListener);
+                    }
+                    catch (Exception e) {
+                        failures.incrementAndGet();
+                        failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            }
+            catch (RejectedExecutionException e) {
+                permits.release();
+                for (; i < instances; i++) {
+                    failures.incrementAndGet();
+                    failure.compareAndSet(null, e);
+                    done.countDown();
+                }
+            }
+        }
+        done.await();
+        if (failure.get() != null) {
+            if (instances > 1 && failures.get() > 1) {
+                throw new Exception(failures.get() + " of " + instances + " instances failed", failure.get());
+            }
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Continuation of the plan being run by one instance.
+     */
+    private static final class Instance implements Continuation {
+
+        private volatile ScriptCursor cursor;
+
+        /** Cursor of the plan run last on the sessions, or null */
+        private ScriptCursor previous;
+
+        void run(ScriptPlan plan, Session[] sessions, TaggedCommandTimer timer) throws Exception {
+            final ScriptCursor next = plan.newCursor();
+            next.setObserver(timer);
+            next.carryOver(previous);
+            cursor = next;
+            next.run(sessions);
+            previous = next;
+        }
+
+        public void doContinue() {
+            final ScriptCursor current = cursor;
+            if (current != null) {
+                current.doContinue();
+            }
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ConcurrentRunner ( " + "executor = " + this.executor + TAB + "concurrency = "
+                + this.concurrency + TAB + " )";
+
+        return result;
+    }
+}
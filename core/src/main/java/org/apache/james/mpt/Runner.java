@@ -19,12 +19,13 @@
 
 package org.apache.james.mpt;
 
-import org.apache.james.mpt.api.Continuation;
+import java.util.concurrent.Executor;
+
 import org.apache.james.mpt.api.HostSystem;
 import org.apache.james.mpt.api.ProtocolInteractor;
-import org.apache.james.mpt.api.Session;
 import org.apache.james.mpt.api.SessionFactory;
 import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.stats.CommandLatencyListener;
 
 /**
  * Runs protocol scripts.
@@ -39,13 +40,66 @@ public class Runner {
 
     /** The Protocol session which is run after the testElements. */
     private final ProtocolSession postElements = new ProtocolSession();
+
+    /** Receives command latencies, or null when commands are not timed */
+    private CommandLatencyListener latencyListener;
+
+    /** Runs the instances of {@link #runSessions(SessionFactory, int)} */
+    private ConcurrentRunner concurrentRunner = new ConcurrentRunner();
     
     public void continueAfterFailure() {
         preElements.setContinueAfterFailure(true);
         testElements.setContinueAfterFailure(true);
         postElements.setContinueAfterFailure(true);
     }
+
+    /**
+     * Pipelines up to the given number of tagged commands on each connection.
+     * @param depth positive, one to alternate commands and responses
+     * @see ProtocolSession#setPipelineDepth(int)
+     */
+    public void setPipelineDepth(int depth) {
+        preElements.setPipelineDepth(depth);
+        testElements.setPipelineDepth(depth);
+        postElements.setPipelineDepth(depth);
+    }
+
+    /**
+     * Sends literals without waiting for continuation to servers 
+     * advertising LITERAL+.
+     * @param literalPlus true to use non-synchronizing literals
+     * @see ProtocolSession#setLiteralPlus(boolean)
+     */
+    public void setLiteralPlus(boolean literalPlus) {
+        preElements.setLiteralPlus(literalPlus);
+        testElements.setLiteralPlus(literalPlus);
+        postElements.setLiteralPlus(literalPlus);
+    }
     
+    /**
+     * Runs each session of multi-session scripts on its own thread, the
+     * sessions meeting at <code>SYNC</code> barriers.
+     * @param concurrentSessions true to run sessions concurrently
+     * @see ProtocolSession#setConcurrentSessions(boolean)
+     */
+    public void setConcurrentSessions(boolean concurrentSessions) {
+        preElements.setConcurrentSessions(concurrentSessions);
+        testElements.setConcurrentSessions(concurrentSessions);
+        postElements.setConcurrentSessions(concurrentSessions);
+    }
+
+    /**
+     * Runs the instances of {@link #runSessions(SessionFactory, int)} 
+     * concurrently. Each instance holds a thread while it runs, so the
+     * executor should offer at least as many threads as the concurrency.
+     * By default instances run one after another on the calling thread.
+     * @param executor runs the instances, not null
+     * @param concurrency maximum number of instances running at once, positive
+     */
+    public void setExecutor(Executor executor, int concurrency) {
+        this.concurrentRunner = new ConcurrentRunner(executor, concurrency);
+    }
+
     /**
      * Gets protocol session run after test.
      * @return not null
@@ -69,6 +123,18 @@ public class Runner {
         return testElements;
     }
 
+    /**
+     * Times the tagged commands run by {@link #runSessions(SessionFactory)}.
+     * A {@link org.apache.james.mpt.stats.CommandLatencyReport} collects
+     * latencies per command and script location, ready to be printed once
+     * the sessions have run.
+     * @param latencyListener receives the latency of each command, 
+     * or null to stop timing
+     */
+    public void setCommandLatencyListener(CommandLatencyListener latencyListener) {
+        this.latencyListener = latencyListener;
+    }
+
 
 
     /**
@@ -81,38 +147,21 @@ public class Runner {
      * testing. One mock instance is required per protocol session/connection.
      */
     public void runSessions(final SessionFactory factory) throws Exception {
-        class SessionContinuation implements Continuation {
-
-            public ProtocolSession session;
-
-            public void doContinue() {
-                if (session != null) {
-                    session.doContinue();
-                }
-            }
-
-        }
-        SessionContinuation continuation = new SessionContinuation();
-
-        Session[] sessions = new Session[testElements
-                .getSessionCount()];
-
-        for (int i = 0; i < sessions.length; i++) {
-            sessions[i] = factory.newSession(continuation);
-            sessions[i].start();
-        }
-        try {
-            continuation.session = preElements;
-            preElements.runSessions(sessions);
-            continuation.session = testElements;
-            testElements.runSessions(sessions);
-            continuation.session = postElements;
-            postElements.runSessions(sessions);
-        } finally {
-            for (int i = 0; i < sessions.length; i++) {
-                sessions[i].stop();
-            }
-        }
+        ConcurrentRunner.runInstance(preElements.compile(), testElements.compile(), 
+                postElements.compile(), factory, latencyListener);
+    }
+
+    /**
+     * Runs instances of the pre, test and post protocol sessions, each on 
+     * its own sessions, with the executor set by 
+     * {@link #setExecutor(Executor, int)}.
+     * @param factory opens the sessions, safe for concurrent use
+     * @param instances number of instances to run
+     * @throws Exception the failure of the first instance which failed
+     */
+    public void runSessions(final SessionFactory factory, int instances) throws Exception {
+        concurrentRunner.run(preElements.compile(), testElements.compile(), 
+                postElements.compile(), factory, latencyListener, instances);
     }
 
     /**
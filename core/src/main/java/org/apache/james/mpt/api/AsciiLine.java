@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * A line of US-ASCII text viewed over a byte array, without decoding. Bytes
+ * outside US-ASCII are seen as the replacement character, as when decoded.
+ * </p>
+ * <p>
+ * Instances are reused: {@link ByteSession}s point their line at the next
+ * line on each read. Call {@link #toString()} to keep a copy.
+ * </p>
+ */
+public final class AsciiLine implements CharSequence {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private byte[] bytes;
+
+    private int offset;
+
+    private int length;
+
+    public AsciiLine() {
+        this(new byte[0], 0, 0);
+    }
+
+    public AsciiLine(byte[] bytes, int offset, int length) {
+        set(bytes, offset, length);
+    }
+
+    /**
+     * Points this line at the given bytes.
+     * 
+     * @param bytes
+     *            not null
+     * @param offset
+     *            index of the first byte of the line
+     * @param length
+     *            number of bytes in the line, excluding the terminator
+     * @return this line
+     */
+    public AsciiLine set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        final byte next = bytes[offset + index];
+        return next < 0 ? REPLACEMENT : (char) next;
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + "," + end);
+        }
+        return new String(bytes, offset + start, end - start, ASCII);
+    }
+
+    /**
+     * Does this line hold exactly the given bytes?
+     * 
+     * @param other
+     *            not null
+     * @return true when the bytes are equal
+     */
+    public boolean contentEquals(byte[] other) {
+        if (other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Views the bytes of this line.
+     * 
+     * @return read only buffer over the line, without terminator
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes this line.
+     * 
+     * @return a copy of the line, not null
+     */
+    public String toString() {
+        return new String(bytes, offset, length, ASCII);
+    }
+}
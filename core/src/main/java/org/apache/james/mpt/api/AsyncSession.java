@@ -0,0 +1,63 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.api;
+
+/**
+ * <p>
+ * A {@link Session} which never blocks the caller: each operation returns a
+ * {@link SessionFuture} completed once the operation is done.
+ * </p>
+ * <p>
+ * Operations are performed in the order they are called. A read completes
+ * with the first line not yet returned by an earlier read.
+ * </p>
+ */
+public interface AsyncSession {
+
+    /**
+     * Reads a line from the session input.
+     * 
+     * @return completed with the line, not null
+     */
+    public SessionFuture<String> readLineAsync();
+
+    /**
+     * Writes a line to the session output.
+     * 
+     * @param line
+     *            not null
+     * @return completed once the line has been written, not null
+     */
+    public SessionFuture<Void> writeLineAsync(String line);
+
+    /**
+     * Opens the session.
+     * 
+     * @return completed once the session is open, not null
+     */
+    public SessionFuture<Void> startAsync();
+
+    /**
+     * Closes the session. Reads still waiting for input fail.
+     * 
+     * @return completed once the session is closed, not null
+     */
+    public SessionFuture<Void> stopAsync();
+}
@@ -0,0 +1,50 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A session which exchanges lines as bytes, avoiding the decoding and
+ * encoding of a <code>String</code> per line.
+ */
+public interface ByteSession extends Session {
+
+    /**
+     * Reads a line from the session input, blocking until a new line is
+     * available. The line returned is a view over a buffer reused by the
+     * session: it is only valid until the next read.
+     * 
+     * @return not null
+     * @throws Exception
+     */
+    public AsciiLine readLineView() throws Exception;
+
+    /**
+     * Writes an encoded line to the session output. The line terminator is
+     * added by the session.
+     * 
+     * @param line
+     *            encoded line, without terminator, from position to limit;
+     *            not null
+     * @throws Exception
+     */
+    public void writeLine(ByteBuffer line) throws Exception;
+}
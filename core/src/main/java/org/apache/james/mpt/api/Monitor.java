@@ -22,9 +22,57 @@ package org.apache.james.mpt.api;
 /**
  * Monitors the conduct of a process.
  * Allows the caller to control the output of the logged information.
+ * <p>
+ * Callers on hot paths check {@link #isNoteEnabled()}, {@link #isDebugEnabled()}
+ * and {@link #isEventEnabled()} before building messages or reading the clock,
+ * so a monitor which wants nothing costs nothing.
+ * </p>
  */
 public interface Monitor {
+
+    /**
+     * Direction of a line exchanged with the server.
+     */
+    enum Direction {
+        /** Written by the client */
+        REQUEST,
+        /** Read from the server */
+        RESPONSE
+    }
+
     void note(String message);
     void debug(char character);
     void debug(String message);
+
+    /**
+     * Are notes wanted?
+     * @return true when {@link #note(String)} has an effect
+     */
+    boolean isNoteEnabled();
+
+    /**
+     * Is debugging output wanted?
+     * @return true when {@link #debug(char)} and {@link #debug(String)}
+     * have an effect
+     */
+    boolean isDebugEnabled();
+
+    /**
+     * Are structured events wanted?
+     * @return true when {@link #lineTransferred} should be called
+     */
+    boolean isEventEnabled();
+
+    /**
+     * Receives a line exchanged with the server. 
+     * Only called when {@link #isEventEnabled()}.
+     * The line may be a view over a buffer of the session: monitors which
+     * keep it copy it, monitors which only count octets never decode it.
+     * @param sessionId identifies the session, unique within the JVM
+     * @param direction not null
+     * @param line without line terminator, only valid during the call, not null
+     * @param octets number of octets transferred, including the line terminator
+     * @param timestamp {@link System#nanoTime()} when the line was transferred
+     */
+    void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp);
 }
\ No newline at end of file
@@ -65,4 +65,10 @@ public interface ProtocolInteractor {
     public abstract void SUB(int sessionNumber, List<String> serverLines,
             String location, String lastClientMessage);
 
+    /**
+     * adds a named barrier, where sessions running concurrently wait for
+     * each other.
+     */
+    public abstract void SYNC(int sessionNumber, String name);
+
 }
\ No newline at end of file
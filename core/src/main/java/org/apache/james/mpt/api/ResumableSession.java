@@ -0,0 +1,43 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.api;
+
+/**
+ * A session which never blocks: when no line is available
+ * {@link #readLine()} throws
+ * {@link org.apache.james.mpt.exception.SessionNotReadyException}.
+ * <p>
+ * Lines read are only discarded once committed. A script element which runs
+ * out of input is rolled back and executed again once more input has
+ * arrived, so that a single thread may drive many sessions.
+ * </p>
+ */
+public interface ResumableSession extends Session {
+
+    /**
+     * Discards the lines read since the last commit.
+     */
+    public void commit();
+
+    /**
+     * Makes the lines read since the last commit available to be read again.
+     */
+    public void rollback();
+}
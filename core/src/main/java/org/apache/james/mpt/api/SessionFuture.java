@@ -0,0 +1,67 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * Result of an {@link AsyncSession} operation. Callbacks are notified once
+ * the operation completes, so that no thread need wait for it.
+ * 
+ * @param <V>
+ *            type of the result
+ */
+public interface SessionFuture<V> extends Future<V> {
+
+    /**
+     * Notified when the operation completes.
+     * 
+     * @param <V>
+     *            type of the result
+     */
+    public interface Callback<V> {
+
+        /**
+         * The operation succeeded.
+         * 
+         * @param value
+         *            result, null for operations without a result
+         */
+        void completed(V value);
+
+        /**
+         * The operation failed.
+         * 
+         * @param failure
+         *            not null
+         */
+        void failed(Exception failure);
+    }
+
+    /**
+     * Adds a callback. A callback added once the operation has completed is
+     * notified immediately, on the calling thread. Otherwise it is notified
+     * on the thread completing the operation.
+     * 
+     * @param callback
+     *            not null
+     */
+    public void addCallback(Callback<? super V> callback);
+}
@@ -0,0 +1,41 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.exception;
+
+/**
+ * Thrown by a {@link org.apache.james.mpt.api.ResumableSession} when no line
+ * is available yet. This is flow control rather than an error so no stack
+ * trace is filled in and a single instance may be shared.
+ */
+public class SessionNotReadyException extends Exception {
+
+    private static final long serialVersionUID = -2467052385815683541L;
+
+    /** Shared instance */
+    public static final SessionNotReadyException INSTANCE = new SessionNotReadyException();
+
+    public SessionNotReadyException() {
+        super("No line available");
+    }
+
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
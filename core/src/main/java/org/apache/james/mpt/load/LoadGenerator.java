@@ -0,0 +1,363 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.james.mpt.protocol.Bindings;
+import org.apache.james.mpt.protocol.ScriptCursor;
+import org.apache.james.mpt.protocol.ScriptPlan;
+import org.apache.james.mpt.session.SessionMultiplexer;
+import org.apache.james.mpt.session.SessionMultiplexer.Execution;
+import org.apache.james.mpt.stats.CommandLatencyListener;
+import org.apache.james.mpt.stats.LatencyHistogram;
+import org.apache.james.mpt.stats.TaggedCommandTimer;
+
+/**
+ * <p>
+ * Replays a script as load. A fixed number of virtual users each run the
+ * script over and over, on their own connections, until the duration
+ * elapses. Connections are driven by a {@link SessionMultiplexer} so
+ * thousands of users need only a few threads.
+ * </p>
+ * <p>
+ * The round trip time of every tagged command is recorded, in microseconds,
+ * in {@link LatencyHistogram}s. Throughput and latency percentiles are
+ * printed for each interval and for the whole run.
+ * </p>
+ * <p>
+ * Each virtual user may bind the variables of the script to values of its
+ * own, such as its login or mailbox, so that a single compiled plan drives
+ * many distinct users. The bindings of a user are kept for all its
+ * iterations, counters keep counting.
+ * </p>
+ * <p>
+ * A virtual user whose iteration fails backs off before the next one, for
+ * twice as long after each consecutive failure, so that a server which is
+ * down or refusing connections is not hammered with reconnections. Failed
+ * iterations are counted apart from the iterations which passed.
+ * </p>
+ */
+public class LoadGenerator {
+
+    private static final double[] PERCENTILES = { 50, 99, 99.9 };
+
+    /** Milliseconds waited after a first failure */
+    private static final long INITIAL_BACK_OFF = 10;
+
+    /** Default longest wait after consecutive failures, in milliseconds */
+    public static final long DEFAULT_MAXIMUM_BACK_OFF = 1000;
+
+    private final ScriptPlan plan;
+
+    private final SessionMultiplexer multiplexer;
+
+    private final int concurrency;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<LatencyHistogram>(
+            new LatencyHistogram());
+
+    private final ConcurrentMap<String, LatencyHistogram> verbs = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final AtomicLong iterations = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final CommandLatencyListener recorder = new CommandLatencyListener() {
+        public void commandCompleted(String verb, String status, String location, long nanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            total.record(micros);
+            interval.get().record(micros);
+            LatencyHistogram histogram = verbs.get(verb);
+            if (histogram == null) {
+                final LatencyHistogram created = new LatencyHistogram();
+                histogram = verbs.putIfAbsent(verb, created);
+                if (histogram == null) {
+                    histogram = created;
+                }
+            }
+            histogram.record(micros);
+        }
+    };
+
+    private UserBindings userBindings;
+
+    private long maximumBackOff = DEFAULT_MAXIMUM_BACK_OFF;
+
+    private volatile Timer backOff;
+
+    private volatile long endTime;
+
+    private volatile CountDownLatch finished;
+
+    /**
+     * Constructs a generator.
+     * 
+     * @param plan
+     *            script to replay, not null
+     * @param multiplexer
+     *            started multiplexer connected to the server under test, not
+     *            null
+     * @param concurrency
+     *            number of virtual users, positive
+     */
+    public LoadGenerator(final ScriptPlan plan, final SessionMultiplexer multiplexer, final int concurrency) {
+        this.plan = plan;
+        this.multiplexer = multiplexer;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the bindings of the virtual users. Must be called before the run.
+     * 
+     * @param userBindings
+     *            or null to leave variables as written
+     */
+    public void setUserBindings(UserBindings userBindings) {
+        this.userBindings = userBindings;
+    }
+
+    /**
+     * Sets the longest a virtual user waits after consecutive failed
+     * iterations. Must be called before the run.
+     * 
+     * @param maximumBackOff
+     *            milliseconds, positive
+     */
+    public void setMaximumBackOff(long maximumBackOff) {
+        if (maximumBackOff < 1) {
+            throw new IllegalArgumentException("Back off must be positive");
+        }
+        this.maximumBackOff = maximumBackOff;
+    }
+
+    /**
+     * Generates load until the duration elapses and every virtual user has
+     * completed its last iteration.
+     * 
+     * @param duration
+     *            milliseconds
+     * @param reportInterval
+     *            milliseconds between interval reports
+     * @param out
+     *            reports are printed here, not null
+     */
+    public void run(long duration, long reportInterval, PrintStream out) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        endTime = start + duration;
+        finished = new CountDownLatch(concurrency);
+        backOff = new Timer("mpt-load-backoff", true);
+        long lastReport = start;
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                new VirtualUser(userBindings == null ? null : userBindings.newBindings(i)).next();
+            }
+            while (!finished.await(reportInterval, TimeUnit.MILLISECONDS)) {
+                final long now = System.currentTimeMillis();
+                report(out, now - start, now - lastReport, interval.getAndSet(new LatencyHistogram()));
+                lastReport = now;
+            }
+        }
+        finally {
+            backOff.cancel();
+        }
+        final long now = System.currentTimeMillis();
+        report(out, now - start, now - lastReport, interval.getAndSet(new LatencyHistogram()));
+        summarize(out, now - start);
+    }
+
+    /**
+     * Gets the number of script iterations which passed.
+     */
+    public long getIterations() {
+        return iterations.get();
+    }
+
+    /**
+     * Gets the number of script iterations which failed.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Gets the latencies of all commands.
+     * 
+     * @return microseconds, not null
+     */
+    public LatencyHistogram getLatencies() {
+        return total;
+    }
+
+    /**
+     * Gets the latencies of one command.
+     * 
+     * @param verb
+     *            upper case command name
+     * @return microseconds, or null when the command was not run
+     */
+    public LatencyHistogram getLatencies(String verb) {
+        return verbs.get(verb);
+    }
+
+    private void report(PrintStream out, long elapsed, long period, LatencyHistogram histogram) {
+        out.println(String.format(Locale.US, "[%6.1fs] %9.1f cmd/s %s iterations %d failures %d",
+                elapsed / 1000.0, throughput(histogram.getCount(), period), describe(histogram),
+                iterations.get(), failures.get()));
+    }
+
+    private void summarize(PrintStream out, long elapsed) {
+        out.println(String.format(Locale.US, "Total: %d commands in %.1fs, %.1f cmd/s, %d iterations, %d failures",
+                total.getCount(), elapsed / 1000.0, throughput(total.getCount(), elapsed), iterations.get(),
+                failures.get()));
+        out.println(String.format(Locale.US, "  %-16s %s", "ALL", describe(total)));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(verbs).entrySet()) {
+            out.println(String.format(Locale.US, "  %-16s %s", entry.getKey(), describe(entry.getValue())));
+        }
+    }
+
+    private static double throughput(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    private static String describe(LatencyHistogram histogram) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "n=%d", histogram.getCount()));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.append(String.format(Locale.US, " p%s=%.2fms", format(PERCENTILES[i]),
+                    histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+        }
+        builder.append(String.format(Locale.US, " max=%.2fms", histogram.getMax() / 1000.0));
+        return builder.toString();
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    /**
+     * Runs the script repeatedly, submitting the next iteration from the
+     * event loop which completed the last one.
+     */
+    private final class VirtualUser implements SessionMultiplexer.Listener {
+
+        private final Bindings bindings;
+
+        /** Failed iterations since the last which passed */
+        private int consecutiveFailures;
+
+        VirtualUser(Bindings bindings) {
+            this.bindings = bindings;
+        }
+
+        void next() {
+            if (System.currentTimeMillis() >= endTime) {
+                finished.countDown();
+                return;
+            }
+            final ScriptCursor cursor = plan.newCursor();
+            cursor.setObserver(new TaggedCommandTimer(recorder, plan.getSessionCount()));
+            cursor.setBindings(bindings);
+            try {
+                multiplexer.submit(cursor, this);
+            }
+            catch (IOException e) {
+                failures.incrementAndGet();
+                finished.countDown();
+            }
+            catch (IllegalStateException e) {
+                // multiplexer stopped
+                finished.countDown();
+            }
+        }
+
+        public void completed(Execution execution) {
+            if (execution.getFailure() == null) {
+                iterations.incrementAndGet();
+                consecutiveFailures = 0;
+                next();
+            }
+            else {
+                failures.incrementAndGet();
+                consecutiveFailures++;
+                backOff();
+            }
+        }
+
+        /**
+         * Runs the next iteration once the back off has elapsed, or when the
+         * run ends if that is sooner.
+         */
+        private void backOff() {
+            final long wait = Math.min(maximumBackOff, INITIAL_BACK_OFF << Math.min(consecutiveFailures - 1, 20));
+            final long delay = Math.max(0, Math.min(wait, endTime - System.currentTimeMillis()));
+            try {
+                backOff.schedule(new TimerTask() {
+                    public void run() {
+                        next();
+                    }
+                }, delay);
+            }
+            catch (IllegalStateException e) {
+                // run over
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Creates the bindings of each virtual user.
+     */
+    public interface UserBindings {
+
+        /**
+         * Creates the bindings of a virtual user.
+         * 
+         * @param user
+         *            number of the virtual user, from zero
+         * @return not null
+         */
+        Bindings newBindings(int user);
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "LoadGenerator ( " + "plan = " + this.plan + TAB + "concurrency = " + this.concurrency + TAB
+                + "iterations = " + this.iterations + TAB + "failures = " + this.failures + TAB + "maximumBackOff = "
+                + this.maximumBackOff + TAB + " )";
+
+        return result;
+    }
+}
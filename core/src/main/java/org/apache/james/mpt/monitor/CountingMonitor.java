@@ -0,0 +1,120 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.mpt.api.Monitor;
+
+/**
+ * Counts the lines and octets exchanged with the server, passing notes and
+ * debugging output on to another monitor. Thread safe, so one instance may
+ * count the traffic of many sessions.
+ */
+public class CountingMonitor implements Monitor {
+
+    private final Monitor delegate;
+
+    private final AtomicLong requestLines = new AtomicLong();
+
+    private final AtomicLong requestOctets = new AtomicLong();
+
+    private final AtomicLong responseLines = new AtomicLong();
+
+    private final AtomicLong responseOctets = new AtomicLong();
+
+    public CountingMonitor() {
+        this(new NullMonitor());
+    }
+
+    /**
+     * Constructs a monitor.
+     * 
+     * @param delegate
+     *            receives notes and debugging output, not null
+     */
+    public CountingMonitor(final Monitor delegate) {
+        this.delegate = delegate;
+    }
+
+    public void note(String message) {
+        delegate.note(message);
+    }
+
+    public void debug(char character) {
+        delegate.debug(character);
+    }
+
+    public void debug(String message) {
+        delegate.debug(message);
+    }
+
+    public boolean isNoteEnabled() {
+        return delegate.isNoteEnabled();
+    }
+
+    public boolean isDebugEnabled() {
+        return delegate.isDebugEnabled();
+    }
+
+    public boolean isEventEnabled() {
+        return true;
+    }
+
+    public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp) {
+        if (direction == Direction.REQUEST) {
+            requestLines.incrementAndGet();
+            requestOctets.addAndGet(octets);
+        }
+        else {
+            responseLines.incrementAndGet();
+            responseOctets.addAndGet(octets);
+        }
+        if (delegate.isEventEnabled()) {
+            delegate.lineTransferred(sessionId, direction, line, octets, timestamp);
+        }
+    }
+
+    public long getRequestLines() {
+        return requestLines.get();
+    }
+
+    public long getRequestOctets() {
+        return requestOctets.get();
+    }
+
+    public long getResponseLines() {
+        return responseLines.get();
+    }
+
+    public long getResponseOctets() {
+        return responseOctets.get();
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "CountingMonitor ( " + "requestLines = " + this.requestLines + TAB + "requestOctets = "
+                + this.requestOctets + TAB + "responseLines = " + this.responseLines + TAB + "responseOctets = "
+                + this.responseOctets + TAB + " )";
+
+        return result;
+    }
+}
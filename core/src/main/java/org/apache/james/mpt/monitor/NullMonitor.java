@@ -34,4 +34,19 @@ public class NullMonitor implements Monitor {
 
     public void debug(String messsage) {
     }
+
+    public boolean isNoteEnabled() {
+        return false;
+    }
+
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    public boolean isEventEnabled() {
+        return false;
+    }
+
+    public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp) {
+    }
 }
@@ -60,4 +60,19 @@ public final class SystemLoggingMonitor implements Monitor {
         }
     }
 
+    public boolean isNoteEnabled() {
+        return true;
+    }
+
+    public boolean isDebugEnabled() {
+        return verbose;
+    }
+
+    public boolean isEventEnabled() {
+        return false;
+    }
+
+    public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp) {
+    }
+
 }
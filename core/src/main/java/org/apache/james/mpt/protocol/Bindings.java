@@ -0,0 +1,132 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Values of the variables of a run. Script lines are compiled once into
+ * {@link Template}s, the variables left unbound when the script was parsed
+ * are substituted from the bindings of the cursor running it. A compiled
+ * script may so be run by many virtual users, each with bindings of its own.
+ * </p>
+ * <p>
+ * A counter is a variable whose value is incremented each time it is
+ * substituted, for example to name a new mailbox on each iteration. Bindings
+ * may be shared by sessions running concurrently.
+ * </p>
+ * <p>
+ * A numeric variable may be offset: ${<code>uidnext-50</code>} is the value
+ * of <code>uidnext</code> less fifty.
+ * </p>
+ */
+public class Bindings {
+
+    private final Map<String, String> variables = new HashMap<String, String>();
+
+    private final Map<String, long[]> counters = new HashMap<String, long[]>();
+
+    /**
+     * Binds a variable.
+     * 
+     * @param name
+     *            not null
+     * @param value
+     *            not null
+     */
+    public synchronized void setVariable(String name, String value) {
+        variables.put(name, value);
+        counters.remove(name);
+    }
+
+    /**
+     * Binds a counter.
+     * 
+     * @param name
+     *            not null
+     * @param start
+     *            value substituted first
+     */
+    public synchronized void setCounter(String name, long start) {
+        counters.put(name, new long[] { start });
+        variables.remove(name);
+    }
+
+    /**
+     * Gets the value substituted for a variable, incrementing counters.
+     * 
+     * @param name
+     *            not null
+     * @return the value, or null when the variable is not bound
+     */
+    public synchronized String getValue(String name) {
+        final String value = variables.get(name);
+        if (value != null) {
+            return value;
+        }
+        final long[] counter = counters.get(name);
+        if (counter != null) {
+            return Long.toString(counter[0]++);
+        }
+        return offset(name);
+    }
+
+    /**
+     * Resolves <code>name+n</code> and <code>name-n</code>.
+     * 
+     * @return the value, or null when the name is not an offset numeric
+     *         variable
+     */
+    private String offset(String expression) {
+        if (expression.length() < 3) {
+            return null;
+        }
+        int operator = expression.length() - 1;
+        while (operator > 0 && Character.isDigit(expression.charAt(operator))) {
+            operator--;
+        }
+        final char sign = expression.charAt(operator);
+        if (operator == 0 || operator == expression.length() - 1 || (sign != '+' && sign != '-')) {
+            return null;
+        }
+        final String value = variables.get(expression.substring(0, operator));
+        if (value == null) {
+            return null;
+        }
+        try {
+            final long offset = Long.parseLong(expression.substring(operator + 1));
+            return Long.toString(Long.parseLong(value) + (sign == '+' ? offset : -offset));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "Bindings ( " + "variables = " + this.variables + TAB + "counters = "
+                + this.counters.keySet() + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,322 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mpt.api.ProtocolInteractor;
+
+/**
+ * <p>
+ * A script precompiled by {@link ScriptCompiler}. Compiled scripts hold the
+ * elements of the script already split into element kinds, session numbers,
+ * line numbers and strings, so that loading them does no tokenizing.
+ * </p>
+ * <p>
+ * The format is:
+ * </p>
+ * 
+ * <pre>
+ * int     magic (MPTC)
+ * short   version
+ * int     number of strings, followed by each string as
+ *         int length and UTF-8 bytes
+ * int     number of elements, followed by each element as
+ *         byte kind, int session number and the operands of the kind
+ * </pre>
+ * <p>
+ * Strings are referenced by their index and shared by all elements using
+ * them. Compiled script files are memory mapped. Instances are immutable and
+ * may be replayed concurrently.
+ * </p>
+ */
+public final class CompiledScript {
+
+    /** Extension of compiled scripts, appended to the name of the script */
+    public static final String EXTENSION = "c";
+
+    static final int MAGIC = 0x4D505443;
+
+    static final short VERSION = 1;
+
+    static final byte CLIENT = 1;
+
+    static final byte CONTINUATION = 2;
+
+    static final byte SERVER = 3;
+
+    static final byte UNORDERED = 4;
+
+    static final byte SYNC = 5;
+
+    static final byte WAIT = 6;
+
+    static final byte LOG = 7;
+
+    static final byte REPEAT = 8;
+
+    static final byte REPEAT_END = 9;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Is the given file a compiled script?
+     * 
+     * @param file
+     *            not null
+     * @return true when the file name is the name of a compiled script
+     */
+    public static boolean isCompiled(File file) {
+        return file.getName().endsWith(ScriptCompiler.SCRIPT_EXTENSION + EXTENSION);
+    }
+
+    /**
+     * Memory maps a compiled script file.
+     * 
+     * @param file
+     *            compiled script, not null
+     * @param scriptName
+     *            name of the source script, for error messages
+     * @return not null
+     * @throws IOException
+     *             when the file cannot be read or is not a compiled script
+     */
+    public static CompiledScript map(File file, String scriptName) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            return new CompiledScript(scriptName, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads a compiled script.
+     * 
+     * @param in
+     *            compiled script, not null, not closed
+     * @param scriptName
+     *            name of the source script, for error messages
+     * @return not null
+     * @throws IOException
+     *             when the stream cannot be read or is not a compiled script
+     */
+    public static CompiledScript read(InputStream in, String scriptName) throws IOException {
+        return new CompiledScript(scriptName, ByteBuffer.wrap(IOUtils.toByteArray(in)));
+    }
+
+    /**
+     * Opens the script compiled from the given script, when it has been
+     * compiled since the script was last modified.
+     * 
+     * @param script
+     *            location of the script source, not null
+     * @param scriptName
+     *            name of the script, for error messages
+     * @return the compiled script, or null when it is missing or out of date
+     * @throws IOException
+     *             when the compiled script cannot be read
+     */
+    public static CompiledScript open(URL script, String scriptName) throws IOException {
+        if ("file".equals(script.getProtocol())) {
+            final File source;
+            try {
+                source = new File(script.toURI());
+            }
+            catch (URISyntaxException e) {
+                return null;
+            }
+            final File compiled = new File(source.getPath() + EXTENSION);
+            if (!compiled.isFile() || compiled.lastModified() < source.lastModified()) {
+                return null;
+            }
+            return map(compiled, scriptName);
+        }
+        else {
+            // archives are built at once, the compiled script is up to date
+            final InputStream in;
+            try {
+                in = new URL(script.toExternalForm() + EXTENSION).openStream();
+            }
+            catch (IOException e) {
+                return null;
+            }
+            try {
+                return read(in, scriptName);
+            }
+            finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    private final String scriptName;
+
+    private final String[] strings;
+
+    /** Elements, positioned at the first element */
+    private final ByteBuffer elements;
+
+    private CompiledScript(String scriptName, ByteBuffer buffer) throws IOException {
+        this.scriptName = scriptName;
+        if (buffer.remaining() < 6 || buffer.getInt() != MAGIC) {
+            throw new IOException(scriptName + " is not a compiled script");
+        }
+        final short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException(scriptName + " has been compiled in unsupported version " + version);
+        }
+        this.strings = new String[buffer.getInt()];
+        char[] chars = new char[256];
+        for (int i = 0; i < strings.length; i++) {
+            final int length = buffer.getInt();
+            if (chars.length < length) {
+                chars = new char[length];
+            }
+            strings[i] = decode(buffer, length, chars);
+        }
+        this.elements = buffer.slice();
+    }
+
+    /**
+     * Decodes the next string, most of which are US-ASCII.
+     */
+    private static String decode(ByteBuffer buffer, int length, char[] chars) {
+        final int start = buffer.position();
+        for (int i = 0; i < length; i++) {
+            final byte next = buffer.get(start + i);
+            if (next < 0) {
+                final ByteBuffer bytes = buffer.slice();
+                bytes.limit(length);
+                buffer.position(start + length);
+                return UTF8.decode(bytes).toString();
+            }
+            chars[i] = (char) next;
+        }
+        buffer.position(start + length);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Gets the name of the script.
+     * 
+     * @return not null
+     */
+    public String getScriptName() {
+        return scriptName;
+    }
+
+    /**
+     * Adds the elements of the script to the given session, as parsing the
+     * source script would.
+     * 
+     * @param session
+     *            not null
+     * @throws Exception
+     *             when the script uses elements the session does not support
+     */
+    public void replay(ProtocolInteractor session) throws Exception {
+        final ByteBuffer buffer = elements.duplicate();
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            final byte kind = buffer.get();
+            final int sessionNumber = buffer.getInt();
+            switch (kind) {
+                case CLIENT:
+                    session.CL(sessionNumber, strings[buffer.getInt()]);
+                    break;
+                case CONTINUATION:
+                    session.CONT(sessionNumber);
+                    break;
+                case SERVER: {
+                    final String line = strings[buffer.getInt()];
+                    final String location = location(buffer.getInt());
+                    session.SL(sessionNumber, line, location, strings[buffer.getInt()]);
+                    break;
+                }
+                case UNORDERED: {
+                    final int size = buffer.getInt();
+                    final List<String> lines = new ArrayList<String>(size);
+                    for (int j = 0; j < size; j++) {
+                        lines.add(strings[buffer.getInt()]);
+                    }
+                    final String location = location(buffer.getInt());
+                    session.SUB(sessionNumber, lines, location, strings[buffer.getInt()]);
+                    break;
+                }
+                case SYNC:
+                    session.SYNC(sessionNumber, strings[buffer.getInt()]);
+                    break;
+                case WAIT:
+                    protocolSession(session).WAIT(sessionNumber, buffer.getLong());
+                    break;
+                case LOG: {
+                    final ProtocolSession.LolLevel level = ProtocolSession.LolLevel.values()[buffer.get()];
+                    protocolSession(session).LOG(sessionNumber, level, strings[buffer.getInt()]);
+                    break;
+                }
+                case REPEAT: {
+                    final int iterations = buffer.getInt();
+                    final int variable = buffer.getInt();
+                    protocolSession(session).REPEAT(iterations, variable < 0 ? null : strings[variable]);
+                    break;
+                }
+                case REPEAT_END:
+                    protocolSession(session).REPEAT_END();
+                    break;
+                default:
+                    throw new IOException(scriptName + " holds unknown element kind " + kind);
+            }
+        }
+    }
+
+    private String location(int lineNumber) {
+        return scriptName + ":" + lineNumber;
+    }
+
+    private ProtocolSession protocolSession(ProtocolInteractor session) throws Exception {
+        if (session instanceof ProtocolSession) {
+            return (ProtocolSession) session;
+        }
+        throw new Exception("WAIT, LOG and REPEAT are only supported by " + ProtocolSession.class.getName());
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "CompiledScript ( " + "scriptName = " + this.scriptName + TAB + "strings = "
+                + this.strings.length + TAB + " )";
+
+        return result;
+    }
+}
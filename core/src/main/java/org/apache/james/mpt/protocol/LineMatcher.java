@@ -0,0 +1,292 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.james.mpt.api.AsciiLine;
+
+/**
+ * Matches server lines against an expected line, compiled once.
+ * <p>
+ * Script lines are regular expressions but most of them contain no
+ * metacharacters other than escaped punctuation (<code>\*</code>,
+ * <code>\[</code>, ...). Such lines are unescaped and matched by plain
+ * string equality, other lines are matched by a precompiled {@link Pattern}.
+ * Literal lines are compared to {@link AsciiLine}s byte by byte.
+ * Instances are immutable and may be shared between threads.
+ * </p>
+ * <p>
+ * A group written <code>(?&lt;name&gt;regex)</code> captures the text it
+ * matches into the variable <code>name</code>, which later lines use as
+ * ${<code>name</code>}. For example
+ * <code>S: \* OK \[UIDNEXT (?&lt;uidnext&gt;\d+)\].*</code>. Captures are
+ * translated into plain groups, so that they do not need named group support
+ * from {@link Pattern}.
+ * </p>
+ */
+final class LineMatcher {
+
+    private static final String METACHARACTERS = ".^$|?*+()[]{}";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String CAPTURE = "(?<";
+
+    private static final String[] NO_CAPTURES = new String[0];
+
+    /**
+     * Compiles the expected line.
+     *
+     * @param expected
+     *            regular expression, not null
+     * @return not null
+     */
+    public static LineMatcher compile(String expected) {
+        if (expected.indexOf(CAPTURE) >= 0) {
+            return compileCaptures(expected);
+        }
+        final String literal = toLiteral(expected);
+        if (literal == null) {
+            return new LineMatcher(expected, null, Pattern.compile(expected));
+        }
+        else {
+            return new LineMatcher(expected, literal, null);
+        }
+    }
+
+    /**
+     * Translates capturing groups into plain groups, numbering groups as
+     * {@link Pattern} does.
+     */
+    private static LineMatcher compileCaptures(String expected) {
+        final int length = expected.length();
+        final StringBuilder regex = new StringBuilder(length);
+        final List<String> names = new ArrayList<String>();
+        final List<Integer> groups = new ArrayList<Integer>();
+        int group = 0;
+        boolean inClass = false;
+        for (int i = 0; i < length; i++) {
+            final char next = expected.charAt(i);
+            if (next == '\\' && i + 1 < length) {
+                regex.append(next).append(expected.charAt(++i));
+            }
+            else if (inClass) {
+                inClass = next != ']';
+                regex.append(next);
+            }
+            else if (next == '[') {
+                inClass = true;
+                regex.append(next);
+            }
+            else if (next == '(' && isCapture(expected, i)) {
+                final int end = expected.indexOf('>', i);
+                names.add(expected.substring(i + CAPTURE.length(), end));
+                groups.add(++group);
+                regex.append('(');
+                i = end;
+            }
+            else {
+                if (next == '(' && (i + 1 == length || expected.charAt(i + 1) != '?')) {
+                    group++;
+                }
+                regex.append(next);
+            }
+        }
+        final int[] captureGroups = new int[groups.size()];
+        for (int i = 0; i < captureGroups.length; i++) {
+            captureGroups[i] = groups.get(i);
+        }
+        return new LineMatcher(expected, null, Pattern.compile(regex.toString()), names
+                .toArray(new String[names.size()]), captureGroups);
+    }
+
+    /**
+     * Does a capture, rather than a look behind, start at the index?
+     */
+    private static boolean isCapture(String expression, int index) {
+        final int nameStart = index + CAPTURE.length();
+        return expression.startsWith(CAPTURE, index) && nameStart < expression.length()
+                && Character.isLetter(expression.charAt(nameStart)) && expression.indexOf('>', nameStart) > 0;
+    }
+
+    /**
+     * Returns the literal string matched by the given regular expression.
+     *
+     * @param expression
+     *            not null
+     * @return the literal value, or null when the expression uses regular
+     *         expression constructs
+     */
+    private static String toLiteral(String expression) {
+        final int length = expression.length();
+        StringBuilder literal = null;
+        for (int i = 0; i < length; i++) {
+            final char next = expression.charAt(i);
+            if (next == '\\') {
+                if (i + 1 == length || Character.isLetterOrDigit(expression.charAt(i + 1))) {
+                    // \d, \S, \Q, back references...
+                    return null;
+                }
+                if (literal == null) {
+                    literal = new StringBuilder(length).append(expression, 0, i);
+                }
+                literal.append(expression.charAt(++i));
+            }
+            else if (METACHARACTERS.indexOf(next) >= 0) {
+                return null;
+            }
+            else if (literal != null) {
+                literal.append(next);
+            }
+        }
+        if (literal == null) {
+            return expression;
+        }
+        else {
+            return literal.toString();
+        }
+    }
+
+    private final String expected;
+
+    private final String literal;
+
+    private final Pattern pattern;
+
+    /** Encoded literal, or null when the literal is not US-ASCII */
+    private final byte[] literalBytes;
+
+    /** Variables captured */
+    private final String[] captureNames;
+
+    /** Groups of the pattern matching each variable captured */
+    private final int[] captureGroups;
+
+    private LineMatcher(String expected, String literal, Pattern pattern) {
+        this(expected, literal, pattern, NO_CAPTURES, null);
+    }
+
+    private LineMatcher(String expected, String literal, Pattern pattern, String[] captureNames,
+            int[] captureGroups) {
+        this.expected = expected;
+        this.literal = literal;
+        this.pattern = pattern;
+        this.literalBytes = literal != null && isAscii(literal) ? literal.getBytes(ASCII) : null;
+        this.captureNames = captureNames;
+        this.captureGroups = captureGroups;
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 127) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is the actual line matched?
+     *
+     * @param actual
+     *            not null
+     * @return true when the whole line matches
+     */
+    public boolean matches(CharSequence actual) {
+        if (literal == null) {
+            return pattern.matcher(actual).matches();
+        }
+        else if (literalBytes != null && actual instanceof AsciiLine) {
+            return ((AsciiLine) actual).contentEquals(literalBytes);
+        }
+        else {
+            return literal.contentEquals(actual);
+        }
+    }
+
+    /**
+     * Is the actual line matched? When it is, binds the variables captured.
+     * 
+     * @param actual
+     *            not null
+     * @param captures
+     *            variables captured are bound here, not null
+     * @return true when the whole line matches
+     */
+    public boolean matches(CharSequence actual, Bindings captures) {
+        if (captureNames.length == 0) {
+            return matches(actual);
+        }
+        final Matcher matcher = pattern.matcher(actual);
+        if (!matcher.matches()) {
+            return false;
+        }
+        for (int i = 0; i < captureNames.length; i++) {
+            final String value = matcher.group(captureGroups[i]);
+            if (value != null) {
+                captures.setVariable(captureNames[i], value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does this matcher capture variables?
+     */
+    public boolean hasCaptures() {
+        return captureNames.length > 0;
+    }
+
+    /**
+     * Is this matcher a plain string comparison?
+     *
+     * @return true when {@link #getLiteral()} is available
+     */
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    /**
+     * Gets the literal line matched.
+     *
+     * @return the line, or null when this matcher uses a regular expression
+     */
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * Gets the regular expression source.
+     *
+     * @return not null
+     */
+    public String getExpected() {
+        return expected;
+    }
+
+    public String toString() {
+        return expected;
+    }
+}
@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable elements parsed from a script. Parsing a script once and
+ * adding its elements to many {@link ProtocolSession}s avoids parsing the
+ * same script again for each test.
+ */
+public final class ParsedScript {
+
+    private final String name;
+
+    private final List<ProtocolElement> elements;
+
+    private final int maxSessionNumber;
+
+    /**
+     * Snapshots the elements added to the given session.
+     * 
+     * @param name
+     *            name of the script, for error messages
+     * @param parsed
+     *            session the script has been parsed into
+     */
+    ParsedScript(String name, ProtocolSession parsed) {
+        this.name = name;
+        this.elements = Collections.unmodifiableList(new ArrayList<ProtocolElement>(parsed.testElements));
+        this.maxSessionNumber = parsed.getSessionCount() - 1;
+    }
+
+    /**
+     * Gets the name of the script.
+     * 
+     * @return not null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of elements parsed.
+     */
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * Adds all elements of this script to the given session.
+     * 
+     * @param session
+     *            not null
+     */
+    public void addTo(ProtocolSession session) {
+        session.addElements(elements, maxSessionNumber);
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ParsedScript ( " + "name = " + this.name + TAB + "elements = " + this.elements.size()
+                + TAB + " )";
+
+        return result;
+    }
+}
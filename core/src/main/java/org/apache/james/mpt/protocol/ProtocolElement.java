@@ -0,0 +1,52 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+/**
+ * Represents a generic protocol element, which may write requests to the
+ * server, read responses from the server, or both. Implementations should
+ * test the server response against an expected response, and throw an
+ * exception on mismatch.
+ * <p>
+ * Elements are immutable: all state changed by a run is held by the
+ * {@link ScriptCursor}, so that a single element may be executed by many
+ * cursors at the same time.
+ * </p>
+ */
+interface ProtocolElement {
+    /**
+     * Executes the ProtocolElement against the sessions of the cursor.
+     * 
+     * @param cursor
+     *            the run executing this element, not null
+     * @throws Exception
+     */
+    void testProtocol(ScriptCursor cursor) throws Exception;
+
+    boolean isClient();
+
+    /**
+     * Gets the session this element reads from or writes to.
+     * 
+     * @return the session number, or -1 when the element applies to all
+     *         sessions
+     */
+    int getSessionNumber();
+}
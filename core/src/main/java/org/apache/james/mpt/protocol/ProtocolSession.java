@@ -20,10 +20,10 @@
 package org.apache.james.mpt.protocol;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import org.apache.james.mpt.api.ProtocolInteractor;
 import org.apache.james.mpt.api.Session;
@@ -35,6 +35,11 @@ import org.slf4j.LoggerFactory;
  * the server response against the expected values. TODO make ProtocolSession
  * itself be a permissible ProtocolElement, so that we can nest and reuse
  * sessions.
+ * <p>
+ * Elements are immutable. {@link #compile()} snapshots them into a
+ * {@link ScriptPlan} which can be replayed by many {@link ScriptCursor}s at the
+ * same time without re-parsing the script.
+ * </p>
  * 
  * @author Darrell DeBoer <darrell@apache.org>
  */
@@ -42,21 +47,30 @@ public class ProtocolSession implements ProtocolInteractor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProtocolSession.class);
 
-    private boolean continued = false;
-
-    private boolean continuationExpected = false;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
 
     private int maxSessionNumber;
 
     protected List<ProtocolElement> testElements = new ArrayList<ProtocolElement>();
 
-    private Iterator<ProtocolElement> elementsIterator;
+    /** The cursor of the last run, used by {@link #doContinue()} */
+    private ScriptCursor cursor;
 
-    private Session[] sessions;
+    private boolean continueAfterFailure = false;
 
-    private ProtocolElement nextTest;
+    private ScriptObserver observer;
 
-    private boolean continueAfterFailure = false;
+    private Bindings bindings;
+
+    /** REPEAT blocks opened and not yet closed */
+    private final List<RepeatStart> openLoops = new ArrayList<RepeatStart>();
+
+    /** Maximum number of tagged commands in flight, one when not pipelining */
+    private int pipelineDepth = 1;
+
+    private boolean literalPlus = false;
+
+    private boolean concurrentSessions = false;
 
     public final boolean isContinueAfterFailure() {
         return continueAfterFailure;
@@ -82,6 +96,140 @@ public class ProtocolSession implements ProtocolInteractor {
         return maxSessionNumber + 1;
     }
 
+    /**
+     * Compiles the elements added so far into an immutable plan. The plan is
+     * independent of this session: elements added later are not part of it,
+     * and it may be run concurrently by any number of {@link ScriptCursor}s.
+     * 
+     * @return not null
+     */
+    public ScriptPlan compile() {
+        final List<ProtocolElement> elements;
+        if (pipelineDepth > 1) {
+            elements = pipeline(testElements, pipelineDepth, getSessionCount());
+        }
+        else {
+            elements = testElements;
+        }
+        return new ScriptPlan(elements, getSessionCount(), continueAfterFailure, literalPlus, concurrentSessions);
+    }
+
+    public final int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * <p>
+     * Sets the number of tagged commands which may be in flight on a
+     * connection. When greater than one, runs of consecutive commands are
+     * written back to back, and the responses read are correlated to their
+     * commands by tag: tagged completions by their tag, untagged responses by
+     * the first command still expecting them.
+     * </p>
+     * <p>
+     * A command is only pipelined when the script expects its tagged
+     * completion and nothing but server responses follow it. Commands
+     * waiting for a continuation, waits and log elements end a run.
+     * </p>
+     * 
+     * @param pipelineDepth
+     *            positive, one to alternate commands and responses
+     */
+    public final void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public final boolean isLiteralPlus() {
+        return literalPlus;
+    }
+
+    /**
+     * Sets whether synchronizing literals are sent as non-synchronizing
+     * literals (RFC 2088) to servers which advertise LITERAL+. When set, a
+     * client line ending with <code>{n}</code> is written as ending with
+     * <code>{n+}</code> and the payload follows at once: the continuation
+     * request expected by the script is not waited for. Servers which have
+     * not listed LITERAL+ in a CAPABILITY response, or response code, are
+     * sent the script unchanged.
+     * 
+     * @param literalPlus
+     *            true to use non-synchronizing literals when possible
+     */
+    public final void setLiteralPlus(boolean literalPlus) {
+        this.literalPlus = literalPlus;
+    }
+
+    /**
+     * Is the last element added a server response which no client line
+     * depends on? A script may be split after such an element.
+     */
+    boolean endsWithResponse() {
+        if (testElements.isEmpty()) {
+            return false;
+        }
+        if (!openLoops.isEmpty()) {
+            return false;
+        }
+        final ProtocolElement last = testElements.get(testElements.size() - 1);
+        return last instanceof ServerResponse && !((ServerResponse) last).continuationRequest;
+    }
+
+    public final boolean isConcurrentSessions() {
+        return concurrentSessions;
+    }
+
+    /**
+     * <p>
+     * Sets whether the sessions of a multi-session script run on threads of
+     * their own. Each session then runs its own elements, together with the
+     * elements addressed to all sessions, independently of the others: the
+     * sessions only wait for each other at <code>SYNC</code> barriers.
+     * Otherwise sessions run as a single serialized interleaving, in script
+     * order, and barriers have no effect.
+     * </p>
+     * <p>
+     * Only blocking runs use threads: plans resumed by an event loop are
+     * always serialized.
+     * </p>
+     * 
+     * @param concurrentSessions
+     *            true to run each session on its own thread
+     */
+    public final void setConcurrentSessions(boolean concurrentSessions) {
+        this.concurrentSessions = concurrentSessions;
+    }
+
+    /**
+     * Groups runs of pipelinable commands.
+     */
+    private static List<ProtocolElement> pipeline(List<ProtocolElement> elements, int depth, int sessionCount) {
+        final List<ProtocolElement> result = new ArrayList<ProtocolElement>(elements.size());
+        int index = 0;
+        while (index < elements.size()) {
+            final List<PipelinedCommand> commands = new ArrayList<PipelinedCommand>(depth);
+            int next = index;
+            PipelinedCommand command;
+            while (commands.size() < depth
+                    && (command = PipelinedCommand.parse(elements, next, sessionCount)) != null
+                    && (commands.isEmpty() || commands.get(0).session == command.session)) {
+                commands.add(command);
+                next = command.end;
+            }
+            if (commands.size() > 1) {
+                result.add(new PipelinedRequests(commands));
+                result.add(new PipelinedResponses(commands));
+                index = next;
+            }
+            else {
+                result.add(elements.get(index++));
+            }
+        }
+        return result;
+    }
+
     /**
      * Executes the ProtocolSession in real time against the readers and writers
      * supplied, writing client requests and reading server responses in the
@@ -89,49 +237,58 @@ public class ProtocolSession implements ProtocolInteractor {
      * in the array corresponds to the number of the session. If an exception
      * occurs, no more test elements are executed.
      * 
-     * @param out
-     *            The client requests are written to here.
-     * @param in
-     *            The server responses are read from here.
+     * @param sessions
+     *            The client requests are written to, and the server responses
+     *            read from, these sessions.
      */
     public void runSessions(Session[] sessions) throws Exception {
-        this.sessions = sessions;
-        elementsIterator = testElements.iterator();
-        while (elementsIterator.hasNext()) {
-            Object obj = elementsIterator.next();
-            if (obj instanceof ProtocolElement) {
-                ProtocolElement test = (ProtocolElement) obj;
-                test.testProtocol(sessions, continueAfterFailure);
-            }
-        }
+        cursor = compile().newCursor();
+        cursor.setObserver(observer);
+        cursor.setBindings(bindings);
+        cursor.run(sessions);
+    }
+
+    /**
+     * Sets the values of the variables substituted by
+     * {@link #runSessions(Session[])}, for variables which were not set
+     * when the script was parsed.
+     * 
+     * @param bindings
+     *            or null to leave variables as written
+     */
+    public void setBindings(Bindings bindings) {
+        this.bindings = bindings;
+    }
+
+    /**
+     * Sets the observer notified of the lines exchanged by
+     * {@link #runSessions(Session[])}.
+     * 
+     * @param observer
+     *            or null
+     */
+    public void setObserver(ScriptObserver observer) {
+        this.observer = observer;
     }
 
     public void doContinue() {
-        try {
-            if (continuationExpected) {
-                continued = true;
-                while (elementsIterator.hasNext()) {
-                    Object obj = elementsIterator.next();
-                    if (obj instanceof ProtocolElement) {
-                        nextTest = (ProtocolElement) obj;
-
-                        if (!nextTest.isClient()) {
-                            break;
-                        }
-                        nextTest.testProtocol(sessions, continueAfterFailure);
-                    }
-                }
-                if (!elementsIterator.hasNext()) {
-                    nextTest = null;
-                }
-            }
-            else {
-                throw new RuntimeException("Unexpected continuation");
-            }
-        }
-        catch (Exception e) {
-            throw new RuntimeException(e);
+        if (cursor == null) {
+            throw new RuntimeException("Unexpected continuation");
         }
+        cursor.doContinue();
+    }
+
+    /**
+     * Adds elements parsed beforehand.
+     * 
+     * @param elements
+     *            immutable elements, not null
+     * @param maxSessionNumber
+     *            highest session number used by the elements
+     */
+    void addElements(List<ProtocolElement> elements, int maxSessionNumber) {
+        this.maxSessionNumber = Math.max(this.maxSessionNumber, maxSessionNumber);
+        testElements.addAll(elements);
     }
 
     /**
@@ -194,21 +351,71 @@ public class ProtocolSession implements ProtocolInteractor {
      */
     public void WAIT(int sessionNumber, long timeToWaitInMs) {
         this.maxSessionNumber = Math.max(this.maxSessionNumber, sessionNumber);
-        testElements.add(new WaitElement(timeToWaitInMs));
+        testElements.add(new WaitElement(sessionNumber, timeToWaitInMs));
     }
 
     public void LOG(int sessionNumber, LolLevel level, String message) {
         this.maxSessionNumber = Math.max(this.maxSessionNumber, sessionNumber);
-        testElements.add(new LogElement(level, message));
+        testElements.add(new LogElement(sessionNumber, level, message));
+    }
+
+    /**
+     * adds a barrier, where the sessions reaching a barrier of the same name
+     * wait for each other when sessions run concurrently.
+     */
+    public void SYNC(int sessionNumber, String name) {
+        this.maxSessionNumber = Math.max(this.maxSessionNumber, sessionNumber);
+        testElements.add(new SyncElement(sessionNumber, name));
+    }
+
+    /**
+     * opens a block of elements run the given number of times. The block is
+     * kept once, the cursor running it goes back to its start for each
+     * iteration.
+     * 
+     * @param count
+     *            number of iterations
+     * @param variable
+     *            name of the variable bound to the iteration, from one, or
+     *            null
+     */
+    public void REPEAT(int count, String variable) {
+        final RepeatStart start = new RepeatStart(count, variable);
+        openLoops.add(start);
+        testElements.add(start);
+    }
+
+    /**
+     * closes the last block opened by {@link #REPEAT(int, String)}.
+     */
+    public void REPEAT_END() {
+        if (openLoops.isEmpty()) {
+            throw new IllegalStateException("No REPEAT block to close");
+        }
+        testElements.add(new RepeatEnd(openLoops.remove(openLoops.size() - 1)));
     }
 
     /**
      * A client request, which write the specified message to a Writer.
      */
     private static class ClientRequest implements ProtocolElement {
-        private int sessionNumber;
+        private final int sessionNumber;
+
+        private final String message;
+
+        /** US-ASCII encoding of the message, for byte sessions */
+        private final byte[] encoded;
+
+        /**
+         * The message with its synchronizing literal made non-synchronizing,
+         * or null when the message does not end with a synchronizing literal
+         */
+        private final String literalPlusMessage;
+
+        private final byte[] literalPlusEncoded;
 
-        private String message;
+        /** Variables substituted by each run, or null when there are none */
+        private final Template template;
 
         /**
          * Initialises the ClientRequest with the supplied message.
@@ -226,6 +433,29 @@ public class ProtocolSession implements ProtocolInteractor {
         public ClientRequest(int sessionNumber, String message) {
             this.sessionNumber = sessionNumber;
             this.message = message;
+            final Template template = Template.compile(message);
+            this.template = template.isConstant() ? null : template;
+            this.encoded = message.getBytes(ASCII);
+            if (endsWithSynchronizingLiteral(message)) {
+                this.literalPlusMessage = message.substring(0, message.length() - 1) + "+}";
+                this.literalPlusEncoded = literalPlusMessage.getBytes(ASCII);
+            }
+            else {
+                this.literalPlusMessage = null;
+                this.literalPlusEncoded = null;
+            }
+        }
+
+        private static boolean endsWithSynchronizingLiteral(String message) {
+            final int end = message.length() - 1;
+            if (end < 2 || message.charAt(end) != '}') {
+                return false;
+            }
+            int index = end - 1;
+            while (index >= 0 && Character.isDigit(message.charAt(index))) {
+                index--;
+            }
+            return index >= 0 && index < end - 1 && message.charAt(index) == '{';
         }
 
         /**
@@ -235,26 +465,54 @@ public class ProtocolSession implements ProtocolInteractor {
          * 
          * @throws Exception
          */
-        public void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception {
+        public void testProtocol(ScriptCursor cursor) throws Exception {
             if (sessionNumber < 0) {
-                for (int i = 0; i < sessions.length; i++) {
-                    Session session = sessions[i];
-                    writeMessage(session);
+                final int sessionCount = cursor.getSessionCount();
+                for (int i = 0; i < sessionCount; i++) {
+                    if (cursor.isInScope(i)) {
+                        writeLine(cursor, i);
+                    }
                 }
             }
             else {
-                Session session = sessions[sessionNumber];
-                writeMessage(session);
+                writeLine(cursor, sessionNumber);
             }
         }
 
-        private void writeMessage(Session session) throws Exception {
-            session.writeLine(message);
+        private void writeLine(ScriptCursor cursor, int session) throws Exception {
+            if (template != null) {
+                final String resolved = cursor.resolve(template);
+                if (endsWithSynchronizingLiteral(resolved) && cursor.isLiteralPlus(session)) {
+                    cursor.writeLine(session, resolved.substring(0, resolved.length() - 1) + "+}");
+                    cursor.literalSent(session);
+                }
+                else {
+                    cursor.writeLine(session, resolved);
+                }
+            }
+            else if (literalPlusMessage != null && cursor.isLiteralPlus(session)) {
+                cursor.writeLine(session, literalPlusMessage, literalPlusEncoded);
+                cursor.literalSent(session);
+            }
+            else {
+                cursor.writeLine(session, message, encoded);
+            }
         }
 
         public boolean isClient() {
             return true;
         }
+
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
+
+        /**
+         * Does the message contain variables substituted by each run?
+         */
+        boolean isTemplated() {
+            return template != null;
+        }
     }
 
     /**
@@ -262,14 +520,22 @@ public class ProtocolSession implements ProtocolInteractor {
      * reader, and compares it with the defined regular expression definition of
      * this line.
      */
-    private class ServerResponse implements ProtocolElement {
-        private String lastClientMessage;
+    private static class ServerResponse implements ProtocolElement {
+        private final String lastClientMessage;
+
+        private final int sessionNumber;
+
+        private final String expectedLine;
+
+        private final LineMatcher matcher;
 
-        private int sessionNumber;
+        protected final String location;
 
-        private String expectedLine;
+        /** Does this response expect a continuation request? */
+        private final boolean continuationRequest;
 
-        protected String location;
+        /** Variables substituted by each run, or null when there are none */
+        private final Template template;
 
         /**
          * Sets up a server response.
@@ -300,6 +566,31 @@ public class ProtocolSession implements ProtocolInteractor {
             this.expectedLine = expectedPattern;
             this.location = location;
             this.lastClientMessage = lastClientMessage;
+            this.continuationRequest = expectedPattern.startsWith("\\+");
+            final Template template = Template.compile(expectedPattern);
+            if (template.isConstant()) {
+                this.template = null;
+                this.matcher = LineMatcher.compile(expectedPattern);
+            }
+            else {
+                // compiled once the variables are resolved
+                this.template = template;
+                this.matcher = null;
+            }
+        }
+
+        /**
+         * Sets up a server response without a single expected line.
+         */
+        protected ServerResponse(int sessionNumber, String description, LineMatcher matcher, String location,
+                String lastClientMessage) {
+            this.sessionNumber = sessionNumber;
+            this.expectedLine = description;
+            this.matcher = matcher;
+            this.location = location;
+            this.continuationRequest = false;
+            this.lastClientMessage = lastClientMessage;
+            this.template = null;
         }
 
         /**
@@ -308,32 +599,47 @@ public class ProtocolSession implements ProtocolInteractor {
          * readers are tested, otherwise, only the reader for this session is
          * tested.
          * 
-         * @param out
-         *            Is ignored.
-         * @param in
-         *            The server response is read from here.
+         * @param cursor
+         *            The server response is read from the sessions of this
+         *            cursor.
          * @throws InvalidServerResponseException
          *             If the actual server response didn't match the regular
          *             expression expected.
          */
-        public void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception {
+        public void testProtocol(ScriptCursor cursor) throws Exception {
             if (sessionNumber < 0) {
-                for (int i = 0; i < sessions.length; i++) {
-                    Session session = sessions[i];
-                    checkResponse(session, continueAfterFailure);
+                final int sessionCount = cursor.getSessionCount();
+                for (int i = 0; i < sessionCount; i++) {
+                    if (cursor.isInScope(i)) {
+                        checkResponse(cursor, i);
+                    }
                 }
             }
             else {
-                Session session = sessions[sessionNumber];
-                checkResponse(session, continueAfterFailure);
+                checkResponse(cursor, sessionNumber);
             }
         }
 
-        protected void checkResponse(Session session, boolean continueAfterFailure) throws Exception {
-            String testLine = readLine(session);
-            if (!match(expectedLine, testLine)) {
+        protected void checkResponse(ScriptCursor cursor, int session) throws Exception {
+            if (continuationRequest && cursor.skipContinuation(session)) {
+                // the literal was sent as LITERAL+, no continuation will come
+                return;
+            }
+            final boolean continueAfterFailure = cursor.isContinueAfterFailure();
+            // resolved once the line is read and kept until the element
+            // completes, so that a rollback does not consume counters again
+            CharSequence testLine = readLine(cursor, session);
+            LineMatcher matcher = this.matcher;
+            if (template != null) {
+                matcher = (LineMatcher) cursor.getResolved(this, session);
+                if (matcher == null) {
+                    matcher = LineMatcher.compile(cursor.resolve(template));
+                    cursor.keepResolved(this, session, matcher);
+                }
+            }
+            if (!(matcher.hasCaptures() ? matcher.matches(testLine, cursor.captures()) : matcher.matches(testLine))) {
                 String errMsg = "\nLocation: " + location + "\nLastClientMsg: " + lastClientMessage + "\nExpected: '"
-                        + expectedLine + "'\nActual   : '" + testLine + "'";
+                        + matcher.getExpected() + "'\nActual   : '" + testLine + "'";
                 if (continueAfterFailure) {
                     System.out.println(errMsg);
                 }
@@ -343,30 +649,15 @@ public class ProtocolSession implements ProtocolInteractor {
             }
         }
 
-        /**
-         * A convenience method which returns true if the actual string matches
-         * the expected regular expression.
-         * 
-         * @param expected
-         *            The regular expression used for matching.
-         * @param actual
-         *            The actual message to match.
-         * @return <code>true</code> if the actual matches the expected.
-         */
-        protected boolean match(String expected, String actual) {
-            final boolean result = Pattern.matches(expected, actual);
-            return result;
-        }
-
         /**
          * Grabs a line from the server and throws an error message if it
          * doesn't work out
          * 
-         * @return String of the line from the server
+         * @return the line from the server, valid until the next read
          */
-        protected String readLine(Session session) throws Exception {
+        protected CharSequence readLine(ScriptCursor cursor, int session) throws Exception {
             try {
-                return session.readLine();
+                return cursor.readLine(session, location);
             }
             catch (IOException e) {
                 String errMsg = "\nLocation: " + location + "\nExpected: " + expectedLine + "\nReason: Server Timeout.";
@@ -377,14 +668,37 @@ public class ProtocolSession implements ProtocolInteractor {
         public boolean isClient() {
             return false;
         }
+
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
+
+        /**
+         * Do the expected lines contain variables substituted by each run?
+         */
+        boolean isTemplated() {
+            return template != null;
+        }
+
+        /**
+         * Do the expected lines capture variables?
+         */
+        boolean capturesVariables() {
+            return matcher != null && matcher.hasCaptures();
+        }
     }
 
     /**
      * Represents a set of lines which must be recieved from the server, in a
      * non-specified order.
      */
-    private class ServerUnorderedBlockResponse extends ServerResponse {
-        private List<String> expectedLines = new ArrayList<String>();
+    private static class ServerUnorderedBlockResponse extends ServerResponse {
+        private final List<String> expectedLines;
+
+        private final UnorderedMatcher matcher;
+
+        /** Expected lines, when variables are substituted by each run */
+        private final Template[] templates;
 
         /**
          * Sets up a ServerUnorderedBlockResponse with the list of expected
@@ -415,14 +729,34 @@ public class ProtocolSession implements ProtocolInteractor {
          */
         public ServerUnorderedBlockResponse(int sessionNumber, List<String> expectedLines, String location,
                 String lastClientMessage) {
-            super(sessionNumber, "<Unordered Block>", location, lastClientMessage);
-            this.expectedLines = expectedLines;
+            super(sessionNumber, "<Unordered Block>", null, location, lastClientMessage);
+            this.expectedLines = new ArrayList<String>(expectedLines);
+            final Template[] templates = new Template[expectedLines.size()];
+            boolean templated = false;
+            for (int i = 0; i < templates.length; i++) {
+                templates[i] = Template.compile(expectedLines.get(i));
+                templated |= !templates[i].isConstant();
+            }
+            if (templated) {
+                // compiled once the variables are resolved
+                this.templates = templates;
+                this.matcher = null;
+            }
+            else {
+                final LineMatcher[] matchers = new LineMatcher[templates.length];
+                for (int i = 0; i < matchers.length; i++) {
+                    matchers[i] = LineMatcher.compile(expectedLines.get(i));
+                }
+                this.templates = null;
+                this.matcher = new UnorderedMatcher(matchers);
+            }
         }
 
         /**
          * Reads lines from the server response and matches them against the
          * list of expected regular expressions. Each regular expression in the
          * expected list must be matched by only one server response line.
+         * Literal lines are looked up before regular expressions are tried.
          * 
          * @param reader
          *            Server responses are read from here.
@@ -430,22 +764,30 @@ public class ProtocolSession implements ProtocolInteractor {
          *             If a line is encountered which doesn't match one of the
          *             expected lines.
          */
-        protected void checkResponse(Session session, boolean continueAfterFailure) throws Exception {
-            List<String> testLines = new ArrayList<String>(expectedLines);
-            while (testLines.size() > 0) {
-                String actualLine = readLine(session);
-
-                boolean foundMatch = false;
-                for (int i = 0; i < testLines.size(); i++) {
-                    String expected = (String) testLines.get(i);
-                    if (match(expected, actualLine)) {
-                        foundMatch = true;
-                        testLines.remove(expected);
-                        break;
+        protected void checkResponse(ScriptCursor cursor, int session) throws Exception {
+            final boolean continueAfterFailure = cursor.isContinueAfterFailure();
+            final UnorderedMatcher.State testLines;
+            if (templates == null) {
+                testLines = matcher.newState(matcher.hasCaptures() ? cursor.captures() : null);
+            }
+            else {
+                // kept until the element completes, so that a rollback does
+                // not consume counters again
+                UnorderedMatcher resolved = (UnorderedMatcher) cursor.getResolved(this, session);
+                if (resolved == null) {
+                    final LineMatcher[] matchers = new LineMatcher[templates.length];
+                    for (int i = 0; i < matchers.length; i++) {
+                        matchers[i] = LineMatcher.compile(cursor.resolve(templates[i]));
                     }
+                    resolved = new UnorderedMatcher(matchers);
+                    cursor.keepResolved(this, session, resolved);
                 }
+                testLines = resolved.newState(resolved.hasCaptures() ? cursor.captures() : null);
+            }
+            while (!testLines.isComplete()) {
+                CharSequence actualLine = readLine(cursor, session);
 
-                if (!foundMatch) {
+                if (!testLines.accept(actualLine)) {
                     StringBuffer errMsg = new StringBuffer().append("\nLocation: ").append(location)
                             .append("\nExpected one of: ");
                     Iterator<String> iter = expectedLines.iterator();
@@ -463,9 +805,327 @@ public class ProtocolSession implements ProtocolInteractor {
                 }
             }
         }
+
+        boolean isTemplated() {
+            return templates != null;
+        }
+
+        boolean capturesVariables() {
+            return matcher != null && matcher.hasCaptures();
+        }
+    }
+
+    /**
+     * A tagged command, and the responses expected for it, which may be
+     * pipelined.
+     */
+    private static final class PipelinedCommand {
+
+        private final int session;
+
+        private final String tag;
+
+        private final ClientRequest[] requests;
+
+        /**
+         * Untagged responses, in order. Each step is matched by a single line
+         * or, for unordered blocks, by each of its matchers once.
+         */
+        private final ServerResponse[] steps;
+
+        /** Matcher of each step */
+        private final UnorderedMatcher[] stepMatchers;
+
+        private final ServerResponse completion;
+
+        /** Index of the element following the command */
+        private final int end;
+
+        private PipelinedCommand(int session, String tag, ClientRequest[] requests, ServerResponse[] steps,
+                ServerResponse completion, int end) {
+            this.session = session;
+            this.tag = tag;
+            this.requests = requests;
+            this.steps = steps;
+            this.stepMatchers = new UnorderedMatcher[steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                stepMatchers[i] = matcherOf(steps[i]);
+            }
+            this.completion = completion;
+            this.end = end;
+        }
+
+        /**
+         * Parses the command starting at the given element.
+         * 
+         * @return the command, or null when the elements cannot be pipelined
+         */
+        static PipelinedCommand parse(List<ProtocolElement> elements, int start, int sessionCount) {
+            int index = start;
+            final List<ClientRequest> requests = new ArrayList<ClientRequest>(1);
+            while (index < elements.size() && elements.get(index) instanceof ClientRequest) {
+                requests.add((ClientRequest) elements.get(index++));
+            }
+            final List<ServerResponse> responses = new ArrayList<ServerResponse>();
+            while (index < elements.size() && elements.get(index) instanceof ServerResponse) {
+                responses.add((ServerResponse) elements.get(index++));
+            }
+            if (requests.isEmpty() || responses.isEmpty()) {
+                return null;
+            }
+            final int session = sessionOf(requests.get(0).sessionNumber, sessionCount);
+            if (session < 0) {
+                return null;
+            }
+            for (ClientRequest request : requests) {
+                if (sessionOf(request.sessionNumber, sessionCount) != session || request.isTemplated()) {
+                    return null;
+                }
+            }
+            for (ServerResponse response : responses) {
+                if (sessionOf(response.sessionNumber, sessionCount) != session || response.isTemplated()
+                        || response.capturesVariables()) {
+                    return null;
+                }
+            }
+            final String message = requests.get(0).message;
+            final int tagEnd = message.indexOf(' ');
+            if (tagEnd <= 0 || message.charAt(0) == '*' || message.charAt(0) == '+') {
+                return null;
+            }
+            final String tag = message.substring(0, tagEnd);
+            final ServerResponse completion = responses.remove(responses.size() - 1);
+            if (completion instanceof ServerUnorderedBlockResponse
+                    || !completion.expectedLine.startsWith(tag + " ")) {
+                return null;
+            }
+            for (ServerResponse response : responses) {
+                if (!(response instanceof ServerUnorderedBlockResponse)
+                        && response.expectedLine.startsWith(tag + " ")) {
+                    return null;
+                }
+            }
+            return new PipelinedCommand(session, tag, requests.toArray(new ClientRequest[requests.size()]),
+                    responses.toArray(new ServerResponse[responses.size()]), completion, index);
+        }
+
+        private static int sessionOf(int sessionNumber, int sessionCount) {
+            if (sessionNumber >= 0) {
+                return sessionNumber;
+            }
+            else if (sessionCount == 1) {
+                return 0;
+            }
+            else {
+                return -1;
+            }
+        }
+
+        private static UnorderedMatcher matcherOf(ServerResponse step) {
+            if (step instanceof ServerUnorderedBlockResponse) {
+                return ((ServerUnorderedBlockResponse) step).matcher;
+            }
+            else {
+                return new UnorderedMatcher(new LineMatcher[] { step.matcher });
+            }
+        }
+    }
+
+    /**
+     * Writes the requests of pipelined commands back to back.
+     */
+    private static class PipelinedRequests implements ProtocolElement {
+
+        private final List<PipelinedCommand> commands;
+
+        public PipelinedRequests(List<PipelinedCommand> commands) {
+            this.commands = commands;
+        }
+
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            for (PipelinedCommand command : commands) {
+                for (ClientRequest request : command.requests) {
+                    cursor.writeLine(command.session, request.message, request.encoded);
+                }
+            }
+        }
+
+        public boolean isClient() {
+            return true;
+        }
+
+        public int getSessionNumber() {
+            return commands.get(0).session;
+        }
+    }
+
+    /**
+     * Reads the responses of pipelined commands, correlating them with their
+     * commands: a tagged line completes the command with its tag, an untagged
+     * line is expected by the oldest command still waiting for one like it.
+     */
+    private static class PipelinedResponses implements ProtocolElement {
+
+        private final PipelinedCommand[] commands;
+
+        private final int session;
+
+        private final String location;
+
+        public PipelinedResponses(List<PipelinedCommand> commands) {
+            this.commands = commands.toArray(new PipelinedCommand[commands.size()]);
+            this.session = this.commands[0].session;
+            this.location = this.commands[0].completion.location;
+        }
+
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            final Progress[] progress = new Progress[commands.length];
+            for (int i = 0; i < commands.length; i++) {
+                progress[i] = new Progress(commands[i]);
+            }
+            int remaining = commands.length;
+            while (remaining > 0) {
+                final CharSequence line = readLine(cursor);
+                final int tagged = taggedCommand(line, progress);
+                if (tagged >= 0) {
+                    final PipelinedCommand command = commands[tagged];
+                    progress[tagged].completed = true;
+                    remaining--;
+                    if (!progress[tagged].isUntaggedComplete()) {
+                        fail(cursor, command.completion.location, "Expected: '"
+                                + command.steps[progress[tagged].step].expectedLine + "'\nActual   : '" + line
+                                + "'");
+                    }
+                    else if (!command.completion.matcher.matches(line)) {
+                        fail(cursor, command.completion.location, "Expected: '" + command.completion.expectedLine
+                                + "'\nActual   : '" + line + "'");
+                    }
+                }
+                else if (!acceptUntagged(line, progress)) {
+                    fail(cursor, location, "Unexpected: '" + line + "'");
+                }
+            }
+        }
+
+        private CharSequence readLine(ScriptCursor cursor) throws Exception {
+            try {
+                return cursor.readLine(session, location);
+            }
+            catch (IOException e) {
+                throw new InvalidServerResponseException("\nLocation: " + location
+                        + "\nExpected: pipelined responses\nReason: Server Timeout.");
+            }
+        }
+
+        /**
+         * Finds the command completed by the line.
+         * 
+         * @return index of the command, or -1 when the line is not tagged
+         *         with the tag of a command still waiting
+         */
+        private int taggedCommand(CharSequence line, Progress[] progress) {
+            for (int i = 0; i < commands.length; i++) {
+                if (!progress[i].completed && isTagged(line, commands[i].tag)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean isTagged(CharSequence line, String tag) {
+            final int length = tag.length();
+            if (line.length() <= length || line.charAt(length) != ' ') {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (line.charAt(i) != tag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean acceptUntagged(CharSequence line, Progress[] progress) {
+            for (int i = 0; i < commands.length; i++) {
+                if (!progress[i].completed && progress[i].accept(line)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void fail(ScriptCursor cursor, String location, String message)
+                throws InvalidServerResponseException {
+            final String errMsg = "\nLocation: " + location + "\nPipelined: " + commands.length + " commands\n"
+                    + message;
+            if (cursor.isContinueAfterFailure()) {
+                System.out.println(errMsg);
+            }
+            else {
+                throw new InvalidServerResponseException(errMsg);
+            }
+        }
+
+        public boolean isClient() {
+            return false;
+        }
+
+        public int getSessionNumber() {
+            return session;
+        }
+
+        /**
+         * The untagged responses a command has received so far.
+         */
+        private static final class Progress {
+
+            private final PipelinedCommand command;
+
+            private int step = 0;
+
+            /** Lines of the current step not yet matched */
+            private UnorderedMatcher.State pending;
+
+            private boolean completed = false;
+
+            Progress(PipelinedCommand command) {
+                this.command = command;
+                startStep();
+            }
+
+            private void startStep() {
+                if (step < command.steps.length) {
+                    pending = command.stepMatchers[step].newState();
+                }
+            }
+
+            boolean isUntaggedComplete() {
+                return step == command.steps.length;
+            }
+
+            boolean accept(CharSequence line) {
+                if (isUntaggedComplete()) {
+                    return false;
+                }
+                if (!pending.accept(line)) {
+                    return false;
+                }
+                if (pending.isComplete()) {
+                    step++;
+                    startStep();
+                }
+                return true;
+            }
+        }
     }
 
-    private class ContinuationElement implements ProtocolElement {
+    /**
+     * Reads a continuation request and then writes the client lines which
+     * follow it. In-process sessions request the continuation through
+     * {@link ScriptCursor#doContinue()} while the line is being read, socket
+     * sessions simply return the continuation request line.
+     */
+    private static class ContinuationElement implements ProtocolElement {
 
         private final int sessionNumber;
 
@@ -473,70 +1133,88 @@ public class ProtocolSession implements ProtocolInteractor {
             this.sessionNumber = sessionNumber < 0 ? 0 : sessionNumber;
         }
 
-        public void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception {
-            Session session = sessions[sessionNumber];
-            continuationExpected = true;
-            continued = false;
-            String testLine = session.readLine();
-            if (!"+".equals(testLine) || !continued) {
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            if (cursor.skipContinuation(sessionNumber)) {
+                // the literal was sent as LITERAL+, the payload follows at once
+                return;
+            }
+            cursor.expectContinuation();
+            CharSequence testLine = cursor.readLine(sessionNumber, null);
+            final boolean continued = cursor.endContinuation();
+            if (!isContinuationRequest(testLine)) {
                 final String message = "Expected continuation";
-                if (continueAfterFailure) {
+                if (cursor.isContinueAfterFailure()) {
                     System.out.print(message);
                 }
                 else {
                     throw new InvalidServerResponseException(message);
                 }
             }
-            continuationExpected = false;
-            continued = false;
-
-            if (nextTest != null) {
-                nextTest.testProtocol(sessions, continueAfterFailure);
+            else if (!continued) {
+                cursor.writeContinuation();
             }
         }
 
+        private boolean isContinuationRequest(CharSequence line) {
+            return line.length() > 0 && line.charAt(0) == '+' && (line.length() == 1 || line.charAt(1) == ' ');
+        }
+
         public boolean isClient() {
             return false;
         }
+
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
     }
 
     /**
      * Allow you to wait a given time at a given point of the test script
      */
-    private class WaitElement implements ProtocolElement {
+    private static class WaitElement implements ProtocolElement {
+
+        private final int sessionNumber;
 
         private final long timeToWaitInMs;
 
-        public WaitElement(long timeToWaitInMs) {
+        public WaitElement(int sessionNumber, long timeToWaitInMs) {
+            this.sessionNumber = sessionNumber;
             this.timeToWaitInMs = timeToWaitInMs;
         }
 
         @Override
-        public void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception {
-            Thread.sleep(timeToWaitInMs);
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            cursor.sleep(timeToWaitInMs);
         }
 
         @Override
         public boolean isClient() {
             return false;
         }
+
+        @Override
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
     }
 
     /**
      * Allow you to wait a given time at a given point of the test script
      */
-    private class LogElement implements ProtocolElement {
+    private static class LogElement implements ProtocolElement {
 
+        private final int sessionNumber;
         private final LolLevel level;
         private final String message;
 
-        public LogElement(LolLevel level, String message) {
+        public LogElement(int sessionNumber, LolLevel level, String message) {
+            this.sessionNumber = sessionNumber;
             this.level = level;
             this.message = message;
         }
 
         @Override
-        public void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception {
+        public void testProtocol(ScriptCursor cursor) throws Exception {
             switch (level) {
             case Debug:
                 LOGGER.debug(message);
@@ -557,25 +1235,99 @@ public class ProtocolSession implements ProtocolInteractor {
         public boolean isClient() {
             return false;
         }
+
+        @Override
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
     }
 
     /**
-     * Represents a generic protocol element, which may write requests to the
-     * server, read responses from the server, or both. Implementations should
-     * test the server response against an expected response, and throw an
-     * exception on mismatch.
+     * A named barrier. When sessions run concurrently, each session reaching
+     * the barrier waits for the other sessions which declare it.
      */
-    private interface ProtocolElement {
+    static final class SyncElement implements ProtocolElement {
+
+        private final int sessionNumber;
+
+        private final String name;
+
+        public SyncElement(int sessionNumber, String name) {
+            this.sessionNumber = sessionNumber;
+            this.name = name;
+        }
+
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            cursor.sync(name);
+        }
+
+        public boolean isClient() {
+            return false;
+        }
+
+        public int getSessionNumber() {
+            return sessionNumber;
+        }
+
         /**
-         * Executes the ProtocolElement against the supplied session.
-         * 
-         * @param continueAfterFailure
-         *            TODO
-         * @throws Exception
+         * Gets the name of the barrier.
          */
-        void testProtocol(Session[] sessions, boolean continueAfterFailure) throws Exception;
+        String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Starts an iteration of a REPEAT block, or skips the block when it is
+     * not to be run at all.
+     */
+    static final class RepeatStart implements ProtocolElement {
+
+        private final int count;
+
+        private final String variable;
+
+        public RepeatStart(int count, String variable) {
+            this.count = count;
+            this.variable = variable;
+        }
+
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            cursor.enterLoop(count, variable);
+        }
+
+        public boolean isClient() {
+            return false;
+        }
+
+        public int getSessionNumber() {
+            return -1;
+        }
+    }
 
-        boolean isClient();
+    /**
+     * Ends an iteration of a REPEAT block, going back to its start until all
+     * iterations have run.
+     */
+    static final class RepeatEnd implements ProtocolElement {
+
+        private final RepeatStart start;
+
+        public RepeatEnd(RepeatStart start) {
+            this.start = start;
+        }
+
+        public void testProtocol(ScriptCursor cursor) throws Exception {
+            cursor.endLoop(start.count, start.variable);
+        }
+
+        public boolean isClient() {
+            return false;
+        }
+
+        public int getSessionNumber() {
+            return -1;
+        }
     }
 
     /**
@@ -598,11 +1350,9 @@ public class ProtocolSession implements ProtocolInteractor {
     public String toString() {
         final String TAB = " ";
 
-        String result = "ProtocolSession ( " + "continued = " + this.continued + TAB + "continuationExpected = "
-                + this.continuationExpected + TAB + "maxSessionNumber = " + this.maxSessionNumber + TAB
-                + "testElements = " + this.testElements + TAB + "elementsIterator = " + this.elementsIterator + TAB
-                + "sessions = " + this.sessions + TAB + "nextTest = " + this.nextTest + TAB + "continueAfterFailure = "
-                + this.continueAfterFailure + TAB + " )";
+        String result = "ProtocolSession ( " + "maxSessionNumber = " + this.maxSessionNumber + TAB
+                + "testElements = " + this.testElements + TAB + "cursor = " + this.cursor + TAB
+                + "continueAfterFailure = " + this.continueAfterFailure + TAB + " )";
 
         return result;
     }
@@ -20,13 +20,14 @@
 package org.apache.james.mpt.protocol;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Properties;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mpt.api.ProtocolInteractor;
 
 
@@ -43,6 +44,10 @@ public class ProtocolSessionBuilder {
 
     public static final String WAIT = "WAIT";
 
+    public static final String SYNC = "SYNC ";
+
+    public static final String REPEAT = "REPEAT ";
+
     public static final String SERVER_CONTINUATION_TAG = "S: \\+";
 
     public static final String CLIENT_TAG = "C:";
@@ -125,6 +130,42 @@ public class ProtocolSessionBuilder {
         addProtocolLines(fileName, is, session);
     }
 
+    /**
+     * Adds all protocol elements from a script file to the session supplied.
+     * Compiled scripts, and scripts compiled since they were last modified
+     * when no variables are set, are memory mapped rather than parsed.
+     * 
+     * @param file
+     *            script or compiled script, not null
+     * @param session
+     *            The ProtocolSession to add the elements to.
+     * @see ScriptCompiler
+     */
+    public void addScriptFile(File file, ProtocolInteractor session) throws Exception {
+        final CompiledScript compiled;
+        if (CompiledScript.isCompiled(file)) {
+            compiled = CompiledScript.map(file, file.getName());
+        }
+        else if (variables.isEmpty()) {
+            compiled = CompiledScript.open(file.toURI().toURL(), file.getName());
+        }
+        else {
+            compiled = null;
+        }
+        if (compiled == null) {
+            final InputStream is = new FileInputStream(file);
+            try {
+                addProtocolLines(file.getName(), is, session);
+            }
+            finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        else {
+            compiled.replay(session);
+        }
+    }
+
     /**
      * Reads ProtocolElements from the supplied InputStream and adds them to the
      * ProtocolSession.
@@ -173,95 +214,44 @@ public class ProtocolSessionBuilder {
      *            The name of the source file, for error messages.
      */
     private void doAddProtocolLines(ProtocolInteractor session, String scriptName, BufferedReader reader) throws Exception {
-        String line;
-        int sessionNumber = -1;
-        int lineNumber = -1;
-        String lastClientMsg = "";
-        while ((line = reader.readLine()) != null) {
-            line = substituteVariables(line);
-            String location = scriptName + ":" + lineNumber;
-            if (SERVER_CONTINUATION_TAG.equals(line)) {
-                session.CONT(sessionNumber);
-            } else if (line.startsWith(CLIENT_TAG)) {
-                String clientMsg = "";
-                if (line.length() > 3) {
-                    clientMsg = line.substring(3);
-                }
-                session.CL(sessionNumber, clientMsg);
-                lastClientMsg = clientMsg;
-            } else if (line.startsWith(SERVER_TAG)) {
-                String serverMsg = "";
-                if (line.length() > 3) {
-                    serverMsg = line.substring(3);
-                }
-                session.SL(sessionNumber, serverMsg, location, lastClientMsg);
-            } else if (line.startsWith(OPEN_UNORDERED_BLOCK_TAG)) {
-                List<String> unorderedLines = new ArrayList<String>(5);
-                line = reader.readLine();
-
-                while (!line.startsWith(CLOSE_UNORDERED_BLOCK_TAG)) {
-                    if (!line.startsWith(SERVER_TAG)) {
-                        throw new Exception(
-                                "Only 'S: ' lines are permitted inside a 'SUB {' block.");
-                    }
-                    String serverMsg = line.substring(3);
-                    unorderedLines.add(serverMsg);
-                    line = reader.readLine();
-                    lineNumber++;
-                }
+        newParser(scriptName, reader).parseAll(session);
+    }
 
-                session.SUB(sessionNumber, unorderedLines, location,
-                        lastClientMsg);
-            } else if (line.startsWith(COMMENT_TAG)
-                    || line.trim().length() == 0) {
-                // ignore these lines.
-            } else if (line.startsWith(SESSION_TAG)) {
-                String number = line.substring(SESSION_TAG.length()).trim();
-                if (number.length() == 0) {
-                    throw new Exception("No session number specified");
-                }
-                sessionNumber = Integer.parseInt(number);
-            } else {
-                String prefix = line;
-                if (line.length() > 3) {
-                    prefix = line.substring(0, 3);
-                }
-                throw new Exception("Invalid line prefix: " + prefix);
-            }
-            lineNumber++;
+    /**
+     * Opens a script which is parsed while it runs, just ahead of the
+     * elements being executed, rather than all at once. Memory used does
+     * not depend on the length of the script.
+     * 
+     * @param scriptName
+     *            The name of the source file, for error messages.
+     * @param reader
+     *            the reader containing the protocol definition, closed once
+     *            the script has run.
+     * @param sessionCount
+     *            number of sessions used by the script
+     * @return not null
+     */
+    public StreamingScript openStreamingScript(String scriptName, Reader reader, int sessionCount) {
+        final BufferedReader bufferedReader;
+        if (reader instanceof BufferedReader) {
+            bufferedReader = (BufferedReader) reader;
+        } else {
+            bufferedReader = new BufferedReader(reader);
         }
+        return new StreamingScript(newParser(scriptName, bufferedReader), bufferedReader, sessionCount);
     }
 
     /**
-     * Replaces ${<code>NAME</code>} with variable value.
-     * @param line not null
+     * Gets the substitution variables.
+     * 
      * @return not null
      */
-    private String substituteVariables(String line) {
-        if (variables.size() > 0) {
-            final StringBuffer buffer = new StringBuffer(line);
-            int start = 0;
-            int end = 0;
-            while (start >= 0 && end >= 0) { 
-                start = buffer.indexOf("${", end);
-                if (start < 0) {
-                    break;
-                }
-                end = buffer.indexOf("}", start);
-                if (end < 0) {
-                    break;
-                }
-                final String name = buffer.substring(start+2, end);
-                final String value = variables.getProperty(name);
-                if (value != null) {
-                    buffer.replace(start, end + 1, value);
-                    final int variableLength = (end - start + 2);
-                    end = end + (value.length() - variableLength);
-                }
-            }
-            line = buffer.toString();
-        }
-        return line;
+    Properties getVariables() {
+        return variables;
+    }
+
+    ScriptParser newParser(String scriptName, BufferedReader reader) {
+        return new ScriptParser(scriptName, reader, variables);
     }
 
 }
@@ -0,0 +1,162 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Caches parsed scripts by resource and variable bindings, so that a script
+ * is parsed once however many tests and locales run it.
+ * </p>
+ * <p>
+ * Parsed scripts are immutable, a cache may be shared between threads. The
+ * {@link #getShared() shared} cache lives as long as the JVM: scripts are
+ * parsed once per build rather than once per test.
+ * </p>
+ * <p>
+ * When no variables are bound, scripts precompiled by {@link ScriptCompiler}
+ * are loaded instead of their source.
+ * </p>
+ */
+public final class ScriptCache {
+
+    private static final ScriptCache SHARED = new ScriptCache();
+
+    /**
+     * Gets the cache shared by the whole JVM.
+     * 
+     * @return not null
+     */
+    public static ScriptCache getShared() {
+        return SHARED;
+    }
+
+    private final ConcurrentMap<Key, ParsedScript> scripts = new ConcurrentHashMap<Key, ParsedScript>();
+
+    /**
+     * Gets the script parsed from the given resource with the variables of
+     * the builder, parsing it when it is not cached yet.
+     * 
+     * @param resource
+     *            location of the script, not null
+     * @param scriptName
+     *            name of the script, for error messages
+     * @param builder
+     *            builder whose variables are substituted, not null
+     * @return not null
+     * @throws Exception
+     *             when the script cannot be read or parsed
+     */
+    public ParsedScript get(URL resource, String scriptName, ProtocolSessionBuilder builder) throws Exception {
+        final Key key = new Key(resource.toExternalForm(), builder.getVariables());
+        ParsedScript script = scripts.get(key);
+        if (script == null) {
+            script = parse(resource, scriptName, builder);
+            final ParsedScript cached = scripts.putIfAbsent(key, script);
+            if (cached != null) {
+                script = cached;
+            }
+        }
+        return script;
+    }
+
+    private ParsedScript parse(URL resource, String scriptName, ProtocolSessionBuilder builder) throws Exception {
+        final ProtocolSession session = new ProtocolSession();
+        final CompiledScript compiled;
+        if (builder.getVariables().isEmpty()) {
+            compiled = CompiledScript.open(resource, scriptName);
+        }
+        else {
+            compiled = null;
+        }
+        if (compiled == null) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openStream()));
+            try {
+                builder.newParser(scriptName, reader).parseAll(session);
+            }
+            finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+        else {
+            compiled.replay(session);
+        }
+        return new ParsedScript(scriptName, session);
+    }
+
+    /**
+     * Gets the number of scripts cached.
+     */
+    public int size() {
+        return scripts.size();
+    }
+
+    /**
+     * Removes all scripts from the cache.
+     */
+    public void clear() {
+        scripts.clear();
+    }
+
+    private static final class Key {
+
+        private final String resource;
+
+        private final Map<Object, Object> variables;
+
+        Key(String resource, Properties variables) {
+            this.resource = resource;
+            this.variables = new HashMap<Object, Object>(variables);
+        }
+
+        public int hashCode() {
+            return resource.hashCode() * 31 + variables.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return resource.equals(other.resource) && variables.equals(other.variables);
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ScriptCache ( " + "scripts = " + this.scripts.size() + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,335 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>
+ * Compiles scripts into the binary format read by {@link CompiledScript}.
+ * Scripts are parsed with the variables of the builder used, scripts
+ * compiled by {@link #main(String[])} are compiled without variables.
+ * </p>
+ * <p>
+ * Run as a build step, compiles every <code>.test</code> script found in the
+ * given directories next to its source:
+ * <code>java org.apache.james.mpt.protocol.ScriptCompiler dir...</code>.
+ * Scripts compiled since their source was last modified are skipped.
+ * </p>
+ */
+public final class ScriptCompiler {
+
+    static final String SCRIPT_EXTENSION = ".test";
+
+    /**
+     * Compiles the scripts of the given directories, and of their
+     * subdirectories.
+     * 
+     * @param args
+     *            directories, not null
+     */
+    public static void main(String[] args) throws Exception {
+        final ScriptCompiler compiler = new ScriptCompiler(new ProtocolSessionBuilder());
+        int compiled = 0;
+        for (String directory : args) {
+            compiled += compiler.compileDirectory(new File(directory));
+        }
+        System.out.println("Compiled " + compiled + " scripts");
+    }
+
+    private final ProtocolSessionBuilder builder;
+
+    /**
+     * Constructs a compiler.
+     * 
+     * @param builder
+     *            builder whose variables are substituted, not null
+     */
+    public ScriptCompiler(ProtocolSessionBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Compiles the out of date scripts of a directory and of its
+     * subdirectories.
+     * 
+     * @param directory
+     *            not null
+     * @return number of scripts compiled
+     */
+    public int compileDirectory(File directory) throws Exception {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        int compiled = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                compiled += compileDirectory(file);
+            }
+            else if (file.getName().endsWith(SCRIPT_EXTENSION)) {
+                final File target = new File(file.getPath() + CompiledScript.EXTENSION);
+                if (!target.isFile() || target.lastModified() < file.lastModified()) {
+                    compileFile(file, target);
+                    compiled++;
+                }
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles into memory first, so that a script which cannot be parsed
+     * leaves no compiled file behind.
+     */
+    private void compileFile(File source, File target) throws Exception {
+        final ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+        final Reader reader = new InputStreamReader(new FileInputStream(source));
+        try {
+            compile(source.getName(), reader, compiled);
+        }
+        finally {
+            IOUtils.closeQuietly(reader);
+        }
+        final File temporary = new File(target.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(temporary);
+        try {
+            compiled.writeTo(out);
+        }
+        catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            temporary.delete();
+            throw e;
+        }
+        out.close();
+        target.delete();
+        if (!temporary.renameTo(target)) {
+            temporary.delete();
+            throw new IOException("Cannot rename " + temporary + " to " + target);
+        }
+    }
+
+    /**
+     * Compiles a script.
+     * 
+     * @param scriptName
+     *            The name of the source file, for error messages.
+     * @param reader
+     *            the reader containing the protocol definition, not closed
+     * @param out
+     *            the compiled script is written to this stream, not closed
+     * @throws Exception
+     *             when the script cannot be parsed
+     */
+    public void compile(String scriptName, Reader reader, OutputStream out) throws Exception {
+        final Recorder recorder = new Recorder(scriptName);
+        builder.newParser(scriptName, new BufferedReader(reader)).parseAll(recorder);
+        recorder.writeTo(out);
+    }
+
+    /**
+     * Records the elements parsed.
+     */
+    private static final class Recorder extends ProtocolSession {
+
+        private final String locationPrefix;
+
+        private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream elements = new DataOutputStream(bytes);
+
+        private int count = 0;
+
+        Recorder(String scriptName) {
+            this.locationPrefix = scriptName + ":";
+        }
+
+        private void element(byte kind, int sessionNumber) {
+            try {
+                elements.writeByte(kind);
+                elements.writeInt(sessionNumber);
+                count++;
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void string(String value) {
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(value, id);
+                strings.add(value);
+            }
+            integer(id);
+        }
+
+        private void location(String location) {
+            if (!location.startsWith(locationPrefix)) {
+                throw new IllegalArgumentException("Unexpected location " + location);
+            }
+            integer(Integer.parseInt(location.substring(locationPrefix.length())));
+        }
+
+        private void integer(int value) {
+            try {
+                elements.writeInt(value);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            final DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(CompiledScript.MAGIC);
+            data.writeShort(CompiledScript.VERSION);
+            data.writeInt(strings.size());
+            for (String value : strings) {
+                final byte[] encoded = value.getBytes(CompiledScript.UTF8.name());
+                data.writeInt(encoded.length);
+                data.write(encoded);
+            }
+            data.writeInt(count);
+            elements.flush();
+            bytes.writeTo(data);
+            data.flush();
+        }
+
+        @Override
+        public void CL(String clientLine) {
+            CL(-1, clientLine);
+        }
+
+        @Override
+        public void SL(String serverLine, String location) {
+            SL(-1, serverLine, location, "");
+        }
+
+        @Override
+        public void SUB(List<String> serverLines, String location) {
+            SUB(-1, serverLines, location, "");
+        }
+
+        @Override
+        public void CL(int sessionNumber, String clientLine) {
+            element(CompiledScript.CLIENT, sessionNumber);
+            string(clientLine);
+        }
+
+        @Override
+        public void CONT(int sessionNumber) {
+            element(CompiledScript.CONTINUATION, sessionNumber);
+        }
+
+        @Override
+        public void SL(int sessionNumber, String serverLine, String location, String lastClientMessage) {
+            element(CompiledScript.SERVER, sessionNumber);
+            string(serverLine);
+            location(location);
+            string(lastClientMessage);
+        }
+
+        @Override
+        public void SUB(int sessionNumber, List<String> serverLines, String location, String lastClientMessage) {
+            element(CompiledScript.UNORDERED, sessionNumber);
+            integer(serverLines.size());
+            for (String line : serverLines) {
+                string(line);
+            }
+            location(location);
+            string(lastClientMessage);
+        }
+
+        @Override
+        public void WAIT(int sessionNumber, long timeToWaitInMs) {
+            element(CompiledScript.WAIT, sessionNumber);
+            try {
+                elements.writeLong(timeToWaitInMs);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void LOG(int sessionNumber, LolLevel level, String message) {
+            element(CompiledScript.LOG, sessionNumber);
+            try {
+                elements.writeByte(level.ordinal());
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            string(message);
+        }
+
+        @Override
+        public void SYNC(int sessionNumber, String name) {
+            element(CompiledScript.SYNC, sessionNumber);
+            string(name);
+        }
+
+        @Override
+        public void REPEAT(int count, String variable) {
+            element(CompiledScript.REPEAT, -1);
+            integer(count);
+            if (variable == null) {
+                integer(-1);
+            }
+            else {
+                string(variable);
+            }
+        }
+
+        @Override
+        public void REPEAT_END() {
+            element(CompiledScript.REPEAT_END, -1);
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ScriptCompiler ( " + "builder = " + this.builder + TAB + " )";
+
+        return result;
+    }
+}
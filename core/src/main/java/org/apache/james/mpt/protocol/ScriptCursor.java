@@ -0,0 +1,716 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+
+import org.apache.james.mpt.api.ByteSession;
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.ResumableSession;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.exception.SessionNotReadyException;
+
+/**
+ * A single run of a {@link ScriptPlan}.
+ * <p>
+ * The cursor holds everything which changes while a plan is executed: the
+ * sessions, the position of the next element and the continuation state. It
+ * is cheap to create, one per run, and is not thread safe.
+ * </p>
+ * <p>
+ * A cursor either runs to completion with {@link #run(Session[])}, blocking
+ * on each read, or is driven by an event loop with {@link #begin(Session[])}
+ * and {@link #resume()} against {@link ResumableSession}s. When the plan runs
+ * {@link ScriptPlan#isConcurrentSessions() sessions concurrently},
+ * {@link #run(Session[])} runs each session with a cursor of its own, on a
+ * thread of its own.
+ * </p>
+ */
+public final class ScriptCursor implements Continuation {
+
+    /** Cursor of the session run by the current thread, when concurrent */
+    private static final ThreadLocal<ScriptCursor> CURRENT_STREAM = new ThreadLocal<ScriptCursor>();
+
+    private final ScriptPlan plan;
+
+    private int position;
+
+    private Session[] sessions;
+
+    private ScriptObserver observer;
+
+    private boolean resumable = false;
+
+    private long wakeUpTime = 0;
+
+    private boolean continued = false;
+
+    private boolean continuationExpected = false;
+
+    /** Sessions whose server advertised LITERAL+, when the plan uses it */
+    private boolean[] literalPlus;
+
+    /** Sessions which sent a literal without waiting for continuation */
+    private boolean[] literalSent;
+
+    /** Session run by this cursor, or -1 when this cursor runs all sessions */
+    private int scope = -1;
+
+    /** Barriers shared with the cursors of the other sessions, or null */
+    private Map<String, Barrier> barriers;
+
+    /** Cursors of the sessions running concurrently, or null */
+    private volatile ScriptCursor[] streams;
+
+    /** Values of the variables left in the plan, or null */
+    private Bindings bindings;
+
+    /** Iteration of each REPEAT block being run, innermost last */
+    private int[] loops;
+
+    private int loopDepth = 0;
+
+    /** Values of the variables of the REPEAT blocks being run, or null */
+    private Map<String, String> loopVariables;
+
+    /**
+     * Values resolved by the element being resumed, as element, session and
+     * value triples, or null. Kept until the element completes, so that an
+     * element run again after a rollback substitutes no variable twice.
+     */
+    private List<Object[]> resolved;
+
+    ScriptCursor(ScriptPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * Executes the plan in real time against the sessions supplied, writing
+     * client requests and reading server responses in the order that they
+     * appear in the plan. The index of a session in the array corresponds to
+     * the number of the session. If an exception occurs, no more elements are
+     * executed.
+     * 
+     * @param sessions
+     *            not null, at least {@link ScriptPlan#getSessionCount()} long
+     */
+    public void run(Session[] sessions) throws Exception {
+        if (plan.isConcurrentSessions()) {
+            runConcurrently(sessions);
+            return;
+        }
+        begin(sessions);
+        resumable = false;
+        while (position < plan.size()) {
+            plan.get(position++).testProtocol(this);
+        }
+    }
+
+    /**
+     * Runs each session on its own thread, the calling thread running the
+     * first session. Sessions only wait for each other at barriers. When a
+     * session fails, sessions waiting at, or later reaching, a barrier fail
+     * too.
+     */
+    private void runConcurrently(final Session[] sessions) throws Exception {
+        this.sessions = sessions;
+        position = 0;
+        final int count = plan.getSessionCount();
+        final Map<String, Barrier> shared = new HashMap<String, Barrier>();
+        for (String name : plan.getBarrierNames()) {
+            shared.put(name, new Barrier(plan.getBarrierParties(name)));
+        }
+        prepareLiteralPlus(sessions);
+        final ScriptCursor[] cursors = new ScriptCursor[count];
+        for (int i = 0; i < count; i++) {
+            cursors[i] = plan.getStream(i).newCursor();
+            // each stream only updates the state of its own session
+            cursors[i].carryOver(this);
+            cursors[i].observer = observer;
+            cursors[i].bindings = bindings;
+            cursors[i].scope = i;
+            cursors[i].barriers = shared;
+        }
+        streams = cursors;
+        final Exception[] failures = new Exception[count];
+        final Thread[] threads = new Thread[count];
+        try {
+            for (int i = 1; i < count; i++) {
+                final int session = i;
+                threads[i] = new Thread("mpt-session-" + i) {
+                    public void run() {
+                        failures[session] = cursors[session].runStream(sessions);
+                    }
+                };
+                threads[i].start();
+            }
+            failures[0] = cursors[0].runStream(sessions);
+        }
+        finally {
+            for (int i = 1; i < count; i++) {
+                if (threads[i] != null) {
+                    threads[i].join();
+                }
+            }
+            streams = null;
+        }
+        position = plan.size();
+        Exception failure = null;
+        for (int i = 0; i < count; i++) {
+            if (failures[i] != null && (failure == null || failure instanceof BrokenBarrierException)) {
+                failure = failures[i];
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs the session of this cursor, aborting the barriers when it fails.
+     * 
+     * @return the failure, or null when the session completed
+     */
+    private Exception runStream(Session[] sessions) {
+        CURRENT_STREAM.set(this);
+        try {
+            run(sessions);
+            return null;
+        }
+        catch (Exception e) {
+            for (Barrier barrier : barriers.values()) {
+                barrier.abort();
+            }
+            return e;
+        }
+        finally {
+            CURRENT_STREAM.remove();
+        }
+    }
+
+    /**
+     * Positions this cursor at the start of the plan, ready to be
+     * {@link #resume()}d.
+     * 
+     * @param sessions
+     *            not null, at least {@link ScriptPlan#getSessionCount()} long
+     */
+    public void begin(Session[] sessions) {
+        this.sessions = sessions;
+        position = 0;
+        loopDepth = 0;
+        wakeUpTime = 0;
+        resolved = null;
+        prepareLiteralPlus(sessions);
+    }
+
+    private void prepareLiteralPlus(Session[] sessions) {
+        if (plan.isLiteralPlus() && (literalPlus == null || literalPlus.length != sessions.length)) {
+            literalPlus = new boolean[sessions.length];
+            literalSent = new boolean[sessions.length];
+        }
+    }
+
+    /**
+     * Continues the state of the sessions from the cursor which ran the
+     * previous part of the script, such as the capabilities advertised.
+     * Values captured by the previous part stay bound, unless bindings of
+     * their own have been set. Must be called before the run begins.
+     * 
+     * @param previous
+     *            cursor run on the same sessions, or null
+     */
+    public void carryOver(ScriptCursor previous) {
+        if (previous != null) {
+            literalPlus = previous.literalPlus;
+            literalSent = previous.literalSent;
+            if (bindings == null) {
+                bindings = previous.captures();
+            }
+        }
+    }
+
+    /**
+     * Executes elements until the plan completes or an element cannot
+     * complete without more input. An element which runs out of input is
+     * rolled back, together with the lines it has read from
+     * {@link ResumableSession}s, and is executed again by the next call.
+     * 
+     * @return true when the plan has completed, false when more input or time
+     *         is needed
+     * @throws Exception
+     *             when the script fails
+     */
+    public boolean resume() throws Exception {
+        resumable = true;
+        while (position < plan.size()) {
+            final int start = position;
+            try {
+                plan.get(position++).testProtocol(this);
+            }
+            catch (SessionNotReadyException e) {
+                position = start;
+                rollback();
+                return false;
+            }
+            commit();
+            resolved = null;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the time at which a suspended wait element may proceed.
+     * 
+     * @return milliseconds since the epoch, or zero when not waiting
+     */
+    public long getWakeUpTime() {
+        return wakeUpTime;
+    }
+
+    /**
+     * Is the plan complete?
+     */
+    public boolean isComplete() {
+        return sessions != null && position >= plan.size();
+    }
+
+    /**
+     * Writes the client elements following a continuation request, stopping
+     * at the next server element.
+     */
+    public void doContinue() {
+        if (streams != null && CURRENT_STREAM.get() != null) {
+            // in-process sessions continue on the thread of their session
+            CURRENT_STREAM.get().doContinue();
+        }
+        else if (continuationExpected) {
+            continued = true;
+            writeContinuation();
+        }
+        else {
+            throw new RuntimeException("Unexpected continuation");
+        }
+    }
+
+    /**
+     * Writes the client elements which follow the current position. The
+     * cursor is left at the next server element.
+     */
+    void writeContinuation() {
+        try {
+            while (position < plan.size() && plan.get(position).isClient()) {
+                plan.get(position++).testProtocol(this);
+            }
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public ScriptPlan getPlan() {
+        return plan;
+    }
+
+    public boolean isContinueAfterFailure() {
+        return plan.isContinueAfterFailure();
+    }
+
+    /**
+     * Sets the observer notified of the lines written and read by this
+     * cursor.
+     * 
+     * @param observer
+     *            or null
+     */
+    public void setObserver(ScriptObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Sets the values of the variables which were not substituted when the
+     * script was parsed.
+     * 
+     * @param bindings
+     *            or null to leave variables as written
+     */
+    public void setBindings(Bindings bindings) {
+        this.bindings = bindings;
+    }
+
+    /**
+     * Gets the bindings variables captured from responses are bound to,
+     * creating them when the run has none.
+     * 
+     * @return not null
+     */
+    Bindings captures() {
+        if (bindings == null) {
+            bindings = new Bindings();
+        }
+        return bindings;
+    }
+
+    /**
+     * Gets a value resolved by an element which has not completed yet.
+     * 
+     * @param element
+     *            not null
+     * @param session
+     *            session the value was resolved for
+     * @return the value kept by {@link #keepResolved(Object, int, Object)},
+     *         or null
+     */
+    Object getResolved(Object element, int session) {
+        if (resolved != null) {
+            for (Object[] entry : resolved) {
+                if (entry[0] == element && ((Integer) entry[1]) == session) {
+                    return entry[2];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps a value resolved by an element until it completes, when the
+     * element may be rolled back and run again.
+     */
+    void keepResolved(Object element, int session, Object value) {
+        if (resumable) {
+            if (resolved == null) {
+                resolved = new ArrayList<Object[]>(2);
+            }
+            resolved.add(new Object[] { element, session, value });
+        }
+    }
+
+    /**
+     * Substitutes the variables bound for this run.
+     * 
+     * @return not null
+     */
+    String resolve(Template template) {
+        if (bindings == null && loopDepth == 0) {
+            return template.getSource();
+        }
+        return template.resolve(loopDepth == 0 ? null : loopVariables, bindings);
+    }
+
+    /**
+     * Starts the first iteration of the REPEAT block whose start has just
+     * been executed, or skips the block.
+     */
+    void enterLoop(int count, String variable) {
+        if (count <= 0) {
+            position = plan.getJump(position - 1) + 1;
+            return;
+        }
+        if (loops == null) {
+            loops = new int[4];
+            loopVariables = new HashMap<String, String>();
+        }
+        else if (loops.length == loopDepth) {
+            final int[] grown = new int[loopDepth * 2];
+            System.arraycopy(loops, 0, grown, 0, loopDepth);
+            loops = grown;
+        }
+        loops[loopDepth++] = 1;
+        if (variable != null) {
+            loopVariables.put(variable, "1");
+        }
+    }
+
+    /**
+     * Starts the next iteration of the REPEAT block whose end has just been
+     * executed, or leaves the block after its last iteration.
+     */
+    void endLoop(int count, String variable) {
+        final int iteration = ++loops[loopDepth - 1];
+        if (iteration <= count) {
+            if (variable != null) {
+                loopVariables.put(variable, Integer.toString(iteration));
+            }
+            position = plan.getJump(position - 1) + 1;
+        }
+        else {
+            loopDepth--;
+            if (variable != null) {
+                loopVariables.remove(variable);
+            }
+        }
+    }
+
+    int getSessionCount() {
+        return sessions.length;
+    }
+
+    /**
+     * Is the given session run by this cursor? Elements applying to all
+     * sessions only read from and write to the sessions in scope.
+     */
+    boolean isInScope(int sessionNumber) {
+        return scope < 0 || scope == sessionNumber;
+    }
+
+    /**
+     * Waits for the other sessions declaring the named barrier. Does nothing
+     * unless sessions run concurrently.
+     */
+    void sync(String name) throws Exception {
+        if (barriers != null) {
+            barriers.get(name).await();
+        }
+    }
+
+    /**
+     * Writes a line to the given session.
+     */
+    void writeLine(int sessionNumber, String line) throws Exception {
+        if (observer != null) {
+            observer.requestWritten(sessionNumber, line);
+        }
+        sessions[sessionNumber].writeLine(line);
+    }
+
+    /**
+     * Writes a line to the given session, sending the encoded form to
+     * {@link ByteSession}s.
+     * 
+     * @param encoded
+     *            US-ASCII encoding of the line, not modified
+     */
+    void writeLine(int sessionNumber, String line, byte[] encoded) throws Exception {
+        if (observer != null) {
+            observer.requestWritten(sessionNumber, line);
+        }
+        final Session session = sessions[sessionNumber];
+        if (session instanceof ByteSession) {
+            ((ByteSession) session).writeLine(ByteBuffer.wrap(encoded));
+        }
+        else {
+            session.writeLine(line);
+        }
+    }
+
+    /**
+     * Reads a line from the given session. {@link ByteSession}s return a view
+     * of the line, which is only valid until the next read from the session.
+     * 
+     * @param location
+     *            script location of the reading element, or null
+     */
+    CharSequence readLine(int sessionNumber, String location) throws Exception {
+        final Session session = sessions[sessionNumber];
+        final CharSequence line;
+        if (session instanceof ByteSession) {
+            line = ((ByteSession) session).readLineView();
+        }
+        else {
+            line = session.readLine();
+        }
+        if (observer != null) {
+            observer.responseRead(sessionNumber, line, location);
+        }
+        if (literalPlus != null && !literalPlus[sessionNumber] && advertisesLiteralPlus(line)) {
+            literalPlus[sessionNumber] = true;
+        }
+        return line;
+    }
+
+    /**
+     * Does the line list the LITERAL+ capability? Capabilities are listed by
+     * untagged CAPABILITY responses and by CAPABILITY response codes.
+     */
+    private static boolean advertisesLiteralPlus(CharSequence line) {
+        if (line.length() < 2 || line.charAt(0) != '*' || !contains(line, '+')) {
+            return false;
+        }
+        final String text = line.toString().toUpperCase(Locale.US);
+        if (text.indexOf("CAPABILITY ") < 0) {
+            return false;
+        }
+        final int index = text.indexOf(" LITERAL+");
+        if (index < 0) {
+            return false;
+        }
+        final int end = index + " LITERAL+".length();
+        return end == text.length() || text.charAt(end) == ' ' || text.charAt(end) == ']';
+    }
+
+    private static boolean contains(CharSequence line, char character) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == character) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * May a literal be sent to the session without waiting for continuation?
+     * 
+     * @return true when the plan uses LITERAL+ and the server advertised it
+     */
+    boolean isLiteralPlus(int sessionNumber) {
+        return literalPlus != null && literalPlus[sessionNumber];
+    }
+
+    /**
+     * Records that a literal has been announced as non-synchronizing, so that
+     * the continuation request expected by the script will not be sent.
+     */
+    void literalSent(int sessionNumber) {
+        literalSent[sessionNumber] = true;
+    }
+
+    /**
+     * Consumes the record of a non-synchronizing literal.
+     * 
+     * @return true when the continuation expected by the script should be
+     *         skipped
+     */
+    boolean skipContinuation(int sessionNumber) {
+        if (literalSent != null && literalSent[sessionNumber]) {
+            literalSent[sessionNumber] = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the given time. When resumable, the wait suspends the cursor
+     * rather than the thread.
+     */
+    void sleep(long millis) throws Exception {
+        if (resumable) {
+            final long now = System.currentTimeMillis();
+            if (wakeUpTime == 0) {
+                wakeUpTime = now + millis;
+            }
+            if (now < wakeUpTime) {
+                throw SessionNotReadyException.INSTANCE;
+            }
+            wakeUpTime = 0;
+        }
+        else {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Marks the start of a read which may trigger a continuation.
+     */
+    void expectContinuation() {
+        continuationExpected = true;
+        continued = false;
+    }
+
+    /**
+     * Marks the end of a read which may have triggered a continuation.
+     * 
+     * @return true when {@link #doContinue()} was called since
+     *         {@link #expectContinuation()}
+     */
+    boolean endContinuation() {
+        final boolean result = continued;
+        continuationExpected = false;
+        continued = false;
+        return result;
+    }
+
+    private void commit() {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] instanceof ResumableSession) {
+                ((ResumableSession) sessions[i]).commit();
+            }
+        }
+    }
+
+    private void rollback() {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] instanceof ResumableSession) {
+                ((ResumableSession) sessions[i]).rollback();
+            }
+        }
+    }
+
+    /**
+     * Barrier which may be reused, and which, once aborted, fails sessions
+     * waiting or arriving.
+     */
+    private static final class Barrier {
+
+        private final int parties;
+
+        private int waiting = 0;
+
+        private long generation = 0;
+
+        private boolean aborted = false;
+
+        Barrier(int parties) {
+            this.parties = parties;
+        }
+
+        synchronized void await() throws InterruptedException, BrokenBarrierException {
+            if (aborted) {
+                throw new BrokenBarrierException();
+            }
+            final long arrival = generation;
+            if (++waiting == parties) {
+                waiting = 0;
+                generation++;
+                notifyAll();
+                return;
+            }
+            while (arrival == generation && !aborted) {
+                wait();
+            }
+            if (arrival == generation) {
+                throw new BrokenBarrierException();
+            }
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ScriptCursor ( " + "plan = " + this.plan + TAB + "position = " + this.position + TAB
+                + "continued = " + this.continued + TAB + "continuationExpected = " + this.continuationExpected
+                + TAB + "wakeUpTime = " + this.wakeUpTime + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,55 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+/**
+ * Observes the lines exchanged by a {@link ScriptCursor}, for example to time
+ * commands. Called on the thread running the cursor.
+ * <p>
+ * A resumable cursor may read a line again after rolling back an element:
+ * observers should tolerate seeing the same response more than once.
+ * </p>
+ */
+public interface ScriptObserver {
+
+    /**
+     * Called just before a client line is written.
+     * 
+     * @param sessionNumber
+     *            index of the session written to
+     * @param line
+     *            not null
+     */
+    void requestWritten(int sessionNumber, String line);
+
+    /**
+     * Called just after a server line has been read. The line may be a view
+     * over a buffer reused by the next read: observers decode what they keep.
+     * 
+     * @param sessionNumber
+     *            index of the session read from
+     * @param line
+     *            only valid during the call, not null
+     * @param location
+     *            script location of the element which read the line, or null
+     *            when the element has no location
+     */
+    void responseRead(int sessionNumber, CharSequence line, String location);
+}
@@ -0,0 +1,223 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.james.mpt.api.ProtocolInteractor;
+
+/**
+ * Parses a script one line at a time, adding the elements read to a
+ * {@link ProtocolInteractor}. The parser only holds the position in the
+ * script, so that a script may be parsed all at once or just ahead of its
+ * execution.
+ */
+final class ScriptParser {
+
+    private final String scriptName;
+
+    private final BufferedReader reader;
+
+    private final Properties variables;
+
+    private int sessionNumber = -1;
+
+    private int lineNumber = -1;
+
+    private String lastClientMsg = "";
+
+    /** Number of REPEAT blocks opened and not yet closed */
+    private int openLoops = 0;
+
+    /**
+     * Constructs a parser.
+     * 
+     * @param scriptName
+     *            The name of the source file, for error messages.
+     * @param reader
+     *            the reader containing the protocol definition.
+     * @param variables
+     *            substituted in each line, not null
+     */
+    ScriptParser(String scriptName, BufferedReader reader, Properties variables) {
+        this.scriptName = scriptName;
+        this.reader = reader;
+        this.variables = variables;
+    }
+
+    /**
+     * Parses all remaining lines.
+     * 
+     * @param session
+     *            The ProtocolSession to add elements to.
+     */
+    void parseAll(ProtocolInteractor session) throws Exception {
+        while (parseLine(session)) {
+            // next line
+        }
+    }
+
+    /**
+     * Parses the next line, or the next unordered block. Lines which do not
+     * define elements, such as comments, add nothing.
+     * 
+     * @param session
+     *            The ProtocolSession to add elements to.
+     * @return false when the end of the script has been reached
+     */
+    boolean parseLine(ProtocolInteractor session) throws Exception {
+        String line = reader.readLine();
+        if (line == null) {
+            if (openLoops > 0) {
+                throw new Exception("REPEAT block is not closed in " + scriptName);
+            }
+            return false;
+        }
+        line = substituteVariables(line);
+        String location = scriptName + ":" + lineNumber;
+        if (ProtocolSessionBuilder.SERVER_CONTINUATION_TAG.equals(line)) {
+            session.CONT(sessionNumber);
+        } else if (line.startsWith(ProtocolSessionBuilder.CLIENT_TAG)) {
+            String clientMsg = "";
+            if (line.length() > 3) {
+                clientMsg = line.substring(3);
+            }
+            session.CL(sessionNumber, clientMsg);
+            lastClientMsg = clientMsg;
+        } else if (line.startsWith(ProtocolSessionBuilder.SERVER_TAG)) {
+            String serverMsg = "";
+            if (line.length() > 3) {
+                serverMsg = line.substring(3);
+            }
+            session.SL(sessionNumber, serverMsg, location, lastClientMsg);
+        } else if (line.startsWith(ProtocolSessionBuilder.OPEN_UNORDERED_BLOCK_TAG)) {
+            List<String> unorderedLines = new ArrayList<String>(5);
+            line = nextBlockLine();
+
+            while (!line.startsWith(ProtocolSessionBuilder.CLOSE_UNORDERED_BLOCK_TAG)) {
+                if (!line.startsWith(ProtocolSessionBuilder.SERVER_TAG)) {
+                    throw new Exception(
+                            "Only 'S: ' lines are permitted inside a 'SUB {' block.");
+                }
+                String serverMsg = line.substring(3);
+                unorderedLines.add(serverMsg);
+                line = nextBlockLine();
+                lineNumber++;
+            }
+
+            session.SUB(sessionNumber, unorderedLines, location,
+                    lastClientMsg);
+        } else if (line.startsWith(ProtocolSessionBuilder.COMMENT_TAG)
+                || line.trim().length() == 0) {
+            // ignore these lines.
+        } else if (line.startsWith(ProtocolSessionBuilder.SESSION_TAG)) {
+            String number = line.substring(ProtocolSessionBuilder.SESSION_TAG.length()).trim();
+            if (number.length() == 0) {
+                throw new Exception("No session number specified");
+            }
+            sessionNumber = Integer.parseInt(number);
+        } else if (line.startsWith(ProtocolSessionBuilder.SYNC)) {
+            String name = line.substring(ProtocolSessionBuilder.SYNC.length()).trim();
+            if (name.length() == 0) {
+                throw new Exception("No barrier name specified");
+            }
+            session.SYNC(sessionNumber, name);
+        } else if (session instanceof ProtocolSession && line.startsWith(ProtocolSessionBuilder.WAIT)) {
+            if (line.length() > 5) {
+                ((ProtocolSession) session).WAIT(sessionNumber, Long.valueOf(line.substring(5)));
+            } else {
+                throw new Exception("Invalid line length on WAIT instruction : " + line);
+            }
+        } else if (session instanceof ProtocolSession && line.startsWith(ProtocolSessionBuilder.LOG)) {
+            addLog((ProtocolSession) session, line);
+        } else if (session instanceof ProtocolSession && line.startsWith(ProtocolSessionBuilder.REPEAT)) {
+            addRepeat((ProtocolSession) session, line);
+            openLoops++;
+        } else if (openLoops > 0 && line.trim().equals(ProtocolSessionBuilder.CLOSE_UNORDERED_BLOCK_TAG)) {
+            ((ProtocolSession) session).REPEAT_END();
+            openLoops--;
+        } else {
+            String prefix = line;
+            if (line.length() > 3) {
+                prefix = line.substring(0, 3);
+            }
+            throw new Exception("Invalid line prefix: " + prefix);
+        }
+        lineNumber++;
+        return true;
+    }
+
+    private String nextBlockLine() throws Exception {
+        final String line = reader.readLine();
+        if (line == null) {
+            throw new Exception("Readline doesn't contain any data, but must not be 'null' (linenumber="
+                    + lineNumber);
+        }
+        return line;
+    }
+
+    /**
+     * Opens a <code>REPEAT count [variable] {</code> block.
+     */
+    private void addRepeat(ProtocolSession session, String line) throws Exception {
+        final String[] words = line.substring(ProtocolSessionBuilder.REPEAT.length()).trim().split("\\s+");
+        if (words.length < 2 || words.length > 3 || !"{".equals(words[words.length - 1])) {
+            throw new Exception("Invalid REPEAT instruction, expected 'REPEAT count [variable] {' : " + line);
+        }
+        final int count;
+        try {
+            count = Integer.parseInt(words[0]);
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid REPEAT count : " + line);
+        }
+        session.REPEAT(count, words.length == 3 ? words[1] : null);
+    }
+
+    private void addLog(ProtocolSession session, String line) throws Exception {
+        String logInstruction = line.substring(4);
+        if (logInstruction.startsWith(FileProtocolSessionBuilder.DEBUG)) {
+            session.LOG(sessionNumber, ProtocolSession.LolLevel.Debug, logInstruction.substring(6));
+        } else if (logInstruction.startsWith(FileProtocolSessionBuilder.INFO)) {
+            session.LOG(sessionNumber, ProtocolSession.LolLevel.Info, logInstruction.substring(5));
+        } else if (logInstruction.startsWith(FileProtocolSessionBuilder.WARN)) {
+            session.LOG(sessionNumber, ProtocolSession.LolLevel.Warn, logInstruction.substring(5));
+        } else if (logInstruction.startsWith(FileProtocolSessionBuilder.ERR)) {
+            session.LOG(sessionNumber, ProtocolSession.LolLevel.Err, logInstruction.substring(4));
+        } else {
+            throw new Exception("Unrecognized log level for " + line);
+        }
+    }
+
+    /**
+     * Replaces ${<code>NAME</code>} with variable value. Variables which are
+     * not set are left for the {@link Bindings} of each run.
+     * @param line not null
+     * @return not null
+     */
+    private String substituteVariables(String line) {
+        if (variables.size() > 0) {
+            line = Template.compile(line).resolve(variables);
+        }
+        return line;
+    }
+}
@@ -0,0 +1,284 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFactory;
+
+/**
+ * A compiled, immutable script.
+ * <p>
+ * Plans are built once by {@link ProtocolSession#compile()} and hold only
+ * immutable elements with precompiled expected lines. All state changed while
+ * running is kept by a {@link ScriptCursor}, so a single plan may be run by
+ * any number of cursors, on any number of threads, at the same time.
+ * </p>
+ */
+public final class ScriptPlan {
+
+    private final ProtocolElement[] elements;
+
+    private final int sessionCount;
+
+    private final boolean continueAfterFailure;
+
+    private final boolean literalPlus;
+
+    private final boolean concurrentSessions;
+
+    /** Elements run by each session when sessions run concurrently, or null */
+    private final ScriptPlan[] streams;
+
+    /** Number of sessions meeting at each barrier */
+    private final Map<String, Integer> barriers;
+
+    /**
+     * Index of the matching end of each REPEAT start, and of the matching
+     * start of each end, or null when there are no loops
+     */
+    private final int[] jumps;
+
+    ScriptPlan(List<ProtocolElement> elements, int sessionCount, boolean continueAfterFailure, boolean literalPlus,
+            boolean concurrentSessions) {
+        this.elements = elements.toArray(new ProtocolElement[elements.size()]);
+        this.sessionCount = sessionCount;
+        this.continueAfterFailure = continueAfterFailure;
+        this.literalPlus = literalPlus;
+        this.concurrentSessions = concurrentSessions && sessionCount > 1;
+        this.jumps = matchLoops(this.elements);
+        if (this.concurrentSessions) {
+            streams = split();
+            barriers = countBarriers(streams);
+        }
+        else {
+            streams = null;
+            barriers = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Matches the starts and ends of REPEAT blocks.
+     * 
+     * @return jumps, or null when there are no loops
+     */
+    private static int[] matchLoops(ProtocolElement[] elements) {
+        int[] jumps = null;
+        final List<Integer> open = new ArrayList<Integer>();
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] instanceof ProtocolSession.RepeatStart) {
+                open.add(i);
+            }
+            else if (elements[i] instanceof ProtocolSession.RepeatEnd) {
+                if (open.isEmpty()) {
+                    throw new IllegalArgumentException("REPEAT block closed but not opened");
+                }
+                if (jumps == null) {
+                    jumps = new int[elements.length];
+                }
+                final int start = open.remove(open.size() - 1);
+                jumps[start] = i;
+                jumps[i] = start;
+            }
+        }
+        if (!open.isEmpty()) {
+            throw new IllegalArgumentException("REPEAT block is not closed");
+        }
+        return jumps;
+    }
+
+    /**
+     * Splits the elements by session. Elements applying to all sessions are
+     * run by each of them.
+     */
+    private ScriptPlan[] split() {
+        final ScriptPlan[] result = new ScriptPlan[sessionCount];
+        for (int session = 0; session < sessionCount; session++) {
+            final List<ProtocolElement> stream = new ArrayList<ProtocolElement>();
+            for (ProtocolElement element : elements) {
+                final int sessionNumber = element.getSessionNumber();
+                if (sessionNumber < 0 || sessionNumber == session) {
+                    stream.add(element);
+                }
+            }
+            result[session] = new ScriptPlan(stream, sessionCount, continueAfterFailure, literalPlus, false);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the sessions declaring each barrier. Every session declaring a
+     * barrier must reach it the same number of times.
+     */
+    private static Map<String, Integer> countBarriers(ScriptPlan[] streams) {
+        final Map<String, Integer> parties = new HashMap<String, Integer>();
+        final Map<String, Integer> occurrences = new HashMap<String, Integer>();
+        final Map<String, Integer> firstSession = new HashMap<String, Integer>();
+        for (int session = 0; session < streams.length; session++) {
+            final Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (ProtocolElement element : streams[session].elements) {
+                if (element instanceof ProtocolSession.SyncElement) {
+                    final String name = ((ProtocolSession.SyncElement) element).getName();
+                    final Integer count = counts.get(name);
+                    counts.put(name, count == null ? 1 : count + 1);
+                }
+            }
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                final String name = entry.getKey();
+                final Integer expected = occurrences.get(name);
+                if (expected == null) {
+                    occurrences.put(name, entry.getValue());
+                    firstSession.put(name, session);
+                    parties.put(name, 1);
+                }
+                else if (expected.equals(entry.getValue())) {
+                    parties.put(name, parties.get(name) + 1);
+                }
+                else {
+                    throw new IllegalArgumentException("SYNC " + name + " is reached " + expected
+                            + " times by session " + firstSession.get(name) + " but " + entry.getValue()
+                            + " times by session " + session);
+                }
+            }
+        }
+        return parties;
+    }
+
+    /**
+     * Returns the number of sessions required to run this plan.
+     */
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    public boolean isContinueAfterFailure() {
+        return continueAfterFailure;
+    }
+
+    /**
+     * Are synchronizing literals sent as non-synchronizing literals to
+     * servers advertising LITERAL+?
+     * 
+     * @see ProtocolSession#setLiteralPlus(boolean)
+     */
+    public boolean isLiteralPlus() {
+        return literalPlus;
+    }
+
+    /**
+     * Does each session run on its own thread?
+     * 
+     * @see ProtocolSession#setConcurrentSessions(boolean)
+     */
+    public boolean isConcurrentSessions() {
+        return concurrentSessions;
+    }
+
+    /**
+     * Gets the elements run by the given session when sessions run
+     * concurrently.
+     */
+    ScriptPlan getStream(int session) {
+        return streams[session];
+    }
+
+    /**
+     * Gets the names of the barriers where concurrent sessions meet.
+     */
+    Set<String> getBarrierNames() {
+        return barriers.keySet();
+    }
+
+    /**
+     * Gets the number of sessions meeting at the named barrier.
+     */
+    int getBarrierParties(String name) {
+        return barriers.get(name);
+    }
+
+    /**
+     * Gets the number of elements in this plan.
+     */
+    public int size() {
+        return elements.length;
+    }
+
+    ProtocolElement get(int index) {
+        return elements[index];
+    }
+
+    /**
+     * Gets the index of the end of the REPEAT block starting at the given
+     * index, or of the start of the block ending there.
+     */
+    int getJump(int index) {
+        return jumps[index];
+    }
+
+    /**
+     * Creates a new cursor positioned at the start of this plan. The cursor
+     * should be passed as {@link org.apache.james.mpt.api.Continuation} to the
+     * sessions it will run against.
+     * 
+     * @return not null
+     */
+    public ScriptCursor newCursor() {
+        return new ScriptCursor(this);
+    }
+
+    /**
+     * Opens {@link #getSessionCount()} sessions from the factory, runs this
+     * plan once against them and closes them.
+     * 
+     * @param factory
+     *            not null
+     * @throws Exception
+     */
+    public void runSessions(SessionFactory factory) throws Exception {
+        final ScriptCursor cursor = newCursor();
+        final Session[] sessions = new Session[sessionCount];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = factory.newSession(cursor);
+                sessions[i].start();
+            }
+            cursor.run(sessions);
+        }
+        finally {
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i] != null) {
+                    sessions[i].stop();
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "ScriptPlan ( elements = " + elements.length + " sessionCount = " + sessionCount
+                + " continueAfterFailure = " + continueAfterFailure + " literalPlus = " + literalPlus
+                + " concurrentSessions = " + concurrentSessions + " )";
+    }
+}
@@ -0,0 +1,233 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.io.BufferedReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFactory;
+
+/**
+ * <p>
+ * A script parsed while it runs. Elements are parsed in chunks just ahead of
+ * the executing cursor and discarded once run, so that scripts of any length
+ * run in constant memory.
+ * </p>
+ * <p>
+ * A chunk only ends after a server response on which no client line
+ * depends, so continuations and non-synchronizing literals never span
+ * chunks. The number of sessions cannot be known before the whole script
+ * has been read and must be given. Sessions do not run concurrently: barriers
+ * have no effect. A streaming script may only be run once.
+ * </p>
+ */
+public final class StreamingScript implements Continuation {
+
+    /** Default minimum number of elements parsed ahead */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final ScriptParser parser;
+
+    private final BufferedReader reader;
+
+    private final int sessionCount;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private boolean continueAfterFailure = false;
+
+    private int pipelineDepth = 1;
+
+    private boolean literalPlus = false;
+
+    private ScriptObserver observer;
+
+    private Bindings bindings;
+
+    private boolean started = false;
+
+    /** Cursor running the current chunk */
+    private volatile ScriptCursor cursor;
+
+    StreamingScript(ScriptParser parser, BufferedReader reader, int sessionCount) {
+        this.parser = parser;
+        this.reader = reader;
+        this.sessionCount = sessionCount;
+    }
+
+    /**
+     * Returns the number of sessions required to run this script.
+     */
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Sets the minimum number of elements parsed ahead of the cursor.
+     * 
+     * @param chunkSize
+     *            positive
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @see ProtocolSession#setContinueAfterFailure(boolean)
+     */
+    public void setContinueAfterFailure(boolean continueAfterFailure) {
+        this.continueAfterFailure = continueAfterFailure;
+    }
+
+    /**
+     * @see ProtocolSession#setPipelineDepth(int)
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @see ProtocolSession#setLiteralPlus(boolean)
+     */
+    public void setLiteralPlus(boolean literalPlus) {
+        this.literalPlus = literalPlus;
+    }
+
+    /**
+     * @see ProtocolSession#setBindings(Bindings)
+     */
+    public void setBindings(Bindings bindings) {
+        this.bindings = bindings;
+    }
+
+    /**
+     * Sets the observer notified of the lines exchanged.
+     * 
+     * @param observer
+     *            or null
+     */
+    public void setObserver(ScriptObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Opens {@link #getSessionCount()} sessions from the factory, runs the
+     * script against them and closes them.
+     * 
+     * @param factory
+     *            not null
+     */
+    public void runSessions(SessionFactory factory) throws Exception {
+        final Session[] sessions = new Session[sessionCount];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = factory.newSession(this);
+                sessions[i].start();
+            }
+            run(sessions);
+        }
+        finally {
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i] != null) {
+                    sessions[i].stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses and runs the script against the sessions supplied. The reader
+     * is closed once the script has run.
+     * 
+     * @param sessions
+     *            not null, at least {@link #getSessionCount()} long
+     */
+    public void run(Session[] sessions) throws Exception {
+        if (started) {
+            throw new IllegalStateException("A streaming script can only be run once");
+        }
+        started = true;
+        try {
+            ScriptCursor previous = null;
+            boolean more = true;
+            while (more) {
+                final ProtocolSession chunk = new ProtocolSession();
+                chunk.setContinueAfterFailure(continueAfterFailure);
+                chunk.setPipelineDepth(pipelineDepth);
+                chunk.setLiteralPlus(literalPlus);
+                more = fill(chunk);
+                if (chunk.getSessionCount() > sessionCount) {
+                    throw new Exception("Script uses session " + (chunk.getSessionCount() - 1) + " but only "
+                            + sessionCount + " sessions are open");
+                }
+                final ScriptCursor next = chunk.compile().newCursor();
+                next.setObserver(observer);
+                next.setBindings(bindings);
+                next.carryOver(previous);
+                cursor = next;
+                next.run(sessions);
+                previous = next;
+            }
+        }
+        finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Parses the next chunk.
+     * 
+     * @return true when more elements may follow
+     */
+    private boolean fill(ProtocolSession chunk) throws Exception {
+        while (parser.parseLine(chunk)) {
+            if (chunk.testElements.size() >= chunkSize && chunk.endsWithResponse()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void doContinue() {
+        final ScriptCursor current = cursor;
+        if (current == null) {
+            throw new RuntimeException("Unexpected continuation");
+        }
+        current.doContinue();
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "StreamingScript ( " + "sessionCount = " + this.sessionCount + TAB + "chunkSize = "
+                + this.chunkSize + TAB + "pipelineDepth = " + this.pipelineDepth + TAB + "literalPlus = "
+                + this.literalPlus + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,157 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A script line split once into literal segments and the names of the
+ * variables between them, written ${<code>NAME</code>}. Variables are
+ * substituted when the script is parsed, from the variables of the builder,
+ * and when it is run, from the {@link Bindings} of the run. Variables which
+ * are not bound are left as written. Instances are immutable.
+ */
+final class Template {
+
+    private static final String START = "${";
+
+    private static final String END = "}";
+
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Splits the line.
+     * 
+     * @param source
+     *            not null
+     * @return not null
+     */
+    static Template compile(String source) {
+        int start = source.indexOf(START);
+        if (start < 0) {
+            return new Template(source, NONE, NONE);
+        }
+        final List<String> literals = new ArrayList<String>();
+        final List<String> names = new ArrayList<String>();
+        int literalStart = 0;
+        while (start >= 0) {
+            final int end = source.indexOf(END, start);
+            if (end < 0) {
+                break;
+            }
+            literals.add(source.substring(literalStart, start));
+            names.add(source.substring(start + START.length(), end));
+            literalStart = end + END.length();
+            start = source.indexOf(START, end);
+        }
+        literals.add(source.substring(literalStart));
+        return new Template(source, literals.toArray(new String[literals.size()]), names.toArray(new String[names
+                .size()]));
+    }
+
+    private final String source;
+
+    /** Literal segments, one more than the variables */
+    private final String[] literals;
+
+    private final String[] names;
+
+    private Template(String source, String[] literals, String[] names) {
+        this.source = source;
+        this.literals = literals;
+        this.names = names;
+    }
+
+    /**
+     * Does the line contain no variables?
+     */
+    boolean isConstant() {
+        return names.length == 0;
+    }
+
+    /**
+     * Gets the line as written.
+     * 
+     * @return not null
+     */
+    String getSource() {
+        return source;
+    }
+
+    /**
+     * Substitutes the variables bound.
+     * 
+     * @param variables
+     *            not null
+     * @return not null
+     */
+    String resolve(Properties variables) {
+        if (names.length == 0) {
+            return source;
+        }
+        final StringBuilder builder = new StringBuilder(source.length() + 16).append(literals[0]);
+        for (int i = 0; i < names.length; i++) {
+            append(builder, i, variables.getProperty(names[i]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Substitutes the variables bound for a run.
+     * 
+     * @param locals
+     *            variables of the REPEAT blocks being run, looked up first,
+     *            or null
+     * @param bindings
+     *            or null
+     * @return not null
+     */
+    String resolve(Map<String, String> locals, Bindings bindings) {
+        if (names.length == 0) {
+            return source;
+        }
+        final StringBuilder builder = new StringBuilder(source.length() + 16).append(literals[0]);
+        for (int i = 0; i < names.length; i++) {
+            String value = locals == null ? null : locals.get(names[i]);
+            if (value == null && bindings != null) {
+                value = bindings.getValue(names[i]);
+            }
+            append(builder, i, value);
+        }
+        return builder.toString();
+    }
+
+    private void append(StringBuilder builder, int variable, String value) {
+        if (value == null) {
+            builder.append(START).append(names[variable]).append(END);
+        }
+        else {
+            builder.append(value);
+        }
+        builder.append(literals[variable + 1]);
+    }
+
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,201 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Matches the lines of an unordered block, each expected line being matched
+ * by exactly one actual line, in any order.
+ * </p>
+ * <p>
+ * Literal expected lines are counted in a hash based multiset, so that
+ * matching them takes constant time whatever the size of the block. Only the
+ * lines which are regular expressions are tried one by one, once no literal
+ * line remains for the actual line. Instances are immutable and may be
+ * shared between threads: the lines matched by a run are recorded by a
+ * {@link State}.
+ * </p>
+ */
+final class UnorderedMatcher {
+
+    /** Identifies each distinct literal line */
+    private final Map<String, Integer> literalIds = new HashMap<String, Integer>();
+
+    /** Number of times each literal line is expected, by identifier */
+    private final int[] literalCounts;
+
+    /** Regular expression lines, in script order */
+    private final LineMatcher[] patterns;
+
+    private final boolean captures;
+
+    private final int size;
+
+    /**
+     * Indexes the expected lines.
+     * 
+     * @param matchers
+     *            not null
+     */
+    UnorderedMatcher(LineMatcher[] matchers) {
+        final List<Integer> counts = new ArrayList<Integer>();
+        final List<LineMatcher> patterns = new ArrayList<LineMatcher>();
+        for (LineMatcher matcher : matchers) {
+            if (matcher.isLiteral()) {
+                final Integer id = literalIds.get(matcher.getLiteral());
+                if (id == null) {
+                    literalIds.put(matcher.getLiteral(), counts.size());
+                    counts.add(1);
+                }
+                else {
+                    counts.set(id, counts.get(id) + 1);
+                }
+            }
+            else {
+                patterns.add(matcher);
+            }
+        }
+        this.literalCounts = new int[counts.size()];
+        for (int i = 0; i < literalCounts.length; i++) {
+            literalCounts[i] = counts.get(i);
+        }
+        this.patterns = patterns.toArray(new LineMatcher[patterns.size()]);
+        this.size = matchers.length;
+        boolean captures = false;
+        for (LineMatcher pattern : this.patterns) {
+            captures |= pattern.hasCaptures();
+        }
+        this.captures = captures;
+    }
+
+    /**
+     * Gets the number of lines expected.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Do lines of the block capture variables?
+     */
+    boolean hasCaptures() {
+        return captures;
+    }
+
+    /**
+     * Starts matching a block.
+     * 
+     * @return not null
+     */
+    State newState() {
+        return new State(null);
+    }
+
+    /**
+     * Starts matching a block which captures variables.
+     * 
+     * @param bindings
+     *            variables captured are bound here, or null to ignore
+     *            captures
+     * @return not null
+     */
+    State newState(Bindings bindings) {
+        return new State(bindings);
+    }
+
+    /**
+     * The expected lines not yet matched by a run.
+     */
+    final class State {
+
+        private final int[] remainingLiterals = literalCounts.clone();
+
+        private final boolean[] matchedPatterns = new boolean[patterns.length];
+
+        /** No pattern before this index remains */
+        private int firstPattern = 0;
+
+        private int remaining = size;
+
+        private final Bindings bindings;
+
+        State(Bindings bindings) {
+            this.bindings = bindings;
+        }
+
+        /**
+         * Matches the line against an expected line not yet matched.
+         * 
+         * @param line
+         *            not null
+         * @return true when an expected line was matched, false when the
+         *         line was not expected
+         */
+        boolean accept(CharSequence line) {
+            if (remainingLiterals.length > 0) {
+                final Integer id = literalIds.get(line.toString());
+                if (id != null && remainingLiterals[id] > 0) {
+                    remainingLiterals[id]--;
+                    remaining--;
+                    return true;
+                }
+            }
+            for (int i = firstPattern; i < patterns.length; i++) {
+                if (!matchedPatterns[i] && matches(patterns[i], line)) {
+                    matchedPatterns[i] = true;
+                    remaining--;
+                    while (firstPattern < patterns.length && matchedPatterns[firstPattern]) {
+                        firstPattern++;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(LineMatcher pattern, CharSequence line) {
+            if (bindings == null) {
+                return pattern.matches(line);
+            }
+            return pattern.matches(line, bindings);
+        }
+
+        /**
+         * Have all expected lines been matched?
+         */
+        boolean isComplete() {
+            return remaining == 0;
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "UnorderedMatcher ( " + "size = " + this.size + TAB + "literals = "
+                + this.literalIds.size() + TAB + "patterns = " + this.patterns.length + TAB + " )";
+
+        return result;
+    }
+}
@@ -19,11 +19,17 @@
 
 package org.apache.james.mpt.script;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
+import org.apache.james.mpt.ConcurrentRunner;
 import org.apache.james.mpt.Runner;
-import org.apache.james.mpt.api.Continuation;
 import org.apache.james.mpt.api.HostSystem;
-import org.apache.james.mpt.api.Session;
 import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.stats.CommandLatencyReport;
 
 /**
  * Abstract Protocol Test is the root of all of the scripted test cases. It
@@ -37,6 +43,50 @@ import org.apache.james.mpt.protocol.ProtocolSession;
  */
 public abstract class AbstractProtocolTestFramework {
 
+    /**
+     * Names the system property enabling the suite latency report. When set
+     * to <code>true</code>, the latencies of the commands run by all tests
+     * are printed to standard output as the JVM exits. Any other value names
+     * the file the report is written to.
+     */
+    public static final String LATENCY_REPORT_PROPERTY = "mpt.latency.report";
+
+    /** Latencies of the commands run in this JVM, or null when not reported */
+    private static final CommandLatencyReport SUITE_LATENCIES = createSuiteLatencies();
+
+    private static CommandLatencyReport createSuiteLatencies() {
+        final String destination = System.getProperty(LATENCY_REPORT_PROPERTY);
+        if (destination == null) {
+            return null;
+        }
+        final CommandLatencyReport report = new CommandLatencyReport();
+        Runtime.getRuntime().addShutdownHook(new Thread("mpt-latency-report") {
+            public void run() {
+                try {
+                    final boolean console = Boolean.parseBoolean(destination);
+                    final PrintWriter out;
+                    if (console) {
+                        out = new PrintWriter(new OutputStreamWriter(System.out));
+                    }
+                    else {
+                        out = new PrintWriter(new FileWriter(destination));
+                    }
+                    report.print(out);
+                    if (!console) {
+                        out.close();
+                    }
+                    if (out.checkError()) {
+                        System.err.println("Cannot write latency report to " + destination);
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot write latency report to " + destination + ": " + e.getMessage());
+                }
+            }
+        });
+        return report;
+    }
+
     /** The Protocol session which is run before the testElements */
     protected ProtocolSession preElements = new ProtocolSession();
 
@@ -47,6 +97,9 @@ public abstract class AbstractProtocolTestFramework {
     protected ProtocolSession postElements = new ProtocolSession();
 
     protected final Runner runner;
+
+    private ConcurrentRunner concurrentRunner = new ConcurrentRunner();
+
     private final HostSystem hostSystem;
 
     private final String userName;
@@ -78,38 +131,37 @@ public abstract class AbstractProtocolTestFramework {
      * One mock instance is required per protocol session/connection.
      */
     protected void runSessions() throws Exception {
-        class SessionContinuation implements Continuation {
-
-            public ProtocolSession session;
-
-            public void doContinue() {
-                if (session != null) {
-                    session.doContinue();
-                }
-            }
-
-        }
-        SessionContinuation continuation = new SessionContinuation();
+        ConcurrentRunner.runInstance(preElements.compile(), testElements.compile(), postElements.compile(),
+                hostSystem, SUITE_LATENCIES);
+    }
 
-        Session[] sessions = new Session[testElements.getSessionCount()];
+    /**
+     * Runs instances of the pre, test and post protocol sessions, each on its
+     * own sessions, with the executor set by {@link #setExecutor(Executor, int)}.
+     * The host system must support concurrent sessions.
+     * 
+     * @param instances
+     *            number of instances to run
+     * @throws Exception
+     *             the failure of the first instance which failed
+     */
+    protected void runSessions(int instances) throws Exception {
+        concurrentRunner.run(preElements.compile(), testElements.compile(), postElements.compile(), hostSystem,
+                SUITE_LATENCIES, instances);
+    }
 
-        for (int i = 0; i < sessions.length; i++) {
-            sessions[i] = hostSystem.newSession(continuation);
-            sessions[i].start();
-        }
-        try {
-            continuation.session = preElements;
-            preElements.runSessions(sessions);
-            continuation.session = testElements;
-            testElements.runSessions(sessions);
-            continuation.session = postElements;
-            postElements.runSessions(sessions);
-        }
-        finally {
-            for (int i = 0; i < sessions.length; i++) {
-                sessions[i].stop();
-            }
-        }
+    /**
+     * Runs the instances of {@link #runSessions(int)} concurrently. By
+     * default instances run one after another on the calling thread.
+     * 
+     * @param executor
+     *            runs the instances, offering at least as many threads as the
+     *            concurrency, not null
+     * @param concurrency
+     *            maximum number of instances running at once, positive
+     */
+    protected void setExecutor(Executor executor, int concurrency) {
+        concurrentRunner = new ConcurrentRunner(executor, concurrency);
     }
 
 }
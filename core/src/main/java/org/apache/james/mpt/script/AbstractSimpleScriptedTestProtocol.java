@@ -19,13 +19,13 @@
 
 package org.apache.james.mpt.script;
 
-import java.io.InputStream;
+import java.net.URL;
 import java.util.Locale;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.james.mpt.api.HostSystem;
 import org.apache.james.mpt.protocol.FileProtocolSessionBuilder;
 import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ScriptCache;
 import org.junit.After;
 
 /**
@@ -34,6 +34,11 @@ import org.junit.After;
  * into the constructor. Subclasses of this test can set up {@link #preElements}
  * and {@link #postElements} for extra elements not defined in the protocol
  * session file.
+ * <p>
+ * Scripts are parsed once per JVM and shared through the
+ * {@link ScriptCache#getShared() shared script cache}, so that scripts run in
+ * several locales, and preambles run before many tests, are not parsed again.
+ * </p>
  */
 public abstract class AbstractSimpleScriptedTestProtocol extends AbstractProtocolTestFramework {
     
@@ -81,7 +86,8 @@ public abstract class AbstractSimpleScriptedTestProtocol extends AbstractProtoco
     /**
      * Finds the protocol session file identified by the test name, and builds
      * protocol elements from it. All elements from the definition file are
-     * added to the supplied ProtocolSession.
+     * added to the supplied ProtocolSession. The file is parsed only the
+     * first time it is added.
      * 
      * @param fileName
      *            The name of the file to read
@@ -93,19 +99,14 @@ public abstract class AbstractSimpleScriptedTestProtocol extends AbstractProtoco
         fileName = scriptDirectory + fileName;
         
         // Need to find local resource.
-        InputStream is = this.getClass().getResourceAsStream(fileName);
+        URL resource = this.getClass().getResource(fileName);
 
-        if (is == null) {
+        if (resource == null) {
             throw new Exception("Test Resource '" + fileName + "' not found.");
         }
 
-        try {
-            builder.addProtocolLinesFromStream(is, session, fileName);
-        }
-        finally {
-            IOUtils.closeQuietly(is);
-        }
-        
+        ScriptCache.getShared().get(resource, fileName, builder).addTo(session);
+
     }
 
 }
@@ -0,0 +1,618 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.james.mpt.api.AsyncSession;
+import org.apache.james.mpt.api.Monitor;
+import org.apache.james.mpt.api.Monitor.Direction;
+import org.apache.james.mpt.api.SessionFuture;
+
+/**
+ * <p>
+ * Opens {@link AsyncSession}s to an external host, all driven by a single
+ * {@link Selector} thread.
+ * </p>
+ * <p>
+ * Operations are handed to the thread and performed in order. Futures are
+ * completed, and their callbacks notified, on that thread: callbacks must
+ * not block but may start further operations. Thousands of conversations
+ * may therefore be interleaved without a thread waiting on each connection.
+ * </p>
+ */
+public class AsyncSessionGroup {
+
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final InetSocketAddress address;
+
+    private final Monitor monitor;
+
+    private final String shabang;
+
+    /** Operations waiting for the loop thread */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Sessions with pending operations or open connections, loop thread only */
+    private final Set<Connection> connections = new HashSet<Connection>();
+
+    /** Guards accepting */
+    private final Object lock = new Object();
+
+    private boolean accepting = false;
+
+    /** Failure reported to operations once the loop has stopped, loop thread only */
+    private Exception stopped;
+
+    private volatile boolean running = false;
+
+    private volatile Selector selector;
+
+    private volatile Thread thread;
+
+    /**
+     * Constructs a group.
+     * 
+     * @param address
+     *            connect to this address, not null
+     * @param monitor
+     *            not null
+     * @param shabang
+     *            replaces the first line received, or null
+     */
+    public AsyncSessionGroup(final InetSocketAddress address, final Monitor monitor, final String shabang) {
+        this.address = address;
+        this.monitor = monitor;
+        this.shabang = shabang;
+    }
+
+    /**
+     * Starts the selector thread.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        selector = Selector.open();
+        stopped = null;
+        running = true;
+        synchronized (lock) {
+            accepting = true;
+        }
+        final Thread loop = new Thread(new EventLoop(), "mpt-async-sessions");
+        loop.setDaemon(true);
+        thread = loop;
+        loop.start();
+    }
+
+    /**
+     * Stops the selector thread. Sessions are closed and their pending
+     * operations fail.
+     */
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            selector.wakeup();
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * Creates a session. The connection is opened when the session is
+     * started.
+     * 
+     * @return not null
+     */
+    public AsyncSession newSession() {
+        return new Connection();
+    }
+
+    /**
+     * Hands a task to the loop thread.
+     * 
+     * @return false when the loop is not running
+     */
+    private boolean execute(Runnable task) {
+        synchronized (lock) {
+            if (!accepting) {
+                return false;
+            }
+            tasks.add(task);
+        }
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    private final class EventLoop implements Runnable {
+
+        public void run() {
+            try {
+                while (running) {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        selector.selectNow();
+                    }
+                    runTasks();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            ((Connection) key.attachment()).handle(key);
+                        }
+                        catch (RuntimeException e) {
+                            // futures completed while handling run their callbacks
+                            monitor.note("Callback failed: " + e);
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                monitor.note("Session group failed: " + e);
+            }
+            catch (ClosedSelectorException e) {
+                monitor.note("Session group failed: " + e);
+            }
+            finally {
+                shutdown();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    monitor.note("Callback failed: " + e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            synchronized (lock) {
+                accepting = false;
+            }
+            stopped = new IllegalStateException("Session group stopped");
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.close(stopped);
+            }
+            // operations handed over before the loop stopped now fail
+            runTasks();
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                monitor.note("Failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Write waiting for its last byte to be flushed.
+     */
+    private static final class PendingWrite {
+        private final long end;
+
+        private final SettableSessionFuture<Void> future;
+
+        PendingWrite(long end, SettableSessionFuture<Void> future) {
+            this.end = end;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Session state is only accessed from the loop thread.
+     */
+    private final class Connection implements AsyncSession {
+
+        private final int id = SessionIds.next();
+
+        /** Replaces characters which are not ASCII, as {@link SelectorSession} does */
+        private final CharsetEncoder encoder = ASCII.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /** Lines received but not yet read */
+        private final Queue<String> lines = new LinkedList<String>();
+
+        /** Reads waiting for a line */
+        private final Queue<SettableSessionFuture<String>> reads = new LinkedList<SettableSessionFuture<String>>();
+
+        private final Queue<PendingWrite> writes = new LinkedList<PendingWrite>();
+
+        /** Received bytes not yet split into lines, from zero to position */
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        /** Bytes waiting to be written, from zero to position */
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        /** Total octets queued for writing */
+        private long queued = 0;
+
+        /** Total octets written */
+        private long written = 0;
+
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        private SettableSessionFuture<Void> connecting;
+
+        private boolean connected = false;
+
+        private boolean first = true;
+
+        private boolean endOfStream = false;
+
+        /** Reason the session was closed, or null when open */
+        private Exception closed;
+
+        public SessionFuture<String> readLineAsync() {
+            final SettableSessionFuture<String> future = new SettableSessionFuture<String>();
+            submit(future, new Runnable() {
+                public void run() {
+                    read(future);
+                }
+            });
+            return future;
+        }
+
+        public SessionFuture<Void> writeLineAsync(final String line) {
+            final SettableSessionFuture<Void> future = new SettableSessionFuture<Void>();
+            submit(future, new Runnable() {
+                public void run() {
+                    write(line, future);
+                }
+            });
+            return future;
+        }
+
+        public SessionFuture<Void> startAsync() {
+            final SettableSessionFuture<Void> future = new SettableSessionFuture<Void>();
+            submit(future, new Runnable() {
+                public void run() {
+                    connect(future);
+                }
+            });
+            return future;
+        }
+
+        public SessionFuture<Void> stopAsync() {
+            final SettableSessionFuture<Void> future = new SettableSessionFuture<Void>();
+            submit(future, new Runnable() {
+                public void run() {
+                    if (closed == null) {
+                        if (monitor.isNoteEnabled()) {
+                            monitor.note("closing");
+                        }
+                        close(new EOFException("Session closed"));
+                    }
+                    future.set(null);
+                }
+            });
+            return future;
+        }
+
+        private void submit(SettableSessionFuture<?> future, Runnable task) {
+            if (!execute(task)) {
+                future.fail(new IllegalStateException("Session group is not running"));
+            }
+        }
+
+        /**
+         * Fails the operation when the session is closed.
+         * 
+         * @return true when the operation failed
+         */
+        private boolean rejects(SettableSessionFuture<?> future) {
+            if (closed == null && stopped != null) {
+                close(stopped);
+            }
+            if (closed != null) {
+                future.fail(closed);
+                return true;
+            }
+            connections.add(this);
+            return false;
+        }
+
+        private void connect(SettableSessionFuture<Void> future) {
+            if (rejects(future)) {
+                return;
+            }
+            if (channel != null) {
+                future.fail(new IllegalStateException("Already started"));
+                return;
+            }
+            if (monitor.isNoteEnabled()) {
+                monitor.note("Connecting to " + address.getHostName() + ":" + address.getPort());
+            }
+            connecting = future;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address)) {
+                    connected();
+                }
+            }
+            catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void connected() throws IOException {
+            connected = true;
+            flush();
+            connecting.set(null);
+        }
+
+        private void read(SettableSessionFuture<String> future) {
+            if (!lines.isEmpty()) {
+                future.set(lines.poll());
+            }
+            else if (endOfStream) {
+                future.fail(new EOFException("Connection closed by server"));
+            }
+            else if (!rejects(future)) {
+                reads.add(future);
+            }
+        }
+
+        private void write(String line, SettableSessionFuture<Void> future) {
+            if (rejects(future)) {
+                return;
+            }
+            if (monitor.isNoteEnabled()) {
+                monitor.note("-> " + line);
+            }
+            final int start = writeBuffer.position();
+            final int required = line.length() + 2;
+            if (writeBuffer.remaining() < required) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer
+                        .position()
+                        + required));
+                writeBuffer.flip();
+                larger.put(writeBuffer);
+                writeBuffer = larger;
+            }
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(line), writeBuffer, true);
+            writeBuffer.put((byte) '\r');
+            writeBuffer.put((byte) '\n');
+            final int octets = writeBuffer.position() - start;
+            if (monitor.isEventEnabled()) {
+                monitor.lineTransferred(id, Direction.REQUEST, line, octets, System.nanoTime());
+            }
+            queued += octets;
+            writes.add(new PendingWrite(queued, future));
+            if (connected) {
+                try {
+                    flush();
+                }
+                catch (IOException e) {
+                    close(e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        connected();
+                    }
+                }
+                else {
+                    if (key.isValid() && key.isWritable()) {
+                        flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        receive();
+                    }
+                }
+            }
+            catch (IOException e) {
+                close(e);
+            }
+        }
+
+        /**
+         * Writes as much buffered output as the socket accepts, completing
+         * the writes flushed.
+         */
+        private void flush() throws IOException {
+            if (writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                written += channel.write(writeBuffer);
+                writeBuffer.compact();
+            }
+            while (!writes.isEmpty() && writes.peek().end <= written) {
+                writes.poll().future.set(null);
+            }
+            if (key.isValid()) {
+                int interest = endOfStream ? 0 : SelectionKey.OP_READ;
+                if (writeBuffer.position() > 0) {
+                    interest |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(interest);
+            }
+        }
+
+        /**
+         * Reads all available bytes and completes the reads waiting for
+         * them.
+         */
+        private void receive() throws IOException {
+            while (!endOfStream) {
+                if (!readBuffer.hasRemaining()) {
+                    final ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                }
+                final int read = channel.read(readBuffer);
+                if (read < 0) {
+                    endOfStream = true;
+                }
+                else if (read == 0) {
+                    break;
+                }
+            }
+            splitLines();
+            if (endOfStream) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                final Exception eof = new EOFException("Connection closed by server");
+                while (!reads.isEmpty()) {
+                    reads.poll().fail(eof);
+                }
+            }
+        }
+
+        private void splitLines() {
+            final byte[] bytes = readBuffer.array();
+            final int end = readBuffer.position();
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    int length = i - start;
+                    if (length > 0 && bytes[i - 1] == '\r') {
+                        length--;
+                    }
+                    addLine(new String(bytes, start, length, ASCII), i + 1 - start);
+                    start = i + 1;
+                }
+            }
+            if (start > 0) {
+                readBuffer.flip();
+                readBuffer.position(start);
+                readBuffer.compact();
+            }
+        }
+
+        private void addLine(String line, int octets) {
+            if (monitor.isNoteEnabled()) {
+                monitor.note("<-" + line);
+            }
+            if (monitor.isEventEnabled()) {
+                monitor.lineTransferred(id, Direction.RESPONSE, line, octets, System.nanoTime());
+            }
+            final String received;
+            if (first && shabang != null) {
+                // fake shabang
+                received = shabang;
+            }
+            else {
+                received = line;
+            }
+            first = false;
+            if (reads.isEmpty()) {
+                lines.add(received);
+            }
+            else {
+                reads.poll().set(received);
+            }
+        }
+
+        /**
+         * Closes the connection and fails the operations still pending.
+         */
+        private void close(Exception reason) {
+            if (closed != null) {
+                return;
+            }
+            closed = reason;
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    monitor.note("Failed to close connection: " + e);
+                }
+            }
+            if (connecting != null) {
+                connecting.fail(reason);
+            }
+            while (!reads.isEmpty()) {
+                reads.poll().fail(reason);
+            }
+            while (!writes.isEmpty()) {
+                writes.poll().future.fail(reason);
+            }
+        }
+
+        public String toString() {
+            final String TAB = " ";
+
+            String result = "AsyncSessionGroup.Connection ( " + "id = " + this.id + TAB + "channel = "
+                    + this.channel + TAB + "closed = " + this.closed + TAB + " )";
+
+            return result;
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "AsyncSessionGroup ( " + "address = " + this.address + TAB + "monitor = " + this.monitor
+                + TAB + "shabang = " + this.shabang + TAB + "running = " + this.running + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * <p>
+ * Pool of fixed size byte arrays from which {@link ChunkedBuffer}s draw
+ * their storage. Chunks given back are kept for reuse, up to a limit above
+ * which they are left to the garbage collector.
+ * </p>
+ * <p>
+ * Pools are thread safe. The {@link #getShared() shared} pool lives as long
+ * as the JVM.
+ * </p>
+ */
+public final class ChunkPool {
+
+    /** Default number of bytes in a chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /** Default number of idle chunks kept for reuse */
+    public static final int DEFAULT_MAX_IDLE = 512;
+
+    private static final ChunkPool SHARED = new ChunkPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IDLE);
+
+    /**
+     * Gets the pool shared by the whole JVM.
+     * 
+     * @return not null
+     */
+    public static ChunkPool getShared() {
+        return SHARED;
+    }
+
+    private final int chunkSize;
+
+    private final int maxIdle;
+
+    private final Deque<byte[]> idle = new ArrayDeque<byte[]>();
+
+    /**
+     * Constructs a pool.
+     * 
+     * @param chunkSize
+     *            number of bytes in each chunk, positive
+     * @param maxIdle
+     *            number of idle chunks kept for reuse
+     */
+    public ChunkPool(final int chunkSize, final int maxIdle) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.maxIdle = maxIdle;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Takes a chunk from the pool, allocating one when none is idle.
+     * 
+     * @return array of {@link #getChunkSize()} bytes, not null
+     */
+    public byte[] take() {
+        byte[] chunk;
+        synchronized (idle) {
+            chunk = idle.pollFirst();
+        }
+        if (chunk == null) {
+            chunk = new byte[chunkSize];
+        }
+        return chunk;
+    }
+
+    /**
+     * Gives a chunk back to the pool. The chunk must no longer be used.
+     * 
+     * @param chunk
+     *            taken from this pool, not null
+     */
+    public void give(byte[] chunk) {
+        synchronized (idle) {
+            if (idle.size() < maxIdle) {
+                idle.addFirst(chunk);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of chunks kept for reuse.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ChunkPool ( " + "chunkSize = " + this.chunkSize + TAB + "maxIdle = " + this.maxIdle + TAB
+                + "idle = " + getIdleCount() + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,377 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.james.mpt.api.AsciiLine;
+
+/**
+ * <p>
+ * First in, first out buffer of bytes stored in chunks drawn from a
+ * {@link ChunkPool}. The buffer grows a chunk at a time as bytes are written
+ * and gives each chunk back to the pool as soon as it has been read, so an
+ * empty buffer holds no storage at all.
+ * </p>
+ * <p>
+ * Reading never moves unread bytes. Lines may be read as {@link AsciiLine}
+ * views: a line within a single chunk is viewed in place, without copying.
+ * </p>
+ * <p>
+ * Buffers are not thread safe.
+ * </p>
+ */
+public final class ChunkedBuffer {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ChunkPool pool;
+
+    private final int chunkSize;
+
+    private final Deque<byte[]> chunks = new ArrayDeque<byte[]>();
+
+    /** Chunk being written, or null when there are no chunks */
+    private byte[] tail;
+
+    /** Index of the next byte written in the tail */
+    private int writeIndex;
+
+    /** Index of the next byte read in the first chunk */
+    private int readIndex;
+
+    private int size;
+
+    /** Chunk viewed by the last line read, or null */
+    private byte[] viewed;
+
+    /** Has the viewed chunk been read to its end? */
+    private boolean viewedDetached;
+
+    /** Holds lines spanning chunks, grown as needed */
+    private byte[] lineBytes = new byte[0];
+
+    public ChunkedBuffer() {
+        this(ChunkPool.getShared());
+    }
+
+    public ChunkedBuffer(final ChunkPool pool) {
+        this.pool = pool;
+        this.chunkSize = pool.getChunkSize();
+        this.writeIndex = chunkSize;
+    }
+
+    /**
+     * Gets the number of bytes which have been written but not read.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the number of chunks held.
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    public void write(int b) {
+        if (writeIndex == chunkSize) {
+            addChunk();
+        }
+        tail[writeIndex++] = (byte) b;
+        size++;
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (writeIndex == chunkSize) {
+                addChunk();
+            }
+            final int count = Math.min(length, chunkSize - writeIndex);
+            System.arraycopy(bytes, offset, tail, writeIndex, count);
+            writeIndex += count;
+            size += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer.
+     * 
+     * @param bytes
+     *            not null
+     */
+    public void write(ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        }
+        else {
+            while (bytes.hasRemaining()) {
+                write(bytes.get());
+            }
+        }
+    }
+
+    /**
+     * Writes the characters encoded in US-ASCII. Other characters are
+     * written as <code>?</code>.
+     * 
+     * @param characters
+     *            not null
+     */
+    public void writeAscii(CharSequence characters) {
+        final int length = characters.length();
+        for (int i = 0; i < length; i++) {
+            final char next = characters.charAt(i);
+            write(next < 128 ? next : '?');
+        }
+    }
+
+    /**
+     * Reads a byte.
+     * 
+     * @return the byte, from 0 to 255, or -1 when the buffer is empty
+     */
+    public int read() {
+        releaseView();
+        if (size == 0) {
+            return -1;
+        }
+        final int result = chunks.peekFirst()[readIndex] & 0xFF;
+        consumed(1);
+        return result;
+    }
+
+    /**
+     * Reads up to the given number of bytes.
+     * 
+     * @return number of bytes read, or -1 when the buffer is empty
+     */
+    public int read(byte[] bytes, int offset, int length) {
+        releaseView();
+        if (size == 0) {
+            return length == 0 ? 0 : -1;
+        }
+        int read = 0;
+        while (read < length && size > 0) {
+            final byte[] head = chunks.peekFirst();
+            final int limit = head == tail ? writeIndex : chunkSize;
+            final int count = Math.min(length - read, limit - readIndex);
+            System.arraycopy(head, readIndex, bytes, offset + read, count);
+            read += count;
+            consumed(count);
+        }
+        return read;
+    }
+
+    /**
+     * Reads the next line, decoded from US-ASCII. Lines end with CRLF, a bare
+     * line feed belongs to the line. When no CRLF has been written, the
+     * remaining bytes are read as the line.
+     * 
+     * @return the line, without its terminator, not null
+     */
+    public String readLine() {
+        releaseView();
+        final int lineEnd = indexOfCRLF();
+        final int length = lineEnd < 0 ? size : lineEnd;
+        final byte[] bytes = new byte[length];
+        read(bytes, 0, length);
+        if (lineEnd >= 0) {
+            // CR and LF may lie in different chunks
+            consumed(1);
+            consumed(1);
+        }
+        return new String(bytes, ASCII);
+    }
+
+    /**
+     * Reads the next line as a view. Lines end with CRLF, a bare line feed
+     * belongs to the line. When no CRLF has been written, the remaining
+     * bytes are read as the line.
+     * <p>
+     * A line lying within a single chunk is viewed in place, other lines are
+     * copied into an array reused by this buffer. Either way the view is only
+     * valid until the next read from this buffer.
+     * </p>
+     * 
+     * @param view
+     *            pointed at the line, not null
+     * @return the view, not null
+     */
+    public AsciiLine readLine(AsciiLine view) {
+        releaseView();
+        final int lineEnd = indexOfCRLF();
+        final int length = lineEnd < 0 ? size : lineEnd;
+        final byte[] head = chunks.peekFirst();
+        if (head != null && readIndex + length <= (head == tail ? writeIndex : chunkSize)) {
+            view.set(head, readIndex, length);
+            viewed = head;
+            if (length > 0) {
+                consumed(length);
+            }
+        }
+        else {
+            if (lineBytes.length < length) {
+                lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+            }
+            read(lineBytes, 0, length);
+            view.set(lineBytes, 0, length);
+        }
+        if (lineEnd >= 0) {
+            // CR and LF may lie in different chunks
+            consumed(1);
+            consumed(1);
+        }
+        return view;
+    }
+
+    /**
+     * Finds the first unread CRLF.
+     * 
+     * @return number of unread bytes before the CRLF, or -1 when none has
+     *         been written
+     */
+    public int indexOfCRLF() {
+        int offset = 0;
+        int start = readIndex;
+        byte last = 0;
+        for (final byte[] chunk : chunks) {
+            final int limit = chunk == tail ? writeIndex : chunkSize;
+            for (int i = start; i < limit; i++) {
+                final byte next = chunk[i];
+                if (next == '\n' && last == '\r') {
+                    return offset + i - start - 1;
+                }
+                last = next;
+            }
+            offset += limit - start;
+            start = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first unread occurrence of the given byte.
+     * 
+     * @return number of unread bytes before the byte, or -1 when it has not
+     *         been written
+     */
+    public int indexOf(byte b) {
+        int offset = 0;
+        int start = readIndex;
+        for (final byte[] chunk : chunks) {
+            final int limit = chunk == tail ? writeIndex : chunkSize;
+            for (int i = start; i < limit; i++) {
+                if (chunk[i] == b) {
+                    return offset + i - start;
+                }
+            }
+            offset += limit - start;
+            start = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Discards the bytes written and gives all chunks back to the pool.
+     */
+    public void clear() {
+        releaseView();
+        discard();
+    }
+
+    private void discard() {
+        while (!chunks.isEmpty()) {
+            recycle(chunks.pollFirst());
+        }
+        tail = null;
+        writeIndex = chunkSize;
+        readIndex = 0;
+        size = 0;
+    }
+
+    private void addChunk() {
+        tail = pool.take();
+        chunks.addLast(tail);
+        writeIndex = 0;
+    }
+
+    /**
+     * Moves past bytes read from the first chunk.
+     */
+    private void consumed(int count) {
+        readIndex += count;
+        size -= count;
+        if (size == 0) {
+            discard();
+        }
+        else if (readIndex == chunkSize) {
+            recycle(chunks.pollFirst());
+            readIndex = 0;
+        }
+    }
+
+    /**
+     * Gives a chunk read to its end back to the pool, unless a line view
+     * still points into it.
+     */
+    private void recycle(byte[] chunk) {
+        if (chunk == viewed) {
+            viewedDetached = true;
+        }
+        else {
+            pool.give(chunk);
+        }
+    }
+
+    /**
+     * Invalidates the last line view, giving back its chunk when it has been
+     * read to its end.
+     */
+    private void releaseView() {
+        if (viewed != null) {
+            if (viewedDetached) {
+                pool.give(viewed);
+            }
+            viewed = null;
+            viewedDetached = false;
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ChunkedBuffer ( " + "size = " + this.size + TAB + "chunks = " + this.chunks.size() + TAB
+                + " )";
+
+        return result;
+    }
+}
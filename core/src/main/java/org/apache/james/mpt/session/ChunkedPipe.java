@@ -0,0 +1,381 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+import org.apache.james.mpt.api.AsciiLine;
+
+/**
+ * <p>
+ * Bounded pipe carrying bytes from a writing thread to a reading thread,
+ * buffered in a {@link ChunkedBuffer}. Writers block while the pipe is full
+ * and readers block while it is empty, as on a socket.
+ * </p>
+ * <p>
+ * A reader waiting for the end of a line lets writers go over capacity, so
+ * that lines longer than the capacity do not dead lock the pipe.
+ * </p>
+ */
+public final class ChunkedPipe {
+
+    /** Default number of unread bytes above which writers block */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final ChunkedBuffer buffer;
+
+    private final int capacity;
+
+    private final InputStream in = new PipeInputStream();
+
+    private final OutputStream out = new PipeOutputStream();
+
+    /** Has the writer finished? */
+    private boolean closed = false;
+
+    /** Has the reader finished? Later writes fail */
+    private boolean readerClosed = false;
+
+    /** Why the writer finished, or null */
+    private Throwable cause;
+
+    /** Is a reader waiting for the end of a line? */
+    private boolean lineWanted = false;
+
+    private long firstWriteNanos = -1;
+
+    public ChunkedPipe() {
+        this(DEFAULT_CAPACITY, ChunkPool.getShared());
+    }
+
+    /**
+     * Constructs a pipe.
+     * 
+     * @param capacity
+     *            number of unread bytes above which writers block, positive
+     * @param pool
+     *            chunks are drawn from this pool, not null
+     */
+    public ChunkedPipe(final int capacity, final ChunkPool pool) {
+        this.capacity = capacity;
+        this.buffer = new ChunkedBuffer(pool);
+    }
+
+    /**
+     * Gets the stream reading from this pipe. Closing it closes the reading
+     * end.
+     * 
+     * @return not null
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Gets the stream writing to this pipe. Closing it closes the writing
+     * end.
+     * 
+     * @return not null
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public synchronized void write(int b) throws IOException {
+        awaitSpace();
+        noteWrite();
+        buffer.write(b);
+        notifyAll();
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            awaitSpace();
+            final int count = lineWanted ? length : Math.min(length, capacity - buffer.size());
+            noteWrite();
+            buffer.write(bytes, offset, count);
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes a line encoded in US-ASCII, followed by CRLF.
+     * 
+     * @param line
+     *            not null
+     */
+    public void writeLine(CharSequence line) throws IOException {
+        final byte[] bytes = new byte[line.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            final char next = line.charAt(i);
+            bytes[i] = (byte) (next < 128 ? next : '?');
+        }
+        synchronized (this) {
+            write(bytes, 0, bytes.length);
+            write(CRLF, 0, CRLF.length);
+        }
+    }
+
+    public synchronized int read() throws IOException {
+        if (!awaitBytes()) {
+            return -1;
+        }
+        final int result = buffer.read();
+        notifyAll();
+        return result;
+    }
+
+    public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!awaitBytes()) {
+            return -1;
+        }
+        final int result = buffer.read(bytes, offset, length);
+        notifyAll();
+        return result;
+    }
+
+    /**
+     * Reads the next line as a view, waiting until it has been written. When
+     * the writer closes the pipe, the remaining bytes are read as the line.
+     * 
+     * @param view
+     *            pointed at the line, valid until the next read, not null
+     * @param timeout
+     *            milliseconds allowed for the line to be written
+     * @return the view, not null
+     * @throws EOFException
+     *             when the writer closed the pipe and all bytes have been
+     *             read
+     * @throws SocketTimeoutException
+     *             when the line is not written in time
+     */
+    public synchronized AsciiLine readLine(AsciiLine view, long timeout) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        lineWanted = true;
+        notifyAll();
+        try {
+            while (buffer.indexOfCRLF() < 0 && !closed && !readerClosed) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No line written within " + timeout + "ms");
+                }
+                await(remaining);
+            }
+        }
+        finally {
+            lineWanted = false;
+        }
+        if (readerClosed) {
+            throw new IOException("Pipe closed by reader");
+        }
+        if (buffer.isEmpty()) {
+            throw endOfPipe();
+        }
+        buffer.readLine(view);
+        notifyAll();
+        return view;
+    }
+
+    /**
+     * Has a whole line been written but not read yet?
+     * 
+     * @return true when an unread CRLF has been written
+     */
+    public synchronized boolean hasLine() {
+        return buffer.indexOfCRLF() >= 0;
+    }
+
+    /**
+     * Has the writing end been closed?
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the number of unread bytes.
+     */
+    public synchronized int available() {
+        return buffer.size();
+    }
+
+    /**
+     * Closes the writing end. Bytes written remain readable.
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Closes the writing end because the writer failed. Bytes written remain
+     * readable, reading past them throws an exception caused by the failure.
+     * 
+     * @param cause
+     *            why the writer failed, or null
+     */
+    public synchronized void close(Throwable cause) {
+        if (!closed) {
+            closed = true;
+            this.cause = cause;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the reading end. Unread bytes are discarded and later writes
+     * fail.
+     */
+    public synchronized void closeRead() {
+        readerClosed = true;
+        buffer.clear();
+        notifyAll();
+    }
+
+    /**
+     * Gets the time at which the first byte was written since the last call
+     * to {@link #resetFirstWrite()}.
+     * 
+     * @return {@link System#nanoTime()} of the write, or -1 when nothing has
+     *         been written
+     */
+    public synchronized long getFirstWriteNanos() {
+        return firstWriteNanos;
+    }
+
+    /**
+     * Starts timing the next write.
+     */
+    public synchronized void resetFirstWrite() {
+        firstWriteNanos = -1;
+    }
+
+    private void noteWrite() {
+        if (firstWriteNanos < 0) {
+            firstWriteNanos = System.nanoTime();
+        }
+    }
+
+    private void awaitSpace() throws IOException {
+        while (true) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            if (lineWanted || buffer.size() < capacity) {
+                return;
+            }
+            await(0);
+        }
+    }
+
+    /**
+     * Waits for bytes to read.
+     * 
+     * @return false when the writer closed the pipe and all bytes have been
+     *         read
+     */
+    private boolean awaitBytes() throws IOException {
+        while (buffer.isEmpty()) {
+            if (readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+            if (closed) {
+                return false;
+            }
+            await(0);
+        }
+        return true;
+    }
+
+    private void await(long timeout) throws InterruptedIOException {
+        try {
+            wait(timeout);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on pipe");
+        }
+    }
+
+    private EOFException endOfPipe() {
+        final EOFException result = new EOFException("Pipe closed by writer");
+        if (cause != null) {
+            result.initCause(cause);
+        }
+        return result;
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ChunkedPipe ( " + "capacity = " + this.capacity + TAB + "closed = " + this.closed + TAB
+                + "readerClosed = " + this.readerClosed + TAB + "buffer = " + this.buffer + TAB + " )";
+
+        return result;
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        public int read() throws IOException {
+            return ChunkedPipe.this.read();
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return ChunkedPipe.this.read(bytes, offset, length);
+        }
+
+        public int available() throws IOException {
+            return ChunkedPipe.this.available();
+        }
+
+        public void close() throws IOException {
+            closeRead();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            ChunkedPipe.this.write(b);
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ChunkedPipe.this.write(bytes, offset, length);
+        }
+
+        public void close() throws IOException {
+            ChunkedPipe.this.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.james.mpt.api.AsyncSession;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFuture;
+
+/**
+ * <p>
+ * Adapts a {@link Session} to {@link AsyncSession}. Operations are queued and
+ * performed one at a time, in order, by an {@link Executor}; no thread is
+ * held by the session between operations.
+ * </p>
+ * <p>
+ * Sessions which never block, such as in-process sessions whose server
+ * handles each request on the calling thread, may run operations on the
+ * caller's thread. A session which may block should be given an executor
+ * whose threads may wait on it.
+ * </p>
+ */
+public final class ExecutorAsyncSession implements AsyncSession {
+
+    /** Runs operations on the thread submitting them */
+    private static final Executor CALLER = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Session session;
+
+    private final Executor executor;
+
+    /** Operations not yet performed, guarded by itself */
+    private final Queue<Operation<?>> operations = new LinkedList<Operation<?>>();
+
+    /** Is the executor draining operations? Guarded by operations */
+    private boolean draining = false;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            while (true) {
+                final Operation<?> next;
+                synchronized (operations) {
+                    next = operations.poll();
+                    if (next == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                }
+                catch (RuntimeException e) {
+                    // a callback failed, later operations run on the next submission
+                    synchronized (operations) {
+                        draining = false;
+                    }
+                    throw e;
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructs an adapter performing operations on the calling thread.
+     * Operations submitted by callbacks are performed once the current
+     * operation has completed, not recursively.
+     * 
+     * @param session
+     *            session which never blocks, not null
+     */
+    public ExecutorAsyncSession(final Session session) {
+        this(session, CALLER);
+    }
+
+    /**
+     * Constructs an adapter.
+     * 
+     * @param session
+     *            not null
+     * @param executor
+     *            performs the operations, not null
+     */
+    public ExecutorAsyncSession(final Session session, final Executor executor) {
+        this.session = session;
+        this.executor = executor;
+    }
+
+    public SessionFuture<String> readLineAsync() {
+        return submit(new Operation<String>() {
+            protected String perform() throws Exception {
+                return session.readLine();
+            }
+        });
+    }
+
+    public SessionFuture<Void> writeLineAsync(final String line) {
+        return submit(new Operation<Void>() {
+            protected Void perform() throws Exception {
+                session.writeLine(line);
+                return null;
+            }
+        });
+    }
+
+    public SessionFuture<Void> startAsync() {
+        return submit(new Operation<Void>() {
+            protected Void perform() throws Exception {
+                session.start();
+                return null;
+            }
+        });
+    }
+
+    public SessionFuture<Void> stopAsync() {
+        return submit(new Operation<Void>() {
+            protected Void perform() throws Exception {
+                session.stop();
+                return null;
+            }
+        });
+    }
+
+    private <V> SessionFuture<V> submit(Operation<V> operation) {
+        synchronized (operations) {
+            operations.add(operation);
+            if (draining) {
+                return operation.future;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(drain);
+        }
+        catch (RejectedExecutionException e) {
+            final Queue<Operation<?>> rejected;
+            synchronized (operations) {
+                rejected = new LinkedList<Operation<?>>(operations);
+                operations.clear();
+                draining = false;
+            }
+            for (Operation<?> next : rejected) {
+                next.future.fail(e);
+            }
+        }
+        return operation.future;
+    }
+
+    private static abstract class Operation<V> implements Runnable {
+
+        final SettableSessionFuture<V> future = new SettableSessionFuture<V>();
+
+        protected abstract V perform() throws Exception;
+
+        public void run() {
+            final V result;
+            try {
+                result = perform();
+            }
+            catch (Exception e) {
+                future.fail(e);
+                return;
+            }
+            future.set(result);
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ExecutorAsyncSession ( " + "session = " + this.session + TAB + "executor = "
+                + this.executor + TAB + " )";
+
+        return result;
+    }
+}
@@ -19,25 +19,44 @@
 
 package org.apache.james.mpt.session;
 
+import java.io.EOFException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.api.ByteSession;
 import org.apache.james.mpt.api.Monitor;
-import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.Monitor.Direction;
 
-public final class ExternalSession implements Session {
+public final class ExternalSession implements ByteSession {
 
     /** Number of milliseconds to sleep after empty read */
     private static final int SHORT_WAIT_FOR_INPUT = 10;
 
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+
     private static final byte[] CRLF = { '\r', '\n' };
 
     private final SocketChannel socket;
 
     private final Monitor monitor;
 
-    private final ByteBuffer readBuffer;
+    /** Received bytes, from zero to position, unread from consumed */
+    private ByteBuffer readBuffer;
+
+    /** Bytes before this index have been read */
+    private int consumed;
+
+    /** Reused to copy each line out of the direct read buffer */
+    private byte[] lineBytes = new byte[INITIAL_BUFFER_SIZE];
+
+    private final AsciiLine lineView = new AsciiLine();
+
+    private final AsciiLine requestView = new AsciiLine();
+
+    /** Octets taken by the last line read, including the line terminator */
+    private int lastLineOctets;
 
     private final Charset ascii;
 
@@ -47,6 +66,8 @@ public final class ExternalSession implements Session {
 
     private final String shabang;
 
+    private final int id = SessionIds.next();
+
     public ExternalSession(final SocketChannel socket, final Monitor monitor, String shabang) {
         this(socket, monitor, shabang, false);
     }
@@ -55,74 +76,127 @@ public final class ExternalSession implements Session {
         super();
         this.socket = socket;
         this.monitor = monitor;
-        readBuffer = ByteBuffer.allocateDirect(2048);
+        readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
         ascii = Charset.forName("US-ASCII");
         lineEndBuffer = ByteBuffer.wrap(CRLF);
         this.shabang = shabang;
     }
 
     public String readLine() throws Exception {
-        StringBuffer buffer = new StringBuffer();
-        readlineInto(buffer);
-        final String result;
+        return readLineView().toString();
+    }
+
+    /**
+     * Reads a line without decoding it. The line is a view over a buffer
+     * reused by the next read.
+     */
+    public AsciiLine readLineView() throws Exception {
+        final AsciiLine line = readNextLine();
+        if (monitor.isNoteEnabled()) {
+            monitor.note("<-" + line);
+        }
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.RESPONSE, line, lastLineOctets, System.nanoTime());
+        }
         if (first && shabang != null) {
             // fake shabang
-            monitor.note("<-" + buffer.toString());
-            result = shabang;
             first = false;
+            final byte[] bytes = shabang.getBytes(ascii);
+            return new AsciiLine(bytes, 0, bytes.length);
         }
-        else {
-            result = buffer.toString();
-            monitor.note("<-" + result);
-        }
-        return result;
+        return line;
     }
 
-    private void readlineInto(StringBuffer buffer) throws Exception {
-        monitor.debug("[Reading line]");
-        readBuffer.flip();
-        while (oneFromLine(buffer))
-            ;
-        // May have partial read
-        readBuffer.compact();
-        monitor.debug("[Done]");
+    /**
+     * Reads the next line. Received bytes are searched for the line feed in
+     * bulk and the line is copied out in one operation. The read buffer
+     * grows when a line is longer than it.
+     */
+    private AsciiLine readNextLine() throws Exception {
+        final boolean debug = monitor.isDebugEnabled();
+        if (debug) {
+            monitor.debug("[Reading line]");
+        }
+        if (consumed == readBuffer.position()) {
+            readBuffer.clear();
+            consumed = 0;
+        }
+        // bytes before scanned are known not to be line feeds
+        int scanned = consumed;
+        while (true) {
+            final int end = readBuffer.position();
+            for (int i = scanned; i < end; i++) {
+                if (readBuffer.get(i) == '\n') {
+                    final AsciiLine line = takeLine(i);
+                    if (debug) {
+                        for (int j = 0; j < line.length(); j++) {
+                            monitor.debug(line.charAt(j));
+                        }
+                        monitor.debug("[Done]");
+                    }
+                    return line;
+                }
+            }
+            scanned = end - consumed;
+            fill(debug);
+            scanned += consumed;
+        }
     }
 
-    private boolean oneFromLine(StringBuffer buffer) throws Exception {
-        final boolean result;
-        if (readBuffer.hasRemaining()) {
-            char next = (char) readBuffer.get();
-            if (next == '\n') {
-                monitor.debug("[LF]");
-                // Reached end of the line
-                result = false;
-            }
-            else if (next == '\r') {
-                // CRLF line endings so drop
-                monitor.debug("[CR]");
-                result = true;
+    /**
+     * Reads more bytes from the socket. When the read buffer is full, the
+     * bytes read are discarded or, when there are none, the buffer grows.
+     */
+    private void fill(boolean debug) throws Exception {
+        if (debug) {
+            monitor.debug("[Reading into buffer]");
+        }
+        if (!readBuffer.hasRemaining()) {
+            readBuffer.flip();
+            readBuffer.position(consumed);
+            if (consumed > 0) {
+                readBuffer.compact();
             }
             else {
-                // Load buffer
-                monitor.debug(next);
-                buffer.append(next);
-                result = true;
+                final ByteBuffer larger = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+                larger.put(readBuffer);
+                readBuffer = larger;
             }
+            consumed = 0;
         }
-        else {
-            monitor.debug("[Reading into buffer]");
-            readBuffer.clear();
-            while (socket.read(readBuffer) == 0) {
-                // No response yet
-                // Wait a little while
-                Thread.sleep(SHORT_WAIT_FOR_INPUT);
-            }
-            // Reset for transfer into string buffer
-            readBuffer.flip();
+        int read;
+        while ((read = socket.read(readBuffer)) == 0) {
+            // No response yet
+            // Wait a little while
+            Thread.sleep(SHORT_WAIT_FOR_INPUT);
+        }
+        if (read < 0) {
+            throw new EOFException("Connection closed by server");
+        }
+        if (debug) {
             monitor.debug("[Done]");
-            result = true;
         }
-        return result;
+    }
+
+    /**
+     * Copies out the line ending at the given index and marks it read.
+     */
+    private AsciiLine takeLine(int lineFeed) {
+        int end = lineFeed;
+        if (end > consumed && readBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        final int length = end - consumed;
+        if (lineBytes.length < length) {
+            lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+        }
+        final int received = readBuffer.position();
+        readBuffer.position(consumed);
+        readBuffer.get(lineBytes, 0, length);
+        readBuffer.position(received);
+        lastLineOctets = lineFeed + 1 - consumed;
+        consumed = lineFeed + 1;
+        return lineView.set(lineBytes, 0, length);
     }
 
     public void start() throws Exception {
@@ -138,9 +212,45 @@ public final class ExternalSession implements Session {
     }
 
     public void writeLine(String line) throws Exception {
-        monitor.note("-> " + line);
-        monitor.debug("[Writing line]");
-        ByteBuffer writeBuffer = ascii.encode(line);
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + line);
+        }
+        final ByteBuffer writeBuffer = ascii.encode(line);
+        final int octets = writeBuffer.remaining() + CRLF.length;
+        writeBytes(writeBuffer);
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.REQUEST, line, octets, System.nanoTime());
+        }
+    }
+
+    public void writeLine(ByteBuffer line) throws Exception {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + ascii.decode(line.duplicate()));
+        }
+        final CharSequence transferred = monitor.isEventEnabled() ? view(line) : null;
+        final int octets = line.remaining() + CRLF.length;
+        writeBytes(line);
+        if (transferred != null) {
+            monitor.lineTransferred(id, Direction.REQUEST, transferred, octets, System.nanoTime());
+        }
+    }
+
+    /**
+     * Views the bytes of a line to be written, decoding them only when they
+     * are not backed by an array.
+     */
+    private CharSequence view(ByteBuffer line) {
+        if (line.hasArray()) {
+            return requestView.set(line.array(), line.arrayOffset() + line.position(), line.remaining());
+        }
+        return ascii.decode(line.duplicate());
+    }
+
+    private void writeBytes(ByteBuffer writeBuffer) throws Exception {
+        final boolean debug = monitor.isDebugEnabled();
+        if (debug) {
+            monitor.debug("[Writing line]");
+        }
         while (writeBuffer.hasRemaining()) {
             socket.write(writeBuffer);
         }
@@ -148,7 +258,9 @@ public final class ExternalSession implements Session {
         while (lineEndBuffer.hasRemaining()) {
             socket.write(lineEndBuffer);
         }
-        monitor.debug("[Done]");
+        if (debug) {
+            monitor.debug("[Done]");
+        }
     }
 
     /**
@@ -0,0 +1,259 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.mpt.api.Monitor;
+import org.apache.james.mpt.api.Monitor.Direction;
+import org.apache.james.mpt.api.ResumableSession;
+import org.apache.james.mpt.exception.SessionNotReadyException;
+
+/**
+ * Connection driven by a {@link SessionMultiplexer} event loop. Reads return
+ * lines already received and writes are buffered until the loop flushes them,
+ * so no call ever blocks. Only used from the thread of the loop which owns the
+ * connection.
+ */
+final class MultiplexedSession implements ResumableSession {
+
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+
+    /** Number of committed lines kept before the line list is compacted */
+    private static final int MAX_COMMITTED_LINES = 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SocketChannel channel;
+
+    private final Monitor monitor;
+
+    private final String shabang;
+
+    private final SessionMultiplexer.Execution execution;
+
+    /** Replaces characters which are not ASCII, as {@link SelectorSession} does */
+    private final CharsetEncoder encoder = ASCII.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** Received lines, from head */
+    private final List<String> lines = new ArrayList<String>();
+
+    private int head = 0;
+
+    private int readIndex = 0;
+
+    /** Received bytes not yet split into lines, from zero to position */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /** Bytes waiting to be written, from zero to position */
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    private SelectionKey key;
+
+    private boolean first = true;
+
+    private boolean endOfStream = false;
+
+    private final int id = SessionIds.next();
+
+    MultiplexedSession(SocketChannel channel, Monitor monitor, String shabang, SessionMultiplexer.Execution execution) {
+        this.channel = channel;
+        this.monitor = monitor;
+        this.shabang = shabang;
+        this.execution = execution;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SessionMultiplexer.Execution getExecution() {
+        return execution;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public String readLine() throws Exception {
+        if (readIndex < lines.size()) {
+            return lines.get(readIndex++);
+        }
+        else if (endOfStream) {
+            throw new EOFException("Connection closed by server");
+        }
+        else {
+            throw SessionNotReadyException.INSTANCE;
+        }
+    }
+
+    public void commit() {
+        head = readIndex;
+        if (head == lines.size()) {
+            lines.clear();
+            head = 0;
+            readIndex = 0;
+        }
+        else if (head > MAX_COMMITTED_LINES) {
+            lines.subList(0, head).clear();
+            head = 0;
+            readIndex = 0;
+        }
+    }
+
+    public void rollback() {
+        readIndex = head;
+    }
+
+    public void writeLine(String line) throws Exception {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + line);
+        }
+        final int start = writeBuffer.position();
+        final int required = line.length() + 2;
+        if (writeBuffer.remaining() < required) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer
+                    .position() + required));
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(line), writeBuffer, true);
+        writeBuffer.put((byte) '\r');
+        writeBuffer.put((byte) '\n');
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.REQUEST, line, writeBuffer.position() - start, System.nanoTime());
+        }
+    }
+
+    /**
+     * Connections are opened by the multiplexer.
+     */
+    public void start() throws Exception {
+    }
+
+    public void stop() throws Exception {
+        monitor.note("closing");
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    /**
+     * Reads all available bytes and splits them into lines.
+     * 
+     * @return true when new lines, or the end of the stream, have been
+     *         received
+     */
+    boolean receive() throws IOException {
+        final int before = lines.size();
+        while (!endOfStream) {
+            if (!readBuffer.hasRemaining()) {
+                final ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            final int read = channel.read(readBuffer);
+            if (read < 0) {
+                endOfStream = true;
+            }
+            else if (read == 0) {
+                break;
+            }
+        }
+        splitLines();
+        return endOfStream || lines.size() > before;
+    }
+
+    private void splitLines() {
+        final byte[] bytes = readBuffer.array();
+        final int end = readBuffer.position();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                int length = i - start;
+                if (length > 0 && bytes[i - 1] == '\r') {
+                    length--;
+                }
+                addLine(new String(bytes, start, length, ASCII), i + 1 - start);
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            readBuffer.flip();
+            readBuffer.position(start);
+            readBuffer.compact();
+        }
+    }
+
+    private void addLine(String line, int octets) {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("<-" + line);
+        }
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.RESPONSE, line, octets, System.nanoTime());
+        }
+        if (first && shabang != null) {
+            // fake shabang
+            lines.add(shabang);
+        }
+        else {
+            lines.add(line);
+        }
+        first = false;
+    }
+
+    /**
+     * Writes as much buffered output as the socket accepts.
+     * 
+     * @return true when all output has been written
+     */
+    boolean flush() throws IOException {
+        if (writeBuffer.position() > 0) {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+        }
+        return writeBuffer.position() == 0;
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "MultiplexedSession ( " + "channel = " + this.channel + TAB + "lines = "
+                + (this.lines.size() - this.head) + TAB + "endOfStream = " + this.endOfStream + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,358 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.io.EOFException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.api.ByteSession;
+import org.apache.james.mpt.api.Monitor;
+import org.apache.james.mpt.api.Monitor.Direction;
+
+/**
+ * <p>
+ * Connection to an external host which waits for the socket on a
+ * {@link Selector} rather than polling it.
+ * </p>
+ * <p>
+ * A line is returned as soon as it has been received, so response times are
+ * not rounded up to a polling interval. Connecting and reading each line are
+ * bounded by deadlines: when a deadline passes a
+ * {@link SocketTimeoutException} is thrown.
+ * </p>
+ */
+public final class SelectorSession implements ByteSession {
+
+    /** Default number of milliseconds allowed to establish the connection */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 30000;
+
+    /** Default number of milliseconds allowed to receive each line */
+    public static final long DEFAULT_LINE_TIMEOUT = 30000;
+
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SocketChannel socket;
+
+    private final Monitor monitor;
+
+    private final String shabang;
+
+    private final long connectTimeout;
+
+    private long lineTimeout;
+
+    private final ByteBuffer lineEndBuffer;
+
+    /**
+     * Received bytes, from zero to position, unread from consumed. Always
+     * backed by an array.
+     */
+    private ByteBuffer readBuffer;
+
+    private Selector selector;
+
+    private SelectionKey key;
+
+    private boolean first = true;
+
+    private long lastWriteNanos;
+
+    private long responseTimeNanos = -1;
+
+    /** Bytes before this index have been read */
+    private int consumed;
+
+    private final AsciiLine lineView = new AsciiLine();
+
+    private final AsciiLine requestView = new AsciiLine();
+
+    private final AsciiLine shabangLine;
+
+    private final int id = SessionIds.next();
+
+    public SelectorSession(final SocketChannel socket, final Monitor monitor, final String shabang) {
+        this(socket, monitor, shabang, DEFAULT_CONNECT_TIMEOUT, DEFAULT_LINE_TIMEOUT);
+    }
+
+    /**
+     * Constructs a session.
+     * 
+     * @param socket
+     *            connected, or connecting, channel, not null
+     * @param monitor
+     *            not null
+     * @param shabang
+     *            replaces the first line received, or null
+     * @param connectTimeout
+     *            milliseconds allowed for the connection to be established
+     * @param lineTimeout
+     *            milliseconds allowed to receive each line
+     */
+    public SelectorSession(final SocketChannel socket, final Monitor monitor, final String shabang,
+            final long connectTimeout, final long lineTimeout) {
+        this.socket = socket;
+        this.monitor = monitor;
+        this.shabang = shabang;
+        this.connectTimeout = connectTimeout;
+        this.lineTimeout = lineTimeout;
+        lineEndBuffer = ByteBuffer.wrap(CRLF);
+        readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        if (shabang == null) {
+            shabangLine = null;
+        }
+        else {
+            final byte[] bytes = shabang.getBytes(ASCII);
+            shabangLine = new AsciiLine(bytes, 0, bytes.length);
+        }
+    }
+
+    public long getLineTimeout() {
+        return lineTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds allowed to receive each line.
+     * 
+     * @param lineTimeout
+     *            positive
+     */
+    public void setLineTimeout(long lineTimeout) {
+        this.lineTimeout = lineTimeout;
+    }
+
+    /**
+     * Gets the time between the last line written and the last line read.
+     * 
+     * @return nanoseconds, or -1 when no line has been read after a write
+     */
+    public long getResponseTimeNanos() {
+        return responseTimeNanos;
+    }
+
+    public void start() throws Exception {
+        socket.configureBlocking(false);
+        selector = Selector.open();
+        key = socket.register(selector, 0);
+        final long deadline = System.currentTimeMillis() + connectTimeout;
+        while (!socket.finishConnect()) {
+            monitor.note("connecting...");
+            await(SelectionKey.OP_CONNECT, deadline, "Connection timed out");
+        }
+    }
+
+    public void stop() throws Exception {
+        monitor.note("closing");
+        try {
+            socket.close();
+        }
+        finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    public String readLine() throws Exception {
+        return readLineView().toString();
+    }
+
+    /**
+     * Reads a line without decoding it. The line is a view over the read
+     * buffer, which is only compacted or refilled by the next read.
+     */
+    public AsciiLine readLineView() throws Exception {
+        final int lineFeed = nextLineFeed();
+        final int start = consumed;
+        int end = lineFeed;
+        if (end > start && readBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        consumed = lineFeed + 1;
+        lineView.set(readBuffer.array(), start, end - start);
+        if (lastWriteNanos > 0) {
+            responseTimeNanos = System.nanoTime() - lastWriteNanos;
+        }
+        if (monitor.isNoteEnabled()) {
+            monitor.note("<-" + lineView);
+        }
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.RESPONSE, lineView, consumed - start, System.nanoTime());
+        }
+        if (first && shabang != null) {
+            // fake shabang
+            first = false;
+            return shabangLine;
+        }
+        return lineView;
+    }
+
+    /**
+     * Waits for the next line, discarding the previous one. Unread bytes are
+     * only moved to the front of the buffer when it is full.
+     * 
+     * @return index of the line feed ending the line, the line starts at
+     *         consumed
+     */
+    private int nextLineFeed() throws Exception {
+        if (consumed == readBuffer.position()) {
+            readBuffer.clear();
+            consumed = 0;
+        }
+        final long deadline = System.currentTimeMillis() + lineTimeout;
+        int scanned = consumed;
+        while (true) {
+            final byte[] bytes = readBuffer.array();
+            final int end = readBuffer.position();
+            for (int i = scanned; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    return i;
+                }
+            }
+            scanned = end;
+            if (!readBuffer.hasRemaining()) {
+                scanned -= consumed;
+                makeRoom();
+            }
+            final int read = socket.read(readBuffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (read == 0) {
+                await(SelectionKey.OP_READ, deadline, "No line received within " + lineTimeout + "ms");
+            }
+        }
+    }
+
+    /**
+     * Discards the bytes read when there are any, otherwise grows the buffer.
+     */
+    private void makeRoom() {
+        readBuffer.flip();
+        readBuffer.position(consumed);
+        if (consumed > 0) {
+            readBuffer.compact();
+        }
+        else {
+            final ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        consumed = 0;
+    }
+
+    public void writeLine(String line) throws Exception {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + line);
+        }
+        final ByteBuffer writeBuffer = ASCII.encode(line);
+        final int octets = writeBuffer.remaining() + CRLF.length;
+        writeBytes(writeBuffer);
+        if (monitor.isEventEnabled()) {
+            monitor.lineTransferred(id, Direction.REQUEST, line, octets, lastWriteNanos);
+        }
+    }
+
+    public void writeLine(ByteBuffer line) throws Exception {
+        if (monitor.isNoteEnabled()) {
+            monitor.note("-> " + ASCII.decode(line.duplicate()));
+        }
+        final CharSequence transferred = monitor.isEventEnabled() ? view(line) : null;
+        final int octets = line.remaining() + CRLF.length;
+        writeBytes(line);
+        if (transferred != null) {
+            monitor.lineTransferred(id, Direction.REQUEST, transferred, octets, lastWriteNanos);
+        }
+    }
+
+    /**
+     * Views the bytes of a line to be written, decoding them only when they
+     * are not backed by an array.
+     */
+    private CharSequence view(ByteBuffer line) {
+        if (line.hasArray()) {
+            return requestView.set(line.array(), line.arrayOffset() + line.position(), line.remaining());
+        }
+        return ASCII.decode(line.duplicate());
+    }
+
+    private void writeBytes(ByteBuffer line) throws Exception {
+        final long deadline = System.currentTimeMillis() + lineTimeout;
+        write(line, deadline);
+        lineEndBuffer.rewind();
+        write(lineEndBuffer, deadline);
+        lastWriteNanos = System.nanoTime();
+    }
+
+    private void write(ByteBuffer buffer, long deadline) throws Exception {
+        while (buffer.hasRemaining()) {
+            if (socket.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE, deadline, "Write timed out");
+            }
+        }
+    }
+
+    /**
+     * Waits until the channel is ready for the given operation.
+     * 
+     * @throws SocketTimeoutException
+     *             when the deadline passes first
+     */
+    private void await(int operation, long deadline, String timeoutMessage) throws Exception {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException(timeoutMessage);
+        }
+        key.interestOps(operation);
+        try {
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+        finally {
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "SelectorSession ( " + "socket = " + this.socket + TAB + "monitor = " + this.monitor + TAB
+                + "readBuffer = " + this.readBuffer + TAB + "connectTimeout = " + this.connectTimeout + TAB
+                + "lineTimeout = " + this.lineTimeout + TAB + "first = " + this.first + TAB + "shabang = "
+                + this.shabang + TAB + " )";
+
+        return result;
+    }
+}
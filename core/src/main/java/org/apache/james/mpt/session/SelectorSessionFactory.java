@@ -0,0 +1,90 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.Monitor;
+import org.apache.james.mpt.api.Session;
+
+/**
+ * Opens {@link SelectorSession}s. The connection is established
+ * asynchronously and completed, within the connect timeout, when the session
+ * is started.
+ */
+public class SelectorSessionFactory extends ExternalSessionFactory {
+
+    private final long connectTimeout;
+
+    private final long lineTimeout;
+
+    public SelectorSessionFactory(final String host, final int port, final Monitor monitor, final String shabang) {
+        this(new InetSocketAddress(host, port), monitor, shabang, SelectorSession.DEFAULT_CONNECT_TIMEOUT,
+                SelectorSession.DEFAULT_LINE_TIMEOUT);
+    }
+
+    /**
+     * Constructs a factory.
+     * 
+     * @param address
+     *            connect to this address, not null
+     * @param monitor
+     *            not null
+     * @param shabang
+     *            replaces the first line received, or null
+     * @param connectTimeout
+     *            milliseconds allowed for each connection to be established
+     * @param lineTimeout
+     *            milliseconds allowed to receive each line
+     */
+    public SelectorSessionFactory(final InetSocketAddress address, final Monitor monitor, final String shabang,
+            final long connectTimeout, final long lineTimeout) {
+        super(address, monitor, shabang);
+        this.connectTimeout = connectTimeout;
+        this.lineTimeout = lineTimeout;
+    }
+
+    public Session newSession(Continuation continuation) throws Exception {
+        InetSocketAddress address = getAddress();
+        monitor.note("Connecting to " + address.getHostName() + ":" + address.getPort());
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        return new SelectorSession(channel, monitor, shabang, connectTimeout, lineTimeout);
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String retValue = "SelectorSessionFactory ( " + "address = " + this.getAddress() + TAB + "monitor = "
+                + this.monitor + TAB + "shabang = " + this.shabang + TAB + "connectTimeout = " + this.connectTimeout
+                + TAB + "lineTimeout = " + this.lineTimeout + TAB + " )";
+
+        return retValue;
+    }
+}
@@ -0,0 +1,507 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.mpt.api.Monitor;
+import org.apache.james.mpt.protocol.ScriptCursor;
+import org.apache.james.mpt.protocol.ScriptPlan;
+
+/**
+ * <p>
+ * Runs many scripts against an external host from a small number of threads.
+ * </p>
+ * <p>
+ * Each thread owns a {@link Selector} and an event loop. A submitted script
+ * is assigned to one loop, which opens its connections and
+ * {@link ScriptCursor#resume() resumes} its cursor each time one of them
+ * receives input. Threads are therefore never blocked by a single connection
+ * and tens of thousands of connections may be held open by one JVM.
+ * </p>
+ */
+public class SessionMultiplexer {
+
+    /**
+     * Notified when a submitted script completes.
+     */
+    public interface Listener {
+        /**
+         * Called from the event loop when the execution completes.
+         * 
+         * @param execution
+         *            not null
+         */
+        void completed(Execution execution);
+    }
+
+    private final InetSocketAddress address;
+
+    private final Monitor monitor;
+
+    private final String shabang;
+
+    private final long lineTimeout;
+
+    private final EventLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private volatile boolean running = false;
+
+    /**
+     * Constructs a multiplexer.
+     * 
+     * @param address
+     *            connect to this address, not null
+     * @param monitor
+     *            not null
+     * @param shabang
+     *            replaces the first line received, or null
+     * @param threads
+     *            number of event loop threads, positive
+     * @param lineTimeout
+     *            milliseconds an execution may wait for input, or for its
+     *            connections, before failing
+     */
+    public SessionMultiplexer(final InetSocketAddress address, final Monitor monitor, final String shabang,
+            final int threads, final long lineTimeout) {
+        this.address = address;
+        this.monitor = monitor;
+        this.shabang = shabang;
+        this.lineTimeout = lineTimeout;
+        this.loops = new EventLoop[threads];
+    }
+
+    /**
+     * Starts the event loop threads.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            final Thread thread = new Thread(loops[i], "mpt-multiplexer-" + i);
+            thread.setDaemon(true);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the event loops. Executions still running fail.
+     */
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] != null) {
+                loops[i].selector.wakeup();
+                loops[i].thread.join();
+                loops[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Runs a new cursor of the plan on its own connections.
+     * 
+     * @param plan
+     *            not null
+     * @return not null
+     */
+    public Execution submit(ScriptPlan plan) throws IOException {
+        return submit(plan.newCursor(), null);
+    }
+
+    /**
+     * Runs the cursor on its own connections.
+     * 
+     * @param cursor
+     *            new cursor, not null
+     * @param listener
+     *            notified on completion, or null
+     * @return not null
+     */
+    public Execution submit(ScriptCursor cursor, Listener listener) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("Not started");
+        }
+        final Execution execution = new Execution(cursor, listener);
+        final int sessionCount = cursor.getPlan().getSessionCount();
+        execution.sessions = new MultiplexedSession[sessionCount];
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                final SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                execution.sessions[i] = new MultiplexedSession(channel, monitor, shabang, execution);
+                channel.connect(address);
+            }
+        }
+        catch (IOException e) {
+            execution.close();
+            throw e;
+        }
+        final EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        loop.pending.add(execution);
+        loop.selector.wakeup();
+        return execution;
+    }
+
+    /**
+     * A script running on multiplexed connections.
+     */
+    public static final class Execution {
+
+        private final ScriptCursor cursor;
+
+        private final Listener listener;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private MultiplexedSession[] sessions;
+
+        private int connecting;
+
+        /** Time the execution times out or wakes up */
+        private long deadline;
+
+        /** Time the execution is ordered by in the timeouts, zero when not queued */
+        private long queuedTime;
+
+        private volatile Exception failure;
+
+        private Execution(ScriptCursor cursor, Listener listener) {
+            this.cursor = cursor;
+            this.listener = listener;
+        }
+
+        public ScriptCursor getCursor() {
+            return cursor;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Gets the reason the execution failed.
+         * 
+         * @return the failure, or null when the script passed or is running
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * Waits for the script to complete.
+         * 
+         * @throws Exception
+         *             the failure, when the script failed
+         */
+        public void await() throws Exception {
+            done.await();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Waits for the script to complete.
+         * 
+         * @return true when complete, false when the time elapsed first
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        private void close() {
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i] != null) {
+                    try {
+                        sessions[i].stop();
+                    }
+                    catch (Exception e) {
+                        // ignore, the execution is over
+                    }
+                }
+            }
+        }
+
+        private void complete(Exception failure) {
+            if (!isDone()) {
+                this.failure = failure;
+                close();
+                done.countDown();
+                if (listener != null) {
+                    listener.completed(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders queued executions by the time they were queued for. The time of
+     * an execution is only changed while it is out of the queue.
+     */
+    private static final Comparator<Execution> BY_QUEUED_TIME = new Comparator<Execution>() {
+        public int compare(Execution one, Execution other) {
+            return one.queuedTime < other.queuedTime ? -1 : (one.queuedTime == other.queuedTime ? 0 : 1);
+        }
+    };
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Execution> pending = new ConcurrentLinkedQueue<Execution>();
+
+        /**
+         * Each running execution once. An execution whose deadline has moved
+         * later stays queued for the earlier time and is queued again when
+         * that time comes, so reading a line does not touch the queue.
+         */
+        private final PriorityQueue<Execution> timeouts = new PriorityQueue<Execution>(64, BY_QUEUED_TIME);
+
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    final long wait;
+                    if (timeouts.isEmpty()) {
+                        wait = 0;
+                    }
+                    else {
+                        wait = Math.max(1, timeouts.peek().queuedTime - System.currentTimeMillis());
+                    }
+                    selector.select(wait);
+                    registerPending();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                    expireTimeouts();
+                }
+            }
+            catch (IOException e) {
+                monitor.note("Event loop failed: " + e);
+            }
+            catch (ClosedSelectorException e) {
+                monitor.note("Event loop failed: " + e);
+            }
+            finally {
+                shutdown();
+            }
+        }
+
+        private void registerPending() {
+            Execution execution;
+            while ((execution = pending.poll()) != null) {
+                try {
+                    execution.connecting = execution.sessions.length;
+                    for (int i = 0; i < execution.sessions.length; i++) {
+                        final MultiplexedSession session = execution.sessions[i];
+                        session.setKey(session.getChannel().register(selector, SelectionKey.OP_CONNECT, session));
+                    }
+                    schedule(execution, System.currentTimeMillis() + lineTimeout);
+                    if (execution.connecting == 0) {
+                        begin(execution);
+                    }
+                }
+                catch (Exception e) {
+                    complete(execution, e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            final MultiplexedSession session = (MultiplexedSession) key.attachment();
+            final Execution execution = session.getExecution();
+            if (execution.isDone() || !key.isValid()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    if (session.getChannel().finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        if (--execution.connecting == 0) {
+                            begin(execution);
+                        }
+                    }
+                }
+                else {
+                    if (key.isWritable() && session.flush()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    if (key.isReadable() && session.receive() && execution.connecting == 0) {
+                        advance(execution);
+                    }
+                }
+            }
+            catch (Exception e) {
+                complete(execution, e);
+            }
+        }
+
+        private void begin(Execution execution) throws Exception {
+            execution.cursor.begin(execution.sessions);
+            advance(execution);
+        }
+
+        private void advance(Execution execution) throws Exception {
+            final boolean complete = execution.cursor.resume();
+            for (int i = 0; i < execution.sessions.length; i++) {
+                final MultiplexedSession session = execution.sessions[i];
+                if (!session.flush()) {
+                    session.getChannel().keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+            if (complete) {
+                complete(execution, null);
+            }
+            else {
+                final long wakeUpTime = execution.cursor.getWakeUpTime();
+                if (wakeUpTime > 0) {
+                    schedule(execution, wakeUpTime);
+                }
+                else {
+                    schedule(execution, System.currentTimeMillis() + lineTimeout);
+                }
+            }
+        }
+
+        /**
+         * Moves the deadline of an execution. The execution is only queued
+         * again when the deadline is earlier than the time it is queued for.
+         */
+        private void schedule(Execution execution, long time) {
+            execution.deadline = time;
+            if (execution.queuedTime == 0) {
+                queue(execution, time);
+            }
+            else if (time < execution.queuedTime) {
+                timeouts.remove(execution);
+                queue(execution, time);
+            }
+        }
+
+        private void queue(Execution execution, long time) {
+            execution.queuedTime = time;
+            timeouts.add(execution);
+        }
+
+        private void complete(Execution execution, Exception failure) {
+            if (execution.queuedTime != 0) {
+                timeouts.remove(execution);
+                execution.queuedTime = 0;
+            }
+            execution.complete(failure);
+        }
+
+        private void expireTimeouts() {
+            final long now = System.currentTimeMillis();
+            while (!timeouts.isEmpty() && timeouts.peek().queuedTime <= now) {
+                final Execution execution = timeouts.poll();
+                execution.queuedTime = 0;
+                if (execution.isDone()) {
+                    continue;
+                }
+                if (execution.deadline > now) {
+                    queue(execution, execution.deadline);
+                    continue;
+                }
+                final long wakeUpTime = execution.cursor.getWakeUpTime();
+                try {
+                    if (wakeUpTime > 0 && wakeUpTime <= now) {
+                        advance(execution);
+                    }
+                    else {
+                        complete(execution, new SocketTimeoutException("No input received within " + lineTimeout
+                                + "ms"));
+                    }
+                }
+                catch (Exception e) {
+                    complete(execution, e);
+                }
+            }
+        }
+
+        private void shutdown() {
+            final Exception stopped = new IllegalStateException("Multiplexer stopped");
+            Execution execution;
+            while ((execution = pending.poll()) != null) {
+                execution.complete(stopped);
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((MultiplexedSession) key.attachment()).getExecution().complete(stopped);
+                }
+            }
+            catch (ClosedSelectorException e) {
+                // nothing registered any more
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                monitor.note("Failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Constructs a <code>String</code> with all attributes in name = value
+     * format.
+     * 
+     * @return a <code>String</code> representation of this object.
+     */
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "SessionMultiplexer ( " + "address = " + this.address + TAB + "monitor = " + this.monitor
+                + TAB + "shabang = " + this.shabang + TAB + "threads = " + this.loops.length + TAB
+                + "lineTimeout = " + this.lineTimeout + TAB + " )";
+
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.james.mpt.api.SessionFuture;
+
+/**
+ * {@link SessionFuture} completed by calling {@link #set(Object)} or
+ * {@link #fail(Exception)}. Operations are not cancellable.
+ * 
+ * @param <V>
+ *            type of the result
+ */
+public final class SettableSessionFuture<V> implements SessionFuture<V> {
+
+    /**
+     * Creates a future which has already succeeded.
+     * 
+     * @param value
+     *            result, may be null
+     * @return not null
+     */
+    public static <V> SettableSessionFuture<V> succeeded(V value) {
+        final SettableSessionFuture<V> result = new SettableSessionFuture<V>();
+        result.set(value);
+        return result;
+    }
+
+    /**
+     * Creates a future which has already failed.
+     * 
+     * @param failure
+     *            not null
+     * @return not null
+     */
+    public static <V> SettableSessionFuture<V> failed(Exception failure) {
+        final SettableSessionFuture<V> result = new SettableSessionFuture<V>();
+        result.fail(failure);
+        return result;
+    }
+
+    private List<Callback<? super V>> callbacks = new ArrayList<Callback<? super V>>(1);
+
+    private boolean done = false;
+
+    private V value;
+
+    private Exception failure;
+
+    /**
+     * Completes the operation successfully.
+     * 
+     * @param value
+     *            result, may be null
+     * @return true when this call completed the operation, false when it had
+     *         already completed
+     * @throws RuntimeException
+     *             the first exception thrown by a callback, once every
+     *             callback has been notified
+     */
+    public boolean set(V value) {
+        final List<Callback<? super V>> notified;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+            notified = complete();
+        }
+        notifyCallbacks(notified);
+        return true;
+    }
+
+    /**
+     * Completes the operation with a failure.
+     * 
+     * @param failure
+     *            not null
+     * @return true when this call completed the operation, false when it had
+     *         already completed
+     * @throws RuntimeException
+     *             the first exception thrown by a callback, once every
+     *             callback has been notified
+     */
+    public boolean fail(Exception failure) {
+        final List<Callback<? super V>> notified;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.failure = failure;
+            notified = complete();
+        }
+        notifyCallbacks(notified);
+        return true;
+    }
+
+    /**
+     * Notifies each callback, even when an earlier one throws.
+     */
+    private void notifyCallbacks(List<Callback<? super V>> notified) {
+        RuntimeException thrown = null;
+        for (Callback<? super V> callback : notified) {
+            try {
+                if (failure == null) {
+                    callback.completed(value);
+                }
+                else {
+                    callback.failed(failure);
+                }
+            }
+            catch (RuntimeException e) {
+                if (thrown == null) {
+                    thrown = e;
+                }
+            }
+        }
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    private List<Callback<? super V>> complete() {
+        final List<Callback<? super V>> result = callbacks;
+        callbacks = null;
+        done = true;
+        notifyAll();
+        return result;
+    }
+
+    public void addCallback(Callback<? super V> callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        if (failure == null) {
+            callback.completed(value);
+        }
+        else {
+            callback.failed(failure);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private V result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    public synchronized String toString() {
+        final String TAB = " ";
+
+        String result = "SettableSessionFuture ( " + "done = " + this.done + TAB + "value = " + this.value + TAB
+                + "failure = " + this.failure + TAB + " )";
+
+        return result;
+    }
+}
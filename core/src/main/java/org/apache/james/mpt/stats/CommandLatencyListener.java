@@ -0,0 +1,43 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.stats;
+
+/**
+ * Receives the round trip time of each completed command. Implementations
+ * shared between cursors must be thread safe.
+ */
+public interface CommandLatencyListener {
+
+    /**
+     * Called when the tagged completion of a command has been read.
+     * 
+     * @param verb
+     *            upper case command name, for example <code>FETCH</code> or
+     *            <code>UID FETCH</code>
+     * @param status
+     *            completion status, for example <code>OK</code>
+     * @param location
+     *            script location of the line which read the completion, or
+     *            null when unknown
+     * @param nanos
+     *            time between writing the command and reading its completion
+     */
+    void commandCompleted(String verb, String status, String location, long nanos);
+}
@@ -0,0 +1,157 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.stats;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Accumulates command latencies by IMAP verb and, within each verb, by the
+ * script location which read the tagged completion. Latencies are recorded
+ * in microseconds. The report is thread safe and may collect a whole suite.
+ * </p>
+ * <p>
+ * The printed report lists one line per verb, followed by one line per
+ * location, so that runs against different server releases can be compared.
+ * </p>
+ */
+public class CommandLatencyReport implements CommandLatencyListener {
+
+    private static final String UNKNOWN_LOCATION = "?";
+
+    private final ConcurrentMap<String, Entry> verbs = new ConcurrentHashMap<String, Entry>();
+
+    public void commandCompleted(String verb, String status, String location, long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        Entry entry = verbs.get(verb);
+        if (entry == null) {
+            final Entry created = new Entry();
+            entry = verbs.putIfAbsent(verb, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.all.record(micros);
+        entry.location(location == null ? UNKNOWN_LOCATION : location).record(micros);
+    }
+
+    /**
+     * Gets the latencies of one verb.
+     * 
+     * @param verb
+     *            upper case command name
+     * @return microseconds, or null when the command was not run
+     */
+    public LatencyHistogram getLatencies(String verb) {
+        final Entry entry = verbs.get(verb);
+        return entry == null ? null : entry.all;
+    }
+
+    /**
+     * Gets the latencies of one verb at one location.
+     * 
+     * @param verb
+     *            upper case command name
+     * @param location
+     *            script location
+     * @return microseconds, or null when the command was not completed there
+     */
+    public LatencyHistogram getLatencies(String verb, String location) {
+        final Entry entry = verbs.get(verb);
+        return entry == null ? null : entry.locations.get(location);
+    }
+
+    /**
+     * Is this report empty?
+     * 
+     * @return true when no command has completed
+     */
+    public boolean isEmpty() {
+        return verbs.isEmpty();
+    }
+
+    /**
+     * Forgets all latencies recorded.
+     */
+    public void clear() {
+        verbs.clear();
+    }
+
+    /**
+     * Prints the report, verbs in alphabetical order.
+     * 
+     * @param out
+     *            not null
+     */
+    public void print(PrintWriter out) {
+        out.println(String.format(Locale.US, "%-40s %8s %10s %10s %10s %10s", "Command latency (ms)", "count",
+                "mean", "p50", "p99", "max"));
+        for (Map.Entry<String, Entry> verb : new TreeMap<String, Entry>(verbs).entrySet()) {
+            print(out, verb.getKey(), verb.getValue().all);
+            for (Map.Entry<String, LatencyHistogram> location : new TreeMap<String, LatencyHistogram>(verb
+                    .getValue().locations).entrySet()) {
+                print(out, "  " + location.getKey(), location.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    private static void print(PrintWriter out, String name, LatencyHistogram histogram) {
+        out.println(String.format(Locale.US, "%-40s %8d %10.3f %10.3f %10.3f %10.3f", name, histogram.getCount(),
+                histogram.getMean() / 1000.0, histogram.getValueAtPercentile(50) / 1000.0, histogram
+                        .getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    /**
+     * Formats the report.
+     * 
+     * @return not null
+     */
+    public String toString() {
+        final StringWriter writer = new StringWriter();
+        print(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    private static final class Entry {
+        private final LatencyHistogram all = new LatencyHistogram();
+
+        private final ConcurrentMap<String, LatencyHistogram> locations = new ConcurrentHashMap<String, LatencyHistogram>();
+
+        LatencyHistogram location(String location) {
+            LatencyHistogram histogram = locations.get(location);
+            if (histogram == null) {
+                final LatencyHistogram created = new LatencyHistogram();
+                histogram = locations.putIfAbsent(location, created);
+                if (histogram == null) {
+                    histogram = created;
+                }
+            }
+            return histogram;
+        }
+    }
+}
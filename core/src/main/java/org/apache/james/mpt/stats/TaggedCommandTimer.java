@@ -0,0 +1,226 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.james.mpt.protocol.ScriptObserver;
+
+/**
+ * <p>
+ * Times tagged commands by pairing each client line with the server line
+ * which completes its tag, for example <code>a001 FETCH 1 (FLAGS)</code> with
+ * <code>a001 OK FETCH completed</code>.
+ * </p>
+ * <p>
+ * Client lines sent as part of a literal are not mistaken for commands. One
+ * timer observes one cursor: it is not thread safe, but the listener it
+ * reports to may be shared.
+ * </p>
+ * <p>
+ * Server lines are matched without being decoded, only the status of a
+ * completed command is.
+ * </p>
+ */
+public class TaggedCommandTimer implements ScriptObserver {
+
+    private static final String[] STATUSES = { "OK", "NO", "BAD" };
+
+    private final CommandLatencyListener listener;
+
+    /** Commands waiting for completion, by session. Few are pipelined at once. */
+    private final List<List<Command>> pending;
+
+    private final long[] literalRemaining;
+
+    /**
+     * Constructs a timer.
+     * 
+     * @param listener
+     *            not null
+     * @param sessionCount
+     *            number of sessions run by the observed cursor
+     */
+    public TaggedCommandTimer(CommandLatencyListener listener, int sessionCount) {
+        this.listener = listener;
+        this.pending = new ArrayList<List<Command>>(sessionCount);
+        this.literalRemaining = new long[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            pending.add(new ArrayList<Command>());
+        }
+    }
+
+    public void requestWritten(int sessionNumber, String line) {
+        if (literalRemaining[sessionNumber] > 0) {
+            literalRemaining[sessionNumber] -= line.length() + 2;
+        }
+        else {
+            final int tagEnd = line.indexOf(' ');
+            if (tagEnd > 0) {
+                final List<Command> commands = pending.get(sessionNumber);
+                final String tag = line.substring(0, tagEnd);
+                final int index = indexOf(commands, tag, tagEnd);
+                if (index >= 0) {
+                    commands.remove(index);
+                }
+                commands.add(new Command(tag, verb(line, tagEnd + 1), System.nanoTime()));
+            }
+        }
+        if (literalRemaining[sessionNumber] <= 0) {
+            literalRemaining[sessionNumber] = literalSize(line);
+        }
+    }
+
+    public void responseRead(int sessionNumber, CharSequence line, String location) {
+        final List<Command> commands = pending.get(sessionNumber);
+        if (commands.isEmpty()) {
+            return;
+        }
+        final int tagEnd = indexOf(line, ' ', 0);
+        if (tagEnd > 0) {
+            final int index = indexOf(commands, line, tagEnd);
+            if (index >= 0) {
+                final Command command = commands.remove(index);
+                final long nanos = System.nanoTime() - command.start;
+                int statusEnd = indexOf(line, ' ', tagEnd + 1);
+                if (statusEnd < 0) {
+                    statusEnd = line.length();
+                }
+                listener.commandCompleted(command.verb, status(line, tagEnd + 1, statusEnd), location, nanos);
+            }
+        }
+    }
+
+    /**
+     * Forgets commands still waiting for completion.
+     */
+    public void reset() {
+        for (int i = 0; i < literalRemaining.length; i++) {
+            pending.get(i).clear();
+            literalRemaining[i] = 0;
+        }
+    }
+
+    /**
+     * Finds the command whose tag starts the line.
+     * 
+     * @return index of the command, or -1 when no command has the tag
+     */
+    private static int indexOf(List<Command> commands, CharSequence line, int tagEnd) {
+        for (int i = 0; i < commands.size(); i++) {
+            final String tag = commands.get(i).tag;
+            if (tag.length() == tagEnd && regionMatches(line, 0, tag)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence line, int offset, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (line.charAt(offset + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence line, char c, int from) {
+        for (int i = from; i < line.length(); i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a status, sharing the strings of the usual ones.
+     */
+    private static String status(CharSequence line, int start, int end) {
+        for (String status : STATUSES) {
+            if (status.length() == end - start && regionMatches(line, start, status)) {
+                return status;
+            }
+        }
+        return line.subSequence(start, end).toString();
+    }
+
+    /**
+     * Extracts the command name, joining <code>UID</code> to the command it
+     * prefixes.
+     */
+    private static String verb(String line, int start) {
+        int end = line.indexOf(' ', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        String result = line.substring(start, end).toUpperCase(Locale.US);
+        if ("UID".equals(result) && end < line.length()) {
+            int next = line.indexOf(' ', end + 1);
+            if (next < 0) {
+                next = line.length();
+            }
+            result = result + " " + line.substring(end + 1, next).toUpperCase(Locale.US);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the size of the literal announced at the end of the line.
+     * 
+     * @return octets, zero when the line does not end with a literal
+     */
+    private static long literalSize(String line) {
+        int end = line.length() - 1;
+        if (end < 0 || line.charAt(end) != '}') {
+            return 0;
+        }
+        if (end > 0 && line.charAt(end - 1) == '+') {
+            end--;
+        }
+        final int start = line.lastIndexOf('{', end);
+        if (start < 0 || start + 1 == end) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(line.substring(start + 1, end));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class Command {
+        private final String tag;
+
+        private final String verb;
+
+        private final long start;
+
+        Command(String tag, String verb, long start) {
+            this.tag = tag;
+            this.verb = verb;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal IMAP-like server for socket level tests. Every tagged command
+ * completes with <code>OK</code>, synchronizing and non-synchronizing
+ * literals are read and <code>CAPABILITY</code> advertises
+ * <code>LITERAL+</code>.
+ */
+public class FakeImapServer {
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger continuations = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    public FakeImapServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1000);
+        final Thread acceptor = new Thread() {
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        final Thread handler = new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                    catch (IOException e) {
+                        // stopped
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Gets the number of continuation requests sent for synchronizing
+     * literals.
+     */
+    public int getContinuationCount() {
+        return continuations.get();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            write(out, "* OK IMAP4rev1 Server ready");
+            String line;
+            while ((line = readLine(in)) != null) {
+                final String[] words = line.split(" ");
+                if (words.length < 2) {
+                    write(out, "* BAD Missing command");
+                    continue;
+                }
+                final String tag = words[0];
+                final String command = words[1].toUpperCase(Locale.US);
+                if (line.endsWith("+}")) {
+                    skipLiteral(in, line.substring(line.lastIndexOf('{') + 1, line.length() - 2));
+                }
+                else if (line.endsWith("}")) {
+                    continuations.incrementAndGet();
+                    write(out, "+ Ready for literal data");
+                    skipLiteral(in, line.substring(line.lastIndexOf('{') + 1, line.length() - 1));
+                }
+                if ("CAPABILITY".equals(command)) {
+                    write(out, "* CAPABILITY IMAP4rev1 LITERAL+");
+                }
+                else if ("LOGOUT".equals(command)) {
+                    write(out, "* BYE IMAP4rev1 Server logging out");
+                    write(out, tag + " OK LOGOUT completed.");
+                    break;
+                }
+                write(out, tag + " OK " + command + " completed.");
+            }
+            socket.close();
+        }
+        catch (IOException e) {
+            // connection closed
+        }
+    }
+
+    private void skipLiteral(InputStream in, String size) throws IOException {
+        long remaining = Long.parseLong(size) + 2;
+        while (remaining > 0) {
+            if (in.read() < 0) {
+                throw new IOException("Unexpected end of literal");
+            }
+            remaining--;
+        }
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int next;
+        while ((next = in.read()) >= 0) {
+            if (next == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) next);
+        }
+        return null;
+    }
+
+    private void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+}
@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.james.mpt.api.Session;
+
+/**
+ * Session replaying queued server lines and recording client lines.
+ */
+public class QueuedSession implements Session {
+
+    private final LinkedList<String> serverLines = new LinkedList<String>();
+
+    private final List<String> clientLines = new ArrayList<String>();
+
+    private final List<Integer> readsBeforeWrites = new ArrayList<Integer>();
+
+    private int reads = 0;
+
+    public QueuedSession(String... serverLines) {
+        for (String line : serverLines) {
+            this.serverLines.add(line);
+        }
+    }
+
+    public synchronized String readLine() throws Exception {
+        if (serverLines.isEmpty()) {
+            throw new IOException("No more lines");
+        }
+        reads++;
+        return serverLines.removeFirst();
+    }
+
+    public synchronized void writeLine(String line) throws Exception {
+        clientLines.add(line);
+        readsBeforeWrites.add(reads);
+    }
+
+    public synchronized List<String> getClientLines() {
+        return new ArrayList<String>(clientLines);
+    }
+
+    /**
+     * Gets the number of server lines read before each client line was
+     * written.
+     */
+    public synchronized List<Integer> getReadsBeforeWrites() {
+        return new ArrayList<Integer>(readsBeforeWrites);
+    }
+
+    public void start() throws Exception {
+    }
+
+    public void stop() throws Exception {
+    }
+}
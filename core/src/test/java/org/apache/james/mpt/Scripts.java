@@ -0,0 +1,55 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.StringReader;
+
+import org.apache.james.mpt.api.ProtocolInteractor;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptPlan;
+
+/**
+ * Parses the scripts written inline by tests, under the name
+ * <code>test</code>.
+ */
+public final class Scripts {
+
+    private Scripts() {
+    }
+
+    public static ProtocolSession session(String script) throws Exception {
+        return session(new ProtocolSessionBuilder(), script);
+    }
+
+    public static ProtocolSession session(ProtocolSessionBuilder builder, String script) throws Exception {
+        ProtocolSession session = new ProtocolSession();
+        builder.addProtocolLines("test", new StringReader(script), session);
+        return session;
+    }
+
+    public static ScriptPlan plan(String script) throws Exception {
+        return session(script).compile();
+    }
+
+    public static void addLines(String script, ProtocolInteractor interactor) throws Exception {
+        new ProtocolSessionBuilder().addProtocolLines("test", new StringReader(script), interactor);
+    }
+}
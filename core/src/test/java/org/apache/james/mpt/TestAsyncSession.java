@@ -0,0 +1,263 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.AsyncSession;
+import org.apache.james.mpt.api.SessionFuture;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.AsyncSessionGroup;
+import org.apache.james.mpt.session.ExecutorAsyncSession;
+import org.apache.james.mpt.session.SettableSessionFuture;
+
+public class TestAsyncSession extends TestCase {
+
+    private FakeImapServer server;
+
+    private AsyncSessionGroup group;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+        group = new AsyncSessionGroup(new InetSocketAddress("127.0.0.1", server.getPort()), new NullMonitor(), null);
+        group.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        group.stop();
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testShouldReadAndWriteLines() throws Exception {
+        AsyncSession session = group.newSession();
+        session.startAsync().get(5, TimeUnit.SECONDS);
+        assertEquals("* OK IMAP4rev1 Server ready", session.readLineAsync().get(5, TimeUnit.SECONDS));
+        session.writeLineAsync("a001 NOOP");
+        SessionFuture<String> response = session.readLineAsync();
+        assertEquals("a001 OK NOOP completed.", response.get(5, TimeUnit.SECONDS));
+        session.stopAsync().get(5, TimeUnit.SECONDS);
+    }
+
+    public void testShouldReplaceCharactersWhichAreNotAscii() throws Exception {
+        AsyncSession session = group.newSession();
+        session.startAsync().get(5, TimeUnit.SECONDS);
+        session.readLineAsync().get(5, TimeUnit.SECONDS);
+        session.writeLineAsync("caf\u00e9 NOOP");
+        assertEquals("caf? OK NOOP completed.", session.readLineAsync().get(5, TimeUnit.SECONDS));
+        session.stopAsync().get(5, TimeUnit.SECONDS);
+    }
+
+    public void testShouldInterleaveManyConversationsOnOneThread() throws Exception {
+        final int sessions = 200;
+        final CountDownLatch done = new CountDownLatch(sessions);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < sessions; i++) {
+            new Conversation(group.newSession(), done, failures).begin();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+    }
+
+    public void testShouldFailReadsWhenServerCloses() throws Exception {
+        AsyncSession session = group.newSession();
+        session.startAsync();
+        session.readLineAsync();
+        session.writeLineAsync("a001 LOGOUT");
+        assertEquals("* BYE IMAP4rev1 Server logging out", session.readLineAsync().get(5, TimeUnit.SECONDS));
+        assertEquals("a001 OK LOGOUT completed.", session.readLineAsync().get(5, TimeUnit.SECONDS));
+        try {
+            session.readLineAsync().get(5, TimeUnit.SECONDS);
+            fail("Expected end of stream");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    public void testShouldFailOperationsAfterGroupStops() throws Exception {
+        AsyncSession session = group.newSession();
+        session.startAsync().get(5, TimeUnit.SECONDS);
+        SessionFuture<String> greeting = session.readLineAsync();
+        greeting.get(5, TimeUnit.SECONDS);
+        SessionFuture<String> pending = session.readLineAsync();
+        group.stop();
+        assertTrue(pending.isDone());
+        assertTrue(session.readLineAsync().isDone());
+    }
+
+    public void testShouldPerformAdaptedOperationsInOrder() throws Exception {
+        QueuedSession queued = new QueuedSession("one", "two", "three");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AsyncSession session = new ExecutorAsyncSession(queued, executor);
+            List<SessionFuture<String>> reads = new ArrayList<SessionFuture<String>>();
+            for (int i = 0; i < 3; i++) {
+                session.writeLineAsync("line " + i);
+                reads.add(session.readLineAsync());
+            }
+            assertEquals("one", reads.get(0).get(5, TimeUnit.SECONDS));
+            assertEquals("two", reads.get(1).get(5, TimeUnit.SECONDS));
+            assertEquals("three", reads.get(2).get(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("line 0", "line 1", "line 2"), queued.getClientLines());
+            assertEquals(Arrays.asList(0, 1, 2), queued.getReadsBeforeWrites());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testShouldSurviveFailingCallbacks() throws Exception {
+        final CountDownLatch called = new CountDownLatch(1);
+        AsyncSession failing = group.newSession();
+        failing.startAsync();
+        try {
+            failing.readLineAsync().addCallback(new SessionFuture.Callback<String>() {
+                public void completed(String value) {
+                    called.countDown();
+                    throw new IllegalStateException("callback failed");
+                }
+
+                public void failed(Exception failure) {
+                }
+            });
+        }
+        catch (IllegalStateException e) {
+            // the greeting was read first, the callback ran on this thread
+        }
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        AsyncSession session = group.newSession();
+        session.startAsync();
+        assertEquals("* OK IMAP4rev1 Server ready", session.readLineAsync().get(5, TimeUnit.SECONDS));
+        session.writeLineAsync("a001 NOOP");
+        assertEquals("a001 OK NOOP completed.", session.readLineAsync().get(5, TimeUnit.SECONDS));
+    }
+
+    public void testShouldNotifyEachCallback() throws Exception {
+        final SettableSessionFuture<String> future = new SettableSessionFuture<String>();
+        final List<String> notified = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            future.addCallback(new SessionFuture.Callback<String>() {
+                public void completed(String value) {
+                    notified.add(value);
+                    throw new IllegalStateException("callback failed");
+                }
+
+                public void failed(Exception failure) {
+                }
+            });
+        }
+        try {
+            future.set("done");
+            fail("Expected callback failure");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("done", "done"), notified);
+        assertEquals("done", future.get());
+    }
+
+    public void testShouldRunCallbackOperationsAfterCurrentOperation() throws Exception {
+        QueuedSession queued = new QueuedSession("one", "two");
+        final AsyncSession session = new ExecutorAsyncSession(queued);
+        final List<String> lines = new ArrayList<String>();
+        session.readLineAsync().addCallback(new SessionFuture.Callback<String>() {
+            public void completed(String value) {
+                lines.add(value);
+                session.readLineAsync().addCallback(this);
+            }
+
+            public void failed(Exception failure) {
+                lines.add("failed");
+            }
+        });
+        assertEquals(Arrays.asList("one", "two", "failed"), lines);
+    }
+
+    /**
+     * Greeting, NOOP then LOGOUT, chained through callbacks.
+     */
+    private static final class Conversation implements SessionFuture.Callback<String> {
+
+        private static final String[] EXPECTED = { "* OK IMAP4rev1 Server ready", "a001 OK NOOP completed.",
+                "* BYE IMAP4rev1 Server logging out", "a002 OK LOGOUT completed." };
+
+        private final AsyncSession session;
+
+        private final CountDownLatch done;
+
+        private final AtomicInteger failures;
+
+        private int step = 0;
+
+        Conversation(AsyncSession session, CountDownLatch done, AtomicInteger failures) {
+            this.session = session;
+            this.done = done;
+            this.failures = failures;
+        }
+
+        void begin() {
+            session.startAsync();
+            session.readLineAsync().addCallback(this);
+        }
+
+        public void completed(String line) {
+            if (!EXPECTED[step].equals(line)) {
+                failed(new Exception("Unexpected " + line));
+                return;
+            }
+            step++;
+            if (step == 1) {
+                session.writeLineAsync("a001 NOOP");
+            }
+            else if (step == 2) {
+                session.writeLineAsync("a002 LOGOUT");
+            }
+            if (step == EXPECTED.length) {
+                session.stopAsync();
+                done.countDown();
+            }
+            else {
+                session.readLineAsync().addCallback(this);
+            }
+        }
+
+        public void failed(Exception failure) {
+            failures.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
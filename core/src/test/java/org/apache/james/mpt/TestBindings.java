@@ -0,0 +1,180 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.ResumableSession;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.exception.SessionNotReadyException;
+import org.apache.james.mpt.protocol.Bindings;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptCursor;
+import org.apache.james.mpt.protocol.ScriptPlan;
+
+public class TestBindings extends TestCase {
+
+    private static final String SCRIPT = "C: a1 LOGIN ${user} pass\n"
+            + "S: a1 OK ${user} logged in\n"
+            + "C: a2 CREATE box${seq}\n"
+            + "S: a2 OK\n"
+            + "C: a3 CREATE box${seq}\n"
+            + "S: a3 OK\n";
+
+    private Bindings bindings(String user) {
+        Bindings bindings = new Bindings();
+        bindings.setVariable("user", user);
+        bindings.setCounter("seq", 1);
+        return bindings;
+    }
+
+    public void testShouldResolveVariablesForEachRun() throws Exception {
+        ScriptPlan plan = Scripts.session(new ProtocolSessionBuilder(), SCRIPT).compile();
+        for (String user : new String[] { "alice", "bob" }) {
+            QueuedSession queued = new QueuedSession("a1 OK " + user + " logged in", "a2 OK", "a3 OK");
+            ScriptCursor cursor = plan.newCursor();
+            cursor.setBindings(bindings(user));
+            cursor.run(new Session[] { queued });
+            assertEquals(Arrays.asList("a1 LOGIN " + user + " pass", "a2 CREATE box1", "a3 CREATE box2"), queued
+                    .getClientLines());
+        }
+    }
+
+    public void testShouldKeepCountingAcrossRuns() throws Exception {
+        ScriptPlan plan = Scripts.session(new ProtocolSessionBuilder(), SCRIPT).compile();
+        Bindings bindings = bindings("alice");
+        for (int run = 0; run < 2; run++) {
+            QueuedSession queued = new QueuedSession("a1 OK alice logged in", "a2 OK", "a3 OK");
+            ScriptCursor cursor = plan.newCursor();
+            cursor.setBindings(bindings);
+            cursor.run(new Session[] { queued });
+            assertEquals("a3 CREATE box" + (2 * run + 2), queued.getClientLines().get(2));
+        }
+    }
+
+    public void testShouldMatchResolvedResponses() throws Exception {
+        ProtocolSession session = Scripts.session(new ProtocolSessionBuilder(), SCRIPT);
+        session.setBindings(bindings("alice"));
+        try {
+            session.runSessions(new Session[] { new QueuedSession("a1 OK bob logged in") });
+            fail("Expected response of alice");
+        }
+        catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("a1 OK alice logged in") >= 0);
+        }
+    }
+
+    public void testShouldResolveUnorderedBlocks() throws Exception {
+        ProtocolSession session = Scripts.session(new ProtocolSessionBuilder(), "C: a1 LIST \"\" *\n"
+                + "SUB {\n"
+                + "S: \\* LIST \\(\\) \"\\.\" ${user}\n"
+                + "S: \\* LIST \\(\\) \"\\.\" INBOX\n"
+                + "}\n"
+                + "S: a1 OK\n");
+        session.setBindings(bindings("alice"));
+        session.setPipelineDepth(10);
+        session.runSessions(new Session[] { new QueuedSession("* LIST () \".\" INBOX", "* LIST () \".\" alice",
+                "a1 OK") });
+    }
+
+    public void testShouldPreferVariablesSetWhenParsed() throws Exception {
+        ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+        builder.setVariable("user", "carol");
+        ProtocolSession session = Scripts.session(builder, SCRIPT);
+        session.setBindings(bindings("alice"));
+        QueuedSession queued = new QueuedSession("a1 OK carol logged in", "a2 OK", "a3 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals("a1 LOGIN carol pass", queued.getClientLines().get(0));
+        assertEquals("a2 CREATE box1", queued.getClientLines().get(1));
+    }
+
+    public void testShouldLeaveUnboundVariables() throws Exception {
+        ProtocolSession session = Scripts.session(new ProtocolSessionBuilder(), "C: a1 LOGIN ${user} ${}\nS: a1 OK\n");
+        session.setBindings(new Bindings());
+        QueuedSession queued = new QueuedSession("a1 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals("a1 LOGIN ${user} ${}", queued.getClientLines().get(0));
+    }
+
+    public void testShouldNotConsumeCountersWhenResumed() throws Exception {
+        ScriptPlan plan = Scripts.session(new ProtocolSessionBuilder(), "S: \\* OK ${seq}\n"
+                + "SUB {\n"
+                + "S: \\* ${seq} EXISTS\n"
+                + "S: \\* ${seq} RECENT\n"
+                + "}\n").compile();
+        ResumedSession resumed = new ResumedSession();
+        ScriptCursor cursor = plan.newCursor();
+        cursor.setBindings(bindings("alice"));
+        cursor.begin(new Session[] { resumed });
+        assertFalse(cursor.resume());
+        resumed.add("* OK 1");
+        resumed.add("* 3 RECENT");
+        assertFalse(cursor.resume());
+        assertFalse(cursor.resume());
+        resumed.add("* 2 EXISTS");
+        assertTrue(cursor.resume());
+    }
+
+    /**
+     * Session whose lines are added while it is resumed.
+     */
+    private static final class ResumedSession implements ResumableSession {
+
+        private final List<String> lines = new ArrayList<String>();
+
+        private int committed = 0;
+
+        private int read = 0;
+
+        public void add(String line) {
+            lines.add(line);
+        }
+
+        public String readLine() throws Exception {
+            if (read == lines.size()) {
+                throw SessionNotReadyException.INSTANCE;
+            }
+            return lines.get(read++);
+        }
+
+        public void writeLine(String line) throws Exception {
+        }
+
+        public void commit() {
+            committed = read;
+        }
+
+        public void rollback() {
+            read = committed;
+        }
+
+        public void start() throws Exception {
+        }
+
+        public void stop() throws Exception {
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.api.SessionFactory;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.session.ExternalSessionFactory;
+import org.apache.james.mpt.session.SelectorSessionFactory;
+
+public class TestByteSession extends TestCase {
+
+    private static final String SCRIPT = "S: \\* OK IMAP4rev1 Server ready\n"
+            + "C: a001 CAPABILITY\n"
+            + "S: \\* CAPABILITY IMAP4rev1 LITERAL\\+\n"
+            + "S: a001 OK CAPABILITY completed\\.\n"
+            + "C: a002 APPEND INBOX {5}\n"
+            + "S: \\+ Ready for literal data\n"
+            + "C: Hello\n"
+            + "S: a002 OK APPEND completed\\.\n"
+            + "C: a003 LOGOUT\n"
+            + "SUB {\n"
+            + "S: a003 OK LOGOUT completed\\.\n"
+            + "S: \\* BYE IMAP4rev1 Server .*\n"
+            + "}\n";
+
+    private FakeImapServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress("127.0.0.1", server.getPort());
+    }
+
+    public void testShouldViewAsciiLine() throws Exception {
+        byte[] bytes = "xx* OK \u00e9t\u00e9yy".getBytes("ISO-8859-1");
+        AsciiLine line = new AsciiLine(bytes, 2, bytes.length - 4);
+        assertEquals(8, line.length());
+        assertEquals('*', line.charAt(0));
+        assertEquals('\uFFFD', line.charAt(5));
+        assertEquals("OK", line.subSequence(2, 4));
+        assertTrue(line.contentEquals("* OK \u00e9t\u00e9".getBytes("ISO-8859-1")));
+        assertFalse(line.contentEquals("* OK".getBytes("ISO-8859-1")));
+        assertEquals(8, line.asByteBuffer().remaining());
+        assertEquals(new String(bytes, 2, 8, "US-ASCII"), line.toString());
+    }
+
+    public void testShouldRunScriptOnSelectorSessionViews() throws Exception {
+        Scripts.plan(SCRIPT).runSessions(new SelectorSessionFactory(address(), new NullMonitor(), null, 5000, 5000));
+    }
+
+    public void testShouldRunScriptOnExternalSessionViews() throws Exception {
+        Scripts.plan(SCRIPT).runSessions(new ExternalSessionFactory(address(), new NullMonitor(), null));
+    }
+
+    public void testShouldReportMismatchedView() throws Exception {
+        SessionFactory factory = new SelectorSessionFactory(address(), new NullMonitor(), null, 5000, 5000);
+        try {
+            Scripts.plan("S: \\* OK IMAP4rev1 Server ready\n" + "C: a001 NOOP\n" + "S: a001 NO NOOP failed\n")
+                    .runSessions(factory);
+            fail("Expected mismatch");
+        }
+        catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage().indexOf("a001 OK NOOP completed.") >= 0);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.Bindings;
+import org.apache.james.mpt.protocol.ProtocolSession;
+
+public class TestCaptures extends TestCase {
+
+    public void testShouldUseCapturedValuesInLaterRequests() throws Exception {
+        ProtocolSession session = Scripts.session("C: a1 SELECT INBOX\n"
+                + "S: \\* (?<exists>\\d+) EXISTS\n"
+                + "S: \\* OK \\[UIDNEXT (?<uidnext>\\d+)\\].*\n"
+                + "S: a1 OK .*\n"
+                + "C: a2 UID FETCH ${uidnext-50}:* (FLAGS)\n"
+                + "S: a2 OK .*\n"
+                + "C: a3 FETCH ${exists} (UID)\n"
+                + "S: a3 OK .*\n");
+        QueuedSession queued = new QueuedSession("* 172 EXISTS", "* OK [UIDNEXT 4242] Predicted next UID",
+                "a1 OK [READ-WRITE] SELECT completed", "a2 OK done", "a3 OK done");
+        session.runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList("a1 SELECT INBOX", "a2 UID FETCH 4192:* (FLAGS)", "a3 FETCH 172 (UID)"), queued
+                .getClientLines());
+    }
+
+    public void testShouldCaptureIntoRunBindings() throws Exception {
+        ProtocolSession session = Scripts.session("C: a1 STATUS INBOX (UIDVALIDITY)\n"
+                + "S: \\* STATUS INBOX \\(UIDVALIDITY (?<uidvalidity>\\d+)\\)\n"
+                + "S: a1 OK\n");
+        Bindings bindings = new Bindings();
+        session.setBindings(bindings);
+        session.runSessions(new Session[] { new QueuedSession("* STATUS INBOX (UIDVALIDITY 1234)", "a1 OK") });
+        assertEquals("1234", bindings.getValue("uidvalidity"));
+    }
+
+    public void testShouldCountGroupsAroundCaptures() throws Exception {
+        ProtocolSession session = Scripts.session("C: a1 NOOP\n"
+                + "S: \\* (\\d+) FETCH \\((?:FLAGS \\([^)]*\\) )?MODSEQ \\((?<modseq>\\d+)\\)\\)\n"
+                + "S: a1 OK\n"
+                + "C: a2 FETCH 1 (FLAGS) (CHANGEDSINCE ${modseq})\n"
+                + "S: a2 OK\n");
+        QueuedSession queued = new QueuedSession("* 1 FETCH (FLAGS (\\Seen) MODSEQ (917162500))", "a1 OK", "a2 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals("a2 FETCH 1 (FLAGS) (CHANGEDSINCE 917162500)", queued.getClientLines().get(1));
+    }
+
+    public void testShouldCaptureInUnorderedBlocks() throws Exception {
+        ProtocolSession session = Scripts.session("C: a1 SELECT INBOX\n"
+                + "SUB {\n"
+                + "S: \\* (?<exists>\\d+) EXISTS\n"
+                + "S: \\* \\d+ RECENT\n"
+                + "}\n"
+                + "S: a1 OK\n"
+                + "C: a2 FETCH ${exists} (UID)\n"
+                + "S: a2 OK\n");
+        QueuedSession queued = new QueuedSession("* 0 RECENT", "* 7 EXISTS", "a1 OK", "a2 OK");
+        session.setPipelineDepth(10);
+        session.runSessions(new Session[] { queued });
+        assertEquals("a2 FETCH 7 (UID)", queued.getClientLines().get(1));
+    }
+
+    public void testShouldNotMistakeLookBehindForCapture() throws Exception {
+        ProtocolSession session = Scripts.session("C: a1 NOOP\nS: a1 (?<=a1 )OK\n");
+        session.runSessions(new Session[] { new QueuedSession("a1 OK") });
+    }
+}
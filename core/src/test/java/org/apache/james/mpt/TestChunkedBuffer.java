@@ -0,0 +1,157 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.session.ChunkPool;
+import org.apache.james.mpt.session.ChunkedBuffer;
+
+public class TestChunkedBuffer extends TestCase {
+
+    private ChunkPool pool;
+
+    private ChunkedBuffer buffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new ChunkPool(16, 4);
+        buffer = new ChunkedBuffer(pool);
+    }
+
+    public void testEmptyBufferHoldsNoChunks() throws Exception {
+        assertEquals(0, buffer.getChunkCount());
+        assertEquals(-1, buffer.read());
+        buffer.write('a');
+        assertEquals(1, buffer.getChunkCount());
+        assertEquals('a', buffer.read());
+        assertEquals(0, buffer.getChunkCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testGrowsBeyondChunkSize() throws Exception {
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        buffer.write(bytes, 0, bytes.length);
+        assertEquals(1000, buffer.size());
+        assertEquals(63, buffer.getChunkCount());
+        final byte[] read = new byte[bytes.length];
+        assertEquals(7, buffer.read(read, 0, 7));
+        assertEquals(993, buffer.read(read, 7, 2000));
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(bytes[i], read[i]);
+        }
+        assertEquals(0, buffer.getChunkCount());
+        assertEquals(4, pool.getIdleCount());
+    }
+
+    public void testChunksAreReleasedAsTheyAreRead() throws Exception {
+        buffer.writeAscii("0123456789abcdef0123456789abcdef01");
+        assertEquals(3, buffer.getChunkCount());
+        buffer.read(new byte[20], 0, 20);
+        assertEquals(2, buffer.getChunkCount());
+        buffer.writeAscii("ghijklmnopqrstuvwxyz");
+        assertEquals(3, buffer.getChunkCount());
+        assertEquals(34, buffer.size());
+    }
+
+    public void testReadLine() throws Exception {
+        buffer.writeAscii("* OK IMAP4rev1 Server ready\r\n* 3 EXISTS\r\n");
+        assertEquals(5, buffer.indexOf((byte) 'I'));
+        assertEquals("* OK IMAP4rev1 Server ready", buffer.readLine());
+        assertEquals("* 3 EXISTS", buffer.readLine());
+        assertTrue(buffer.isEmpty());
+        assertEquals("", buffer.readLine());
+    }
+
+    public void testLinesEndWithCRLF() throws Exception {
+        buffer.writeAscii("Subject: test\nbody\r\n\r\n");
+        assertEquals(18, buffer.indexOfCRLF());
+        assertEquals("Subject: test\nbody", buffer.readLine());
+        assertEquals(0, buffer.indexOfCRLF());
+        assertEquals("", buffer.readLine());
+    }
+
+    public void testLineSpanningChunks() throws Exception {
+        buffer.writeAscii("0123456789abcde\r");
+        buffer.writeAscii("\n0123456789abcdef0123456789\r\n");
+        assertEquals("0123456789abcde", buffer.readLine());
+        assertEquals("0123456789abcdef0123456789", buffer.readLine());
+        assertEquals(0, buffer.getChunkCount());
+    }
+
+    public void testReadLineWithoutLineEnd() throws Exception {
+        buffer.writeAscii("a001 OK LOGIN completed.");
+        assertEquals(-1, buffer.indexOfCRLF());
+        assertEquals("a001 OK LOGIN completed.", buffer.readLine());
+        assertEquals(0, buffer.getChunkCount());
+    }
+
+    public void testNonAsciiIsReplaced() throws Exception {
+        buffer.writeAscii("caf\u00e9\r\n");
+        assertEquals("caf?", buffer.readLine());
+    }
+
+    public void testLineViewWithinChunkIsNotCopied() throws Exception {
+        buffer.writeAscii("a1 OK\r\nb2 NO\r\n");
+        final AsciiLine view = new AsciiLine();
+        assertSame(view, buffer.readLine(view));
+        assertEquals("a1 OK", view.toString());
+        assertTrue(view.contentEquals("a1 OK".getBytes("US-ASCII")));
+        assertEquals("b2 NO", buffer.readLine(view).toString());
+        assertTrue(buffer.isEmpty());
+    }
+
+    public void testLineViewSpanningChunks() throws Exception {
+        buffer.writeAscii("0123456789abcdef0123\r\nxyz\r\n");
+        final AsciiLine view = new AsciiLine();
+        assertEquals("0123456789abcdef0123", buffer.readLine(view).toString());
+        assertEquals("xyz", buffer.readLine(view).toString());
+        assertEquals("", buffer.readLine(view).toString());
+    }
+
+    public void testViewedChunkIsNotReusedUntilNextRead() throws Exception {
+        buffer.writeAscii("0123456789abc\r\n");
+        final AsciiLine view = buffer.readLine(new AsciiLine());
+        assertEquals(0, buffer.getChunkCount());
+        assertEquals(0, pool.getIdleCount());
+        final ChunkedBuffer other = new ChunkedBuffer(pool);
+        other.writeAscii("XXXXXXXXXXXXXXXX");
+        assertEquals("0123456789abc", view.toString());
+        buffer.readLine(view);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testWriteByteBuffer() throws Exception {
+        final ByteBuffer bytes = ByteBuffer.wrap("xxa001 NOOP\r\n".getBytes("US-ASCII"));
+        bytes.position(2);
+        buffer.write(bytes);
+        assertFalse(bytes.hasRemaining());
+        buffer.write(ByteBuffer.allocateDirect(2));
+        assertEquals("a001 NOOP", buffer.readLine());
+        assertEquals(2, buffer.size());
+    }
+}
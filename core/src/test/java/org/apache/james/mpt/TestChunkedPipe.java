@@ -0,0 +1,171 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.session.ChunkPool;
+import org.apache.james.mpt.session.ChunkedPipe;
+
+public class TestChunkedPipe extends TestCase {
+
+    private ChunkedPipe pipe;
+
+    private final AsciiLine view = new AsciiLine();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pipe = new ChunkedPipe(32, new ChunkPool(16, 8));
+    }
+
+    public void testLinesAreReadWhileBeingWritten() throws Exception {
+        final Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        pipe.writeLine("* " + i + " FETCH (FLAGS (\\Seen))");
+                    }
+                    pipe.close();
+                }
+                catch (IOException e) {
+                    pipe.close(e);
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("* " + i + " FETCH (FLAGS (\\Seen))", pipe.readLine(view, 5000).toString());
+        }
+        try {
+            pipe.readLine(view, 5000);
+            fail("Expected end of pipe");
+        }
+        catch (EOFException e) {
+            // expected
+        }
+        writer.join();
+    }
+
+    public void testWriterBlocksWhenFull() throws Exception {
+        final Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pipe.getOutputStream().write(new byte[100]);
+                }
+                catch (IOException e) {
+                    // reader closed
+                }
+            }
+        };
+        writer.start();
+        waitForWriter(writer, Thread.State.WAITING);
+        assertEquals(32, pipe.available());
+        assertEquals(32, pipe.getInputStream().read(new byte[64]));
+        waitForWriter(writer, Thread.State.WAITING);
+        assertEquals(32, pipe.available());
+        pipe.closeRead();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+    }
+
+    public void testLineLongerThanCapacity() throws Exception {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        final Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pipe.writeLine(line);
+                }
+                catch (IOException e) {
+                    pipe.close(e);
+                }
+            }
+        };
+        writer.start();
+        assertEquals(line.toString(), pipe.readLine(view, 5000).toString());
+        writer.join();
+    }
+
+    public void testEndOfPipeCarriesCause() throws Exception {
+        final IOException failure = new IOException("failed");
+        pipe.writeLine("partial");
+        pipe.close(failure);
+        assertEquals("partial", pipe.readLine(view, 5000).toString());
+        try {
+            pipe.readLine(view, 5000);
+            fail("Expected end of pipe");
+        }
+        catch (EOFException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(-1, pipe.getInputStream().read());
+    }
+
+    public void testReadLineTimesOut() throws Exception {
+        pipe.getOutputStream().write("a001 OK".getBytes("US-ASCII"));
+        try {
+            pipe.readLine(view, 10);
+            fail("Expected time out");
+        }
+        catch (SocketTimeoutException e) {
+            // expected
+        }
+        pipe.writeLine("");
+        assertEquals("a001 OK", pipe.readLine(view, 10).toString());
+    }
+
+    public void testHasLine() throws Exception {
+        assertFalse(pipe.hasLine());
+        pipe.getOutputStream().write("a001 NOOP\r".getBytes("US-ASCII"));
+        assertFalse(pipe.hasLine());
+        pipe.getOutputStream().write('\n');
+        assertTrue(pipe.hasLine());
+        pipe.readLine(view, 10);
+        assertFalse(pipe.hasLine());
+    }
+
+    public void testFirstWriteIsTimed() throws Exception {
+        assertEquals(-1, pipe.getFirstWriteNanos());
+        final long before = System.nanoTime();
+        pipe.writeLine("* OK");
+        final long first = pipe.getFirstWriteNanos();
+        assertTrue(first >= before);
+        pipe.writeLine("* OK");
+        assertEquals(first, pipe.getFirstWriteNanos());
+        pipe.resetFirstWrite();
+        assertEquals(-1, pipe.getFirstWriteNanos());
+    }
+
+    private void waitForWriter(Thread writer, Thread.State state) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(state, writer.getState());
+    }
+}
@@ -0,0 +1,66 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFactory;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.stats.CommandLatencyReport;
+
+public class TestCommandLatencyReport extends TestCase {
+
+    private static final String SCRIPT = "C: a001 SELECT INBOX\n"
+            + "S: \\* 0 EXISTS\n"
+            + "S: a001 OK \\[READ-WRITE\\] SELECT completed\\.\n"
+            + "C: a002 FETCH 1:\\* (FLAGS)\n"
+            + "S: a002 OK FETCH completed\\.\n"
+            + "C: a003 UID FETCH 1:\\* (FLAGS)\n"
+            + "S: a003 OK UID FETCH completed\\.\n"
+            + "C: a004 FETCH 1 (UID)\n"
+            + "S: a004 OK FETCH completed\\.\n";
+
+    public void testShouldReportLatencyPerVerbAndLocation() throws Exception {
+        final QueuedSession session = new QueuedSession("* 0 EXISTS", "a001 OK [READ-WRITE] SELECT completed.",
+                "a002 OK FETCH completed.", "a003 OK UID FETCH completed.", "a004 OK FETCH completed.");
+        Runner runner = new Runner();
+        new ProtocolSessionBuilder().addProtocolLines("latency.test", new StringReader(SCRIPT), runner
+                .getTestElements());
+        CommandLatencyReport report = new CommandLatencyReport();
+        runner.setCommandLatencyListener(report);
+
+        runner.runSessions(new SessionFactory() {
+            public Session newSession(Continuation continuation) throws Exception {
+                return session;
+            }
+        });
+
+        assertEquals(1, report.getLatencies("SELECT").getCount());
+        assertEquals(2, report.getLatencies("FETCH").getCount());
+        assertEquals(1, report.getLatencies("UID FETCH").getCount());
+        assertEquals(1, report.getLatencies("FETCH", "latency.test:3").getCount());
+        assertEquals(1, report.getLatencies("FETCH", "latency.test:7").getCount());
+        assertTrue(report.toString().indexOf("UID FETCH") >= 0);
+    }
+}
@@ -0,0 +1,170 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.CompiledScript;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptCache;
+import org.apache.james.mpt.protocol.ScriptCompiler;
+
+public class TestCompiledScript extends TestCase {
+
+    private static final String SCRIPT = "# comment\n"
+            + "C: a1 LOGIN user pass\n"
+            + "S: a1 OK\n"
+            + "C: a2 APPEND INBOX {5}\n"
+            + "S: \\+ Ready\n"
+            + "C: Hello\n"
+            + "SUB {\n"
+            + "S: \\* 1 EXISTS\n"
+            + "S: \\* \\d+ RECENT\n"
+            + "}\n"
+            + "S: a2 OK APPEND\n"
+            + "LOG INFO appended\n"
+            + "WAIT 1\n";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("scripts", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    private byte[] compile(String script) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ScriptCompiler(new ProtocolSessionBuilder()).compile("test", new StringReader(script), out);
+        return out.toByteArray();
+    }
+
+    private QueuedSession responses() {
+        return new QueuedSession("a1 OK", "+ Ready", "* 3 RECENT", "* 1 EXISTS", "a2 OK APPEND");
+    }
+
+    public void testShouldReplayAsParsed() throws Exception {
+        CompiledScript compiled = CompiledScript.read(new ByteArrayInputStream(compile(SCRIPT)), "test");
+        ProtocolSession session = new ProtocolSession();
+        compiled.replay(session);
+        QueuedSession queued = responses();
+        session.runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList("a1 LOGIN user pass", "a2 APPEND INBOX {5}", "Hello"), queued.getClientLines());
+    }
+
+    public void testShouldReportScriptLocations() throws Exception {
+        CompiledScript compiled = CompiledScript.read(new ByteArrayInputStream(compile(SCRIPT)), "test");
+        ProtocolSession session = new ProtocolSession();
+        compiled.replay(session);
+        try {
+            session.runSessions(new Session[] { new QueuedSession("a1 NO") });
+            fail("Expected failure");
+        }
+        catch (ProtocolSession.InvalidServerResponseException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("test:1") >= 0);
+        }
+    }
+
+    public void testShouldRejectOtherFiles() throws Exception {
+        try {
+            CompiledScript.read(new ByteArrayInputStream(SCRIPT.getBytes("US-ASCII")), "test");
+            fail("Expected rejection");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testShouldMapCompiledFiles() throws Exception {
+        File source = new File(directory, "script.test");
+        FileWriter writer = new FileWriter(source);
+        writer.write(SCRIPT);
+        writer.close();
+        assertEquals(1, new ScriptCompiler(new ProtocolSessionBuilder()).compileDirectory(directory));
+        assertEquals(0, new ScriptCompiler(new ProtocolSessionBuilder()).compileDirectory(directory));
+
+        File compiled = new File(directory, "script.testc");
+        assertTrue(CompiledScript.isCompiled(compiled));
+        ProtocolSession session = new ProtocolSession();
+        new ProtocolSessionBuilder().addScriptFile(compiled, session);
+        session.runSessions(new Session[] { responses() });
+    }
+
+    public void testShouldLeaveNoCompiledFileWhenParsingFails() throws Exception {
+        File source = new File(directory, "broken.test");
+        FileWriter writer = new FileWriter(source);
+        writer.write("REPEAT 2 {\nC: a1 NOOP\n");
+        writer.close();
+        try {
+            new ScriptCompiler(new ProtocolSessionBuilder()).compileDirectory(directory);
+            fail("Expected parse failure");
+        }
+        catch (Exception e) {
+            // expected
+        }
+        assertEquals(Arrays.asList(source), Arrays.asList(directory.listFiles()));
+    }
+
+    public void testShouldLoadUpToDateCompiledScript() throws Exception {
+        File source = new File(directory, "script.test");
+        FileWriter writer = new FileWriter(source);
+        writer.write("C: a1 NOOP\nS: a1 OK\n");
+        writer.close();
+        source.setLastModified(System.currentTimeMillis() - 10000);
+        FileOutputStream out = new FileOutputStream(new File(directory, "script.testc"));
+        out.write(compile(SCRIPT));
+        out.close();
+
+        ProtocolSession session = new ProtocolSession();
+        new ScriptCache().get(source.toURI().toURL(), "script.test", new ProtocolSessionBuilder()).addTo(session);
+        QueuedSession queued = responses();
+        session.runSessions(new Session[] { queued });
+        assertEquals(3, queued.getClientLines().size());
+
+        source.setLastModified(System.currentTimeMillis() + 10000);
+        session = new ProtocolSession();
+        new ScriptCache().get(source.toURI().toURL(), "script.test", new ProtocolSessionBuilder()).addTo(session);
+        queued = new QueuedSession("a1 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList("a1 NOOP"), queued.getClientLines());
+    }
+}
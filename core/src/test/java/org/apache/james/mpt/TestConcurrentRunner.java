@@ -0,0 +1,165 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Continuation;
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.api.SessionFactory;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.SelectorSessionFactory;
+
+public class TestConcurrentRunner extends TestCase {
+
+    private static final String SCRIPT = "S: \\* OK IMAP4rev1 Server ready\n"
+            + "C: a001 NOOP\n"
+            + "S: a001 OK NOOP completed\\.\n"
+            + "C: a002 LOGOUT\n"
+            + "S: \\* BYE IMAP4rev1 Server logging out\n"
+            + "S: a002 OK LOGOUT completed\\.\n";
+
+    private FakeImapServer server;
+
+    private ExecutorService executor;
+
+    private CountingFactory factory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+        executor = Executors.newCachedThreadPool();
+        factory = new CountingFactory(new SelectorSessionFactory("127.0.0.1", server.getPort(), new NullMonitor(),
+                null));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdown();
+        server.stop();
+        super.tearDown();
+    }
+
+    private Runner runner(String script) throws Exception {
+        Runner runner = new Runner();
+        Scripts.addLines(script, runner.getTestElements());
+        return runner;
+    }
+
+    public void testShouldRunInstancesConcurrentlyWithinLimit() throws Exception {
+        Runner runner = runner(SCRIPT);
+        runner.setExecutor(executor, 8);
+        runner.runSessions(factory, 50);
+        assertEquals(50, factory.opened.get());
+        assertEquals(0, factory.open.get());
+        assertTrue("Limit exceeded: " + factory.maximum.get(), factory.maximum.get() <= 8);
+        assertEquals(50, server.getConnectionCount());
+    }
+
+    public void testShouldRunInstancesOnCallerByDefault() throws Exception {
+        Runner runner = runner(SCRIPT);
+        runner.runSessions(factory, 3);
+        assertEquals(3, factory.opened.get());
+        assertEquals(1, factory.maximum.get());
+    }
+
+    public void testShouldReportFailures() throws Exception {
+        Runner runner = runner(SCRIPT.replace("NOOP completed", "NOOP failed"));
+        runner.setExecutor(executor, 4);
+        try {
+            runner.runSessions(factory, 10);
+            fail("Expected failure");
+        }
+        catch (Exception e) {
+            assertEquals("10 of 10 instances failed", e.getMessage());
+        }
+        assertEquals(0, factory.open.get());
+    }
+
+    public void testShouldKeepPreambleCapturesForTest() throws Exception {
+        Runner runner = runner(SCRIPT.substring(SCRIPT.indexOf('\n') + 1).replace("\\* BYE IMAP4rev1",
+                "\\* BYE ${server}"));
+        Scripts.addLines("S: \\* OK (?<server>\\w+) Server ready\n", runner.getPreElements());
+        runner.setExecutor(executor, 2);
+        runner.runSessions(factory, 2);
+        assertEquals(2, factory.opened.get());
+    }
+
+    public void testShouldRejectInvalidConcurrency() throws Exception {
+        try {
+            new ConcurrentRunner(executor, 0);
+            fail("Expected failure");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Counts the sessions open at once.
+     */
+    private static final class CountingFactory implements SessionFactory {
+
+        private final SessionFactory factory;
+
+        final AtomicInteger open = new AtomicInteger();
+
+        final AtomicInteger opened = new AtomicInteger();
+
+        final AtomicInteger maximum = new AtomicInteger();
+
+        CountingFactory(SessionFactory factory) {
+            this.factory = factory;
+        }
+
+        public Session newSession(Continuation continuation) throws Exception {
+            final Session session = factory.newSession(continuation);
+            return new Session() {
+                public String readLine() throws Exception {
+                    return session.readLine();
+                }
+
+                public void writeLine(String line) throws Exception {
+                    session.writeLine(line);
+                }
+
+                public void start() throws Exception {
+                    session.start();
+                    opened.incrementAndGet();
+                    final int now = open.incrementAndGet();
+                    int previous;
+                    while ((previous = maximum.get()) < now && !maximum.compareAndSet(previous, now)) {
+                        // retry
+                    }
+                }
+
+                public void stop() throws Exception {
+                    open.decrementAndGet();
+                    session.stop();
+                }
+            };
+        }
+    }
+}
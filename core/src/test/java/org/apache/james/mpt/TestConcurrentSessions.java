@@ -0,0 +1,169 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.protocol.ScriptPlan;
+
+public class TestConcurrentSessions extends TestCase {
+
+    private static final String SCRIPT = "SESSION: 0\n"
+            + "C: a1 NOOP\n"
+            + "S: a1 OK\n"
+            + "SYNC ready\n"
+            + "C: a2 NOOP\n"
+            + "S: a2 OK\n"
+            + "SESSION: 1\n"
+            + "C: b1 NOOP\n"
+            + "S: b1 OK\n"
+            + "SYNC ready\n"
+            + "C: b2 NOOP\n"
+            + "S: b2 OK\n";
+
+    private final List<String> written = new ArrayList<String>();
+
+    private final Set<String> threads = new HashSet<String>();
+
+    private ProtocolSession build(String script, boolean concurrent) throws Exception {
+        ProtocolSession session = Scripts.session(script);
+        session.setConcurrentSessions(concurrent);
+        return session;
+    }
+
+    private Session[] sessions(String[]... lines) {
+        Session[] result = new Session[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            result[i] = new RecordingSession(lines[i]);
+        }
+        return result;
+    }
+
+    public void testShouldRunSessionsOnTheirOwnThreads() throws Exception {
+        build(SCRIPT, true).runSessions(sessions(new String[] { "a1 OK", "a2 OK" },
+                new String[] { "b1 OK", "b2 OK" }));
+        assertEquals(4, written.size());
+        assertEquals(2, threads.size());
+    }
+
+    public void testShouldMeetAtBarriers() throws Exception {
+        build(SCRIPT, true).runSessions(sessions(new String[] { "a1 OK", "a2 OK" },
+                new String[] { "b1 OK", "b2 OK" }));
+        // session 0 waits at the barrier for session 1
+        assertTrue(written.indexOf("b1 NOOP") < written.indexOf("a2 NOOP"));
+        assertTrue(written.indexOf("a1 NOOP") < written.indexOf("b2 NOOP"));
+    }
+
+    public void testShouldRunSerializedByDefault() throws Exception {
+        build(SCRIPT, false).runSessions(sessions(new String[] { "a1 OK", "a2 OK" },
+                new String[] { "b1 OK", "b2 OK" }));
+        assertEquals("a1 NOOP", written.get(0));
+        assertEquals("a2 NOOP", written.get(1));
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    public void testShouldRunBroadcastElementsOnEachSession() throws Exception {
+        String script = "C: x1 NOOP\n" + "S: x1 OK\n" + SCRIPT;
+        build(script, true).runSessions(sessions(new String[] { "x1 OK", "a1 OK", "a2 OK" },
+                new String[] { "x1 OK", "b1 OK", "b2 OK" }));
+        assertEquals(6, written.size());
+    }
+
+    public void testShouldReleaseBarrierWhenSessionFails() throws Exception {
+        try {
+            build(SCRIPT, true).runSessions(sessions(new String[] { "a1 NO", "a2 OK" },
+                    new String[] { "b1 OK", "b2 OK" }));
+            fail("Expected failure");
+        }
+        catch (InvalidServerResponseException e) {
+            // the failure of session 0 is reported, not the barrier broken
+        }
+        assertFalse(written.contains("b2 NOOP"));
+    }
+
+    public void testShouldRejectUnbalancedBarriers() throws Exception {
+        ProtocolSession session = build(SCRIPT + "SYNC ready\n", true);
+        try {
+            session.compile();
+            fail("Expected failure");
+        }
+        catch (IllegalArgumentException e) {
+            // session 1 reaches the barrier twice
+        }
+    }
+
+    public void testShouldRequireBarrierName() throws Exception {
+        try {
+            build("SESSION: 0\nSYNC  \n", true);
+            fail("Expected failure");
+        }
+        catch (Exception e) {
+            assertEquals("No barrier name specified", e.getMessage());
+        }
+    }
+
+    public void testShouldCompileConcurrentPlan() throws Exception {
+        ScriptPlan plan = build(SCRIPT, true).compile();
+        assertTrue(plan.isConcurrentSessions());
+        assertFalse(build("C: a1 NOOP\nSYNC x\n", true).compile().isConcurrentSessions());
+    }
+
+    /**
+     * Replays server lines and records client lines, with the threads
+     * writing them, across sessions.
+     */
+    private final class RecordingSession implements Session {
+
+        private final LinkedList<String> serverLines = new LinkedList<String>();
+
+        RecordingSession(String... lines) {
+            for (String line : lines) {
+                serverLines.add(line);
+            }
+        }
+
+        public String readLine() throws Exception {
+            return serverLines.removeFirst();
+        }
+
+        public void writeLine(String line) throws Exception {
+            synchronized (written) {
+                written.add(line);
+                threads.add(Thread.currentThread().getName());
+            }
+        }
+
+        public void start() throws Exception {
+        }
+
+        public void stop() throws Exception {
+        }
+    }
+}
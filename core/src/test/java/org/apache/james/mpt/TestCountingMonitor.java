@@ -0,0 +1,116 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.monitor.CountingMonitor;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.ExternalSession;
+import org.apache.james.mpt.session.SelectorSession;
+
+public class TestCountingMonitor extends TestCase {
+
+    private FakeImapServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private void converse(Session session) throws Exception {
+        session.start();
+        try {
+            assertEquals("* OK IMAP4rev1 Server ready", session.readLine());
+            session.writeLine("a001 NOOP");
+            assertEquals("a001 OK NOOP completed.", session.readLine());
+        }
+        finally {
+            session.stop();
+        }
+    }
+
+    private SocketChannel connect() throws Exception {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+    }
+
+    public void testShouldCountExternalSessionTraffic() throws Exception {
+        CountingMonitor monitor = new CountingMonitor();
+        converse(new ExternalSession(connect(), monitor, null));
+        assertEquals(1, monitor.getRequestLines());
+        assertEquals("a001 NOOP\r\n".length(), monitor.getRequestOctets());
+        assertEquals(2, monitor.getResponseLines());
+        assertEquals("* OK IMAP4rev1 Server ready\r\na001 OK NOOP completed.\r\n".length(), monitor
+                .getResponseOctets());
+    }
+
+    public void testShouldCountSelectorSessionTraffic() throws Exception {
+        CountingMonitor monitor = new CountingMonitor();
+        converse(new SelectorSession(connect(), monitor, null));
+        assertEquals(1, monitor.getRequestLines());
+        assertEquals("a001 NOOP\r\n".length(), monitor.getRequestOctets());
+        assertEquals(2, monitor.getResponseLines());
+        assertEquals("* OK IMAP4rev1 Server ready\r\na001 OK NOOP completed.\r\n".length(), monitor
+                .getResponseOctets());
+    }
+
+    public void testShouldPassLinesToDelegateDuringEvent() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        CountingMonitor monitor = new CountingMonitor(new NullMonitor() {
+            @Override
+            public boolean isEventEnabled() {
+                return true;
+            }
+
+            @Override
+            public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets,
+                    long timestamp) {
+                lines.add(direction + " " + line);
+            }
+        });
+        SelectorSession session = new SelectorSession(connect(), monitor, null);
+        session.start();
+        try {
+            session.readLineView();
+            session.writeLine(ByteBuffer.wrap("a001 NOOP".getBytes("US-ASCII")));
+            session.readLineView();
+        }
+        finally {
+            session.stop();
+        }
+        assertEquals(Arrays.asList("RESPONSE * OK IMAP4rev1 Server ready", "REQUEST a001 NOOP",
+                "RESPONSE a001 OK NOOP completed."), lines);
+    }
+}
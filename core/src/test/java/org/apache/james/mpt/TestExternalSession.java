@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.ExternalSession;
+
+public class TestExternalSession extends TestCase {
+
+    private ServerSocket server;
+
+    private Socket accepted;
+
+    private ExternalSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new ServerSocket(0);
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        channel.configureBlocking(false);
+        session = new ExternalSession(channel, new NullMonitor(), null);
+        session.start();
+        accepted = server.accept();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.stop();
+        accepted.close();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testShouldReadLinesAcrossPackets() throws Exception {
+        OutputStream out = accepted.getOutputStream();
+        out.write("* OK ready\r\n* PARTIAL".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals("* OK ready", session.readLine());
+        out.write(" LINE\r\na001 OK done\r\n".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals("* PARTIAL LINE", session.readLine());
+        assertEquals("a001 OK done", session.readLine());
+    }
+
+    public void testShouldReadLinesLongerThanBuffer() throws Exception {
+        StringBuilder line = new StringBuilder("* 1 FETCH (BODYSTRUCTURE (");
+        for (int i = 0; i < 100000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        OutputStream out = accepted.getOutputStream();
+        out.write((line + "\r\na001 OK FETCH completed\r\n").getBytes("US-ASCII"));
+        out.flush();
+        assertEquals(line.toString(), session.readLine());
+        assertEquals("a001 OK FETCH completed", session.readLine());
+    }
+
+    public void testShouldReadManyLinesFillingBuffer() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("* ").append(i).append(" EXISTS\r\n");
+        }
+        OutputStream out = accepted.getOutputStream();
+        out.write(lines.toString().getBytes("US-ASCII"));
+        out.flush();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("* " + i + " EXISTS", session.readLine());
+        }
+    }
+
+    public void testShouldAcceptBareLineFeed() throws Exception {
+        OutputStream out = accepted.getOutputStream();
+        out.write("* OK ready\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals("* OK ready", session.readLine());
+        assertEquals("", session.readLine());
+    }
+
+    public void testShouldFailWhenServerCloses() throws Exception {
+        accepted.close();
+        try {
+            session.readLine();
+            fail("Expected end of stream");
+        }
+        catch (EOFException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.stats.CommandLatencyListener;
+import org.apache.james.mpt.stats.LatencyHistogram;
+import org.apache.james.mpt.stats.TaggedCommandTimer;
+
+public class TestLatencyHistogram extends TestCase {
+
+    public void testShouldBeExactForSmallValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(50.5, histogram.getMean(), 0.001);
+    }
+
+    public void testShouldBoundRelativeErrorForLargeValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1000; value < 100000000000L; value = value * 3 + 7) {
+            histogram.record(value);
+            long recorded = histogram.getValueAtPercentile(100);
+            assertTrue(recorded >= value);
+            assertTrue((recorded - value) / (double) value < 0.016);
+        }
+    }
+
+    public void testShouldAddHistograms() throws Exception {
+        LatencyHistogram one = new LatencyHistogram();
+        LatencyHistogram two = new LatencyHistogram();
+        one.record(10);
+        two.record(5);
+        two.record(20);
+        one.add(two);
+        assertEquals(3, one.getCount());
+        assertEquals(5, one.getMin());
+        assertEquals(20, one.getMax());
+        assertEquals(10, one.getValueAtPercentile(50));
+    }
+
+    public void testShouldTimeTaggedCommandsSkippingLiterals() throws Exception {
+        final StringBuilder completed = new StringBuilder();
+        TaggedCommandTimer timer = new TaggedCommandTimer(new CommandLatencyListener() {
+            public void commandCompleted(String verb, String status, String location, long nanos) {
+                completed.append(verb).append(' ').append(status).append(';');
+            }
+        }, 1);
+        timer.requestWritten(0, "a001 APPEND INBOX {7+}");
+        timer.requestWritten(0, "x LIST");
+        timer.requestWritten(0, "a002 uid fetch 1 (FLAGS)");
+        timer.responseRead(0, "* 1 FETCH (FLAGS ())", null);
+        timer.responseRead(0, "a002 OK FETCH completed.", null);
+        timer.responseRead(0, "a001 NO APPEND failed.", null);
+        timer.responseRead(0, "x OK LIST completed.", null);
+        timer.responseRead(0, "a002 OK FETCH completed.", null);
+        assertEquals("UID FETCH OK;APPEND NO;", completed.toString());
+    }
+
+    public void testShouldTimeCommandsCompletedByLineViews() throws Exception {
+        final StringBuilder completed = new StringBuilder();
+        TaggedCommandTimer timer = new TaggedCommandTimer(new CommandLatencyListener() {
+            public void commandCompleted(String verb, String status, String location, long nanos) {
+                completed.append(verb).append(' ').append(status).append(';');
+            }
+        }, 1);
+        timer.requestWritten(0, "a1 SELECT INBOX");
+        timer.requestWritten(0, "a2 NOOP");
+        byte[] buffer = new byte[64];
+        AsciiLine view = new AsciiLine();
+        for (String line : new String[] { "* 1 EXISTS", "a2 BAD NOOP", "a1 OK [READ-WRITE] done" }) {
+            byte[] bytes = line.getBytes("US-ASCII");
+            System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+            timer.responseRead(0, view.set(buffer, 0, bytes.length), null);
+        }
+        assertEquals("NOOP BAD;SELECT OK;", completed.toString());
+    }
+}
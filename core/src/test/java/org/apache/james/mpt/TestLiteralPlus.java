@@ -0,0 +1,113 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.session.SelectorSessionFactory;
+import org.apache.james.mpt.session.SessionMultiplexer;
+
+public class TestLiteralPlus extends TestCase {
+
+    private static final String APPEND = "C: a002 APPEND INBOX {5}\n"
+            + "S: \\+ Ready for literal data\n"
+            + "C: Hello\n"
+            + "S: a002 OK APPEND completed\\.\n"
+            + "C: a003 LOGOUT\n"
+            + "S: \\* BYE IMAP4rev1 Server logging out\n"
+            + "S: a003 OK LOGOUT completed\\.\n";
+
+    private static final String SCRIPT = "S: \\* OK IMAP4rev1 Server ready\n"
+            + "C: a001 CAPABILITY\n"
+            + "S: \\* CAPABILITY IMAP4rev1 LITERAL\\+\n"
+            + "S: a001 OK CAPABILITY completed\\.\n"
+            + APPEND;
+
+    private FakeImapServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private ProtocolSession session(String script, boolean literalPlus) throws Exception {
+        ProtocolSession session = Scripts.session(script);
+        session.setLiteralPlus(literalPlus);
+        return session;
+    }
+
+    private void run(ProtocolSession session) throws Exception {
+        session.compile().runSessions(new SelectorSessionFactory(new InetSocketAddress("127.0.0.1", server
+                .getPort()), new NullMonitor(), null, 5000, 5000));
+    }
+
+    public void testShouldSkipContinuationWhenAdvertised() throws Exception {
+        run(session(SCRIPT, true));
+        assertEquals(0, server.getContinuationCount());
+    }
+
+    public void testShouldSkipContinuationElementWhenAdvertised() throws Exception {
+        run(session(SCRIPT.replace("S: \\+ Ready for literal data\n", "S: \\+\n"), true));
+        assertEquals(0, server.getContinuationCount());
+    }
+
+    public void testShouldWaitForContinuationByDefault() throws Exception {
+        run(session(SCRIPT, false));
+        assertEquals(1, server.getContinuationCount());
+    }
+
+    public void testShouldWaitForContinuationWhenNotAdvertised() throws Exception {
+        run(session("S: \\* OK IMAP4rev1 Server ready\n" + APPEND, true));
+        assertEquals(1, server.getContinuationCount());
+    }
+
+    public void testShouldCarryAdvertisementFromPreScript() throws Exception {
+        ProtocolSession pre = session(SCRIPT.substring(0, SCRIPT.indexOf(APPEND)), true);
+        ProtocolSession test = session(APPEND, true);
+        ConcurrentRunner.runInstance(pre.compile(), test.compile(), session("", true).compile(),
+                new SelectorSessionFactory(new InetSocketAddress("127.0.0.1", server.getPort()), new NullMonitor(),
+                        null, 5000, 5000), null);
+        assertEquals(0, server.getContinuationCount());
+    }
+
+    public void testShouldSkipContinuationOnMultiplexedSessions() throws Exception {
+        SessionMultiplexer multiplexer = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", server
+                .getPort()), new NullMonitor(), null, 1, 5000);
+        multiplexer.start();
+        try {
+            multiplexer.submit(session(SCRIPT, true).compile()).await();
+            assertEquals(0, server.getContinuationCount());
+        }
+        finally {
+            multiplexer.stop();
+        }
+    }
+}
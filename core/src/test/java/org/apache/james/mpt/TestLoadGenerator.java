@@ -0,0 +1,98 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.load.LoadGenerator;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.SessionMultiplexer;
+
+public class TestLoadGenerator extends TestCase {
+
+    private static final String SCRIPT = "S: \\* OK IMAP4rev1 Server ready\n"
+            + "C: a001 NOOP\n"
+            + "S: a001 OK NOOP completed\\.\n"
+            + "C: a002 LOGOUT\n"
+            + "S: \\* BYE IMAP4rev1 Server logging out\n"
+            + "S: a002 OK LOGOUT completed\\.\n";
+
+    private FakeImapServer server;
+
+    private SessionMultiplexer multiplexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+        multiplexer = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", server.getPort()),
+                new NullMonitor(), null, 2, 5000);
+        multiplexer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        multiplexer.stop();
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testShouldReplayScriptAndRecordLatencies() throws Exception {
+        LoadGenerator generator = new LoadGenerator(Scripts.plan(SCRIPT), multiplexer, 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        generator.run(300, 100, new PrintStream(out, true));
+
+        assertEquals(0, generator.getFailures());
+        assertTrue(generator.getIterations() >= 10);
+        assertEquals(generator.getIterations(), generator.getLatencies("NOOP").getCount());
+        assertEquals(generator.getIterations(), generator.getLatencies("LOGOUT").getCount());
+        assertEquals(2 * generator.getIterations(), generator.getLatencies().getCount());
+        assertTrue(out.toString().indexOf("cmd/s") >= 0);
+        assertTrue(out.toString().indexOf("NOOP") >= 0);
+    }
+
+    public void testShouldBackOffWhenServerRefusesConnections() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int port = closed.getLocalPort();
+        closed.close();
+        SessionMultiplexer refused = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", port),
+                new NullMonitor(), null, 1, 5000);
+        refused.start();
+        try {
+            LoadGenerator generator = new LoadGenerator(Scripts.plan(SCRIPT), refused, 5);
+            generator.setMaximumBackOff(100);
+
+            generator.run(500, 100, new PrintStream(new ByteArrayOutputStream(), true));
+
+            assertEquals(0, generator.getIterations());
+            assertTrue(generator.getFailures() >= 5);
+            assertTrue("Failures: " + generator.getFailures(), generator.getFailures() <= 5 * 12);
+        }
+        finally {
+            refused.stop();
+        }
+    }
+}
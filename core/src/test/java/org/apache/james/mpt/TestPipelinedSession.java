@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.session.SelectorSessionFactory;
+import org.apache.james.mpt.session.SessionMultiplexer;
+
+public class TestPipelinedSession extends TestCase {
+
+    private static final String SCRIPT = "C: a001 SELECT INBOX\n"
+            + "S: \\* 1 EXISTS\n"
+            + "S: a001 OK SELECT completed\\.\n"
+            + "C: a002 FETCH 1 (FLAGS)\n"
+            + "S: \\* 1 FETCH \\(FLAGS \\(\\)\\)\n"
+            + "S: a002 OK FETCH completed\\.\n"
+            + "C: a003 NOOP\n"
+            + "S: a003 OK NOOP completed\\.\n";
+
+    private ProtocolSession session(String script, int depth) throws Exception {
+        ProtocolSession session = Scripts.session(script);
+        session.setPipelineDepth(depth);
+        return session;
+    }
+
+    public void testShouldWriteCommandsBeforeReadingResponses() throws Exception {
+        QueuedSession queued = new QueuedSession("* 1 EXISTS", "a003 OK NOOP completed.", "* 1 FETCH (FLAGS ())",
+                "a001 OK SELECT completed.", "a002 OK FETCH completed.");
+        session(SCRIPT, 10).runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList("a001 SELECT INBOX", "a002 FETCH 1 (FLAGS)", "a003 NOOP"), queued
+                .getClientLines());
+        assertEquals(Arrays.asList(0, 0, 0), queued.getReadsBeforeWrites());
+    }
+
+    public void testShouldLimitCommandsInFlight() throws Exception {
+        QueuedSession queued = new QueuedSession("* 1 EXISTS", "a001 OK SELECT completed.", "* 1 FETCH (FLAGS ())",
+                "a002 OK FETCH completed.", "a003 OK NOOP completed.");
+        session(SCRIPT, 2).runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList(0, 0, 4), queued.getReadsBeforeWrites());
+    }
+
+    public void testShouldAlternateByDefault() throws Exception {
+        QueuedSession queued = new QueuedSession("* 1 EXISTS", "a001 OK SELECT completed.", "* 1 FETCH (FLAGS ())",
+                "a002 OK FETCH completed.", "a003 OK NOOP completed.");
+        session(SCRIPT, 1).runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList(0, 2, 4), queued.getReadsBeforeWrites());
+    }
+
+    public void testShouldFailWhenCompletedBeforeUntaggedResponse() throws Exception {
+        QueuedSession queued = new QueuedSession("a001 OK SELECT completed.", "* 1 EXISTS",
+                "* 1 FETCH (FLAGS ())", "a002 OK FETCH completed.", "a003 OK NOOP completed.");
+        try {
+            session(SCRIPT, 10).runSessions(new Session[] { queued });
+            fail("Expected missing untagged response");
+        }
+        catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage().indexOf("EXISTS") >= 0);
+        }
+    }
+
+    public void testShouldFailOnUnexpectedUntaggedResponse() throws Exception {
+        QueuedSession queued = new QueuedSession("* 1 EXISTS", "* 2 RECENT", "a001 OK SELECT completed.",
+                "* 1 FETCH (FLAGS ())", "a002 OK FETCH completed.", "a003 OK NOOP completed.");
+        try {
+            session(SCRIPT, 10).runSessions(new Session[] { queued });
+            fail("Expected unexpected response");
+        }
+        catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage().indexOf("* 2 RECENT") >= 0);
+        }
+    }
+
+    public void testShouldNotPipelineAcrossContinuations() throws Exception {
+        FakeImapServer server = new FakeImapServer();
+        try {
+            ProtocolSession session = session("S: \\* OK IMAP4rev1 Server ready\n"
+                    + "C: a001 NOOP\n"
+                    + "S: a001 OK NOOP completed\\.\n"
+                    + "C: a002 APPEND INBOX {5}\n"
+                    + "S: \\+ Ready for literal data\n"
+                    + "C: Hello\n"
+                    + "S: a002 OK APPEND completed\\.\n"
+                    + "C: a003 NOOP\n"
+                    + "S: a003 OK NOOP completed\\.\n"
+                    + "C: a004 LOGOUT\n"
+                    + "SUB {\n"
+                    + "S: \\* BYE IMAP4rev1 Server logging out\n"
+                    + "}\n"
+                    + "S: a004 OK LOGOUT completed\\.\n", 10);
+            session.compile().runSessions(new SelectorSessionFactory(new InetSocketAddress("127.0.0.1", server
+                    .getPort()), new NullMonitor(), null, 5000, 5000));
+            assertEquals(1, server.getContinuationCount());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    public void testShouldPipelineOnMultiplexedSessions() throws Exception {
+        FakeImapServer server = new FakeImapServer();
+        SessionMultiplexer multiplexer = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", server
+                .getPort()), new NullMonitor(), null, 1, 5000);
+        multiplexer.start();
+        try {
+            ProtocolSession session = session("S: \\* OK IMAP4rev1 Server ready\n"
+                    + "C: a001 NOOP\n"
+                    + "S: a001 OK NOOP completed\\.\n"
+                    + "C: a002 CAPABILITY\n"
+                    + "S: \\* CAPABILITY IMAP4rev1 LITERAL\\+\n"
+                    + "S: a002 OK CAPABILITY completed\\.\n"
+                    + "C: a003 LOGOUT\n"
+                    + "S: \\* BYE IMAP4rev1 Server logging out\n"
+                    + "S: a003 OK LOGOUT completed\\.\n", 10);
+            multiplexer.submit(session.compile()).await();
+        }
+        finally {
+            multiplexer.stop();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.CompiledScript;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptCompiler;
+import org.apache.james.mpt.protocol.StreamingScript;
+
+public class TestRepeat extends TestCase {
+
+    private static final String NESTED = "REPEAT 2 i {\n"
+            + "C: a${i} SELECT box${i}\n"
+            + "S: a${i} OK\n"
+            + "REPEAT 2 j {\n"
+            + "C: b${i}${j} NOOP\n"
+            + "S: b${i}${j} OK\n"
+            + "}\n"
+            + "}\n"
+            + "C: c1 LOGOUT\n"
+            + "S: c1 OK\n";
+
+    private QueuedSession nestedResponses() {
+        return new QueuedSession("a1 OK", "b11 OK", "b12 OK", "a2 OK", "b21 OK", "b22 OK", "c1 OK");
+    }
+
+    private static final List<String> NESTED_REQUESTS = Arrays.asList("a1 SELECT box1", "b11 NOOP", "b12 NOOP",
+            "a2 SELECT box2", "b21 NOOP", "b22 NOOP", "c1 LOGOUT");
+
+    public void testShouldRunNestedBlocks() throws Exception {
+        QueuedSession queued = nestedResponses();
+        Scripts.session(NESTED).runSessions(new Session[] { queued });
+        assertEquals(NESTED_REQUESTS, queued.getClientLines());
+    }
+
+    public void testShouldNotUnrollBlocks() throws Exception {
+        final int count = 100000;
+        ProtocolSession session = Scripts.session("REPEAT " + count + " {\nC: a1 NOOP\nS: a1 OK\n}\n");
+        assertEquals(4, session.compile().size());
+        String[] responses = new String[count];
+        Arrays.fill(responses, "a1 OK");
+        QueuedSession queued = new QueuedSession(responses);
+        session.runSessions(new Session[] { queued });
+        assertEquals(count, queued.getClientLines().size());
+    }
+
+    public void testShouldSkipEmptyBlocks() throws Exception {
+        QueuedSession queued = new QueuedSession("a2 OK");
+        Scripts.session("REPEAT 0 {\nC: a1 NOOP\nS: a1 OK\n}\nC: a2 NOOP\nS: a2 OK\n").runSessions(
+                new Session[] { queued });
+        assertEquals(Arrays.asList("a2 NOOP"), queued.getClientLines());
+    }
+
+    public void testShouldRunContinuationsInBlocks() throws Exception {
+        QueuedSession queued = new QueuedSession("+ Ready", "a1 OK", "+ Ready", "a2 OK");
+        Scripts.session("REPEAT 2 n {\n"
+                + "C: a${n} APPEND INBOX {5}\n"
+                + "S: \\+ Ready\n"
+                + "C: Hello\n"
+                + "S: a${n} OK\n"
+                + "}\n").runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList("a1 APPEND INBOX {5}", "Hello", "a2 APPEND INBOX {5}", "Hello"), queued
+                .getClientLines());
+    }
+
+    public void testShouldPipelineWithinBlocks() throws Exception {
+        ProtocolSession session = Scripts.session("REPEAT 2 {\nC: a1 NOOP\nS: a1 OK\nC: a2 NOOP\nS: a2 OK\n}\n");
+        session.setPipelineDepth(10);
+        QueuedSession queued = new QueuedSession("a1 OK", "a2 OK", "a1 OK", "a2 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals(Arrays.asList(0, 0, 2, 2), queued.getReadsBeforeWrites());
+    }
+
+    public void testShouldRejectUnclosedBlocks() throws Exception {
+        try {
+            Scripts.session("REPEAT 2 {\nC: a1 NOOP\nS: a1 OK\n");
+            fail("Expected unclosed block");
+        }
+        catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("REPEAT") >= 0);
+        }
+    }
+
+    public void testShouldStreamBlocks() throws Exception {
+        StreamingScript script = new ProtocolSessionBuilder().openStreamingScript("test", new StringReader(NESTED),
+                1);
+        script.setChunkSize(1);
+        QueuedSession queued = nestedResponses();
+        script.run(new Session[] { queued });
+        assertEquals(NESTED_REQUESTS, queued.getClientLines());
+    }
+
+    public void testShouldCompileBlocks() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ScriptCompiler(new ProtocolSessionBuilder()).compile("test", new StringReader(NESTED), out);
+        ProtocolSession session = new ProtocolSession();
+        CompiledScript.read(new ByteArrayInputStream(out.toByteArray()), "test").replay(session);
+        QueuedSession queued = nestedResponses();
+        session.runSessions(new Session[] { queued });
+        assertEquals(NESTED_REQUESTS, queued.getClientLines());
+    }
+}
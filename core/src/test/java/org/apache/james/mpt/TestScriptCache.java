@@ -0,0 +1,94 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.ParsedScript;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.ScriptCache;
+
+public class TestScriptCache extends TestCase {
+
+    private File file;
+
+    private URL resource;
+
+    private ScriptCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("script", ".test");
+        FileWriter writer = new FileWriter(file);
+        writer.write("C: a1 LOGIN ${user} pass\nS: a1 OK\n");
+        writer.close();
+        resource = file.toURI().toURL();
+        cache = new ScriptCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testShouldParseOnce() throws Exception {
+        ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+        builder.setVariable("user", "imapuser");
+        ParsedScript first = cache.get(resource, "script.test", builder);
+        file.delete();
+        assertSame(first, cache.get(resource, "script.test", builder));
+        assertEquals(1, cache.size());
+        assertEquals(2, first.size());
+    }
+
+    public void testShouldKeyByVariables() throws Exception {
+        ProtocolSessionBuilder builder = new ProtocolSessionBuilder();
+        builder.setVariable("user", "imapuser");
+        ParsedScript first = cache.get(resource, "script.test", builder);
+        builder.setVariable("user", "other");
+        ParsedScript second = cache.get(resource, "script.test", builder);
+        assertNotSame(first, second);
+        assertEquals(2, cache.size());
+
+        QueuedSession queued = new QueuedSession("a1 OK");
+        ProtocolSession session = new ProtocolSession();
+        second.addTo(session);
+        session.runSessions(new Session[] { queued });
+        assertEquals("a1 LOGIN other pass", queued.getClientLines().get(0));
+    }
+
+    public void testShouldAddToManySessions() throws Exception {
+        ParsedScript script = cache.get(resource, "script.test", new ProtocolSessionBuilder());
+        ProtocolSession session = new ProtocolSession();
+        script.addTo(session);
+        script.addTo(session);
+        QueuedSession queued = new QueuedSession("a1 OK", "a1 OK");
+        session.runSessions(new Session[] { queued });
+        assertEquals(2, queued.getClientLines().size());
+    }
+}
@@ -0,0 +1,97 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.protocol.ScriptPlan;
+
+public class TestScriptPlan extends TestCase {
+
+    private ProtocolSession protocolSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        protocolSession = new ProtocolSession();
+        protocolSession.CL(-1, "a001 SELECT INBOX");
+        protocolSession.SL(-1, "\\* OK \\[UIDVALIDITY \\d+\\] UIDs valid", "test:1", "a001 SELECT INBOX");
+        protocolSession.SL(-1, "a001 OK \\[READ-WRITE\\] SELECT completed\\.", "test:2", "a001 SELECT INBOX");
+    }
+
+    public void testShouldMatchEscapedLiteralAndPattern() throws Exception {
+        QueuedSession session = new QueuedSession("* OK [UIDVALIDITY 42] UIDs valid",
+                "a001 OK [READ-WRITE] SELECT completed.");
+        protocolSession.compile().newCursor().run(new Session[] { session });
+        assertEquals(Arrays.asList("a001 SELECT INBOX"), session.getClientLines());
+    }
+
+    public void testShouldNotMatchEscapedDotAsWildcard() throws Exception {
+        QueuedSession session = new QueuedSession("* OK [UIDVALIDITY 42] UIDs valid",
+                "a001 OK [READ-WRITE] SELECT completedX");
+        try {
+            protocolSession.compile().newCursor().run(new Session[] { session });
+            fail("Expected mismatch");
+        }
+        catch (InvalidServerResponseException e) {
+            // expected
+        }
+    }
+
+    public void testPlanShouldNotSeeLaterElements() throws Exception {
+        ScriptPlan plan = protocolSession.compile();
+        protocolSession.CL(-1, "a002 LOGOUT");
+        assertEquals(3, plan.size());
+        assertEquals(4, protocolSession.compile().size());
+    }
+
+    public void testPlanShouldBeReplayableConcurrently() throws Exception {
+        final ScriptPlan plan = protocolSession.compile();
+        final Exception[] failures = new Exception[20];
+        Thread[] threads = new Thread[failures.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            QueuedSession session = new QueuedSession("* OK [UIDVALIDITY " + j + "] UIDs valid",
+                                    "a001 OK [READ-WRITE] SELECT completed.");
+                            plan.newCursor().run(new Session[] { session });
+                        }
+                    }
+                    catch (Exception e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNull(failures[i]);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.session.SelectorSession;
+import org.apache.james.mpt.session.SelectorSessionFactory;
+
+public class TestSelectorSession extends TestCase {
+
+    private ServerSocket server;
+
+    private Socket accepted;
+
+    private SelectorSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new ServerSocket(0);
+        SelectorSessionFactory factory = new SelectorSessionFactory(new InetSocketAddress("127.0.0.1",
+                server.getLocalPort()), new NullMonitor(), null, 5000, 200);
+        session = (SelectorSession) factory.newSession(null);
+        session.start();
+        accepted = server.accept();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.stop();
+        accepted.close();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testShouldReadLinesAcrossPackets() throws Exception {
+        OutputStream out = accepted.getOutputStream();
+        out.write("* OK ready\r\n* PARTIAL".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals("* OK ready", session.readLine());
+        out.write(" LINE\r\n".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals("* PARTIAL LINE", session.readLine());
+    }
+
+    public void testShouldReadLinesLongerThanBuffer() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        OutputStream out = accepted.getOutputStream();
+        out.write((line + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+        assertEquals(line.toString(), session.readLine());
+    }
+
+    public void testShouldReadManyLinesFillingBuffer() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("* ").append(i).append(" EXISTS\r\n");
+        }
+        OutputStream out = accepted.getOutputStream();
+        out.write(lines.toString().getBytes("US-ASCII"));
+        out.flush();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("* " + i + " EXISTS", session.readLine());
+        }
+    }
+
+    public void testShouldWriteLineWithCRLF() throws Exception {
+        session.writeLine("a001 NOOP");
+        InputStream in = accepted.getInputStream();
+        byte[] expected = "a001 NOOP\r\n".getBytes("US-ASCII");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], in.read());
+        }
+    }
+
+    public void testShouldTimeOutWhenNoLineArrives() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            session.readLine();
+            fail("Expected timeout");
+        }
+        catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 200);
+        }
+    }
+
+    public void testShouldReportResponseTime() throws Exception {
+        session.writeLine("a001 NOOP");
+        accepted.getOutputStream().write("a001 OK\r\n".getBytes("US-ASCII"));
+        assertEquals("a001 OK", session.readLine());
+        assertTrue(session.getResponseTimeNanos() >= 0);
+    }
+}
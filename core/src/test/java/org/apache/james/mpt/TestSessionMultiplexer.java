@@ -0,0 +1,130 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.monitor.NullMonitor;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+import org.apache.james.mpt.protocol.ScriptPlan;
+import org.apache.james.mpt.session.SessionMultiplexer;
+
+public class TestSessionMultiplexer extends TestCase {
+
+    private static final String SCRIPT = "S: \\* OK IMAP4rev1 Server ready\n"
+            + "C: a001 NOOP\n"
+            + "S: a001 OK NOOP completed\\.\n"
+            + "C: a002 APPEND INBOX {5}\n"
+            + "S: \\+ Ready for literal data\n"
+            + "C: Hello\n"
+            + "S: a002 OK APPEND completed\\.\n"
+            + "C: a003 LOGOUT\n"
+            + "S: \\* BYE IMAP4rev1 Server logging out\n"
+            + "S: a003 OK LOGOUT completed\\.\n";
+
+    private FakeImapServer server;
+
+    private SessionMultiplexer multiplexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeImapServer();
+        multiplexer = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", server.getPort()),
+                new NullMonitor(), null, 2, 5000);
+        multiplexer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        multiplexer.stop();
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testShouldRunManyExecutionsConcurrently() throws Exception {
+        ScriptPlan plan = Scripts.plan(SCRIPT);
+        List<SessionMultiplexer.Execution> executions = new ArrayList<SessionMultiplexer.Execution>();
+        for (int i = 0; i < 100; i++) {
+            executions.add(multiplexer.submit(plan));
+        }
+        for (SessionMultiplexer.Execution execution : executions) {
+            execution.await();
+            assertTrue(execution.getCursor().isComplete());
+        }
+        assertEquals(100, server.getConnectionCount());
+    }
+
+    public void testShouldReportMismatch() throws Exception {
+        SessionMultiplexer.Execution execution = multiplexer.submit(Scripts.plan("S: \\* OK IMAP4rev1 Server ready\n"
+                + "C: a001 NOOP\n" + "S: a001 NO NOOP failed\n"));
+        try {
+            execution.await();
+            fail("Expected mismatch");
+        }
+        catch (InvalidServerResponseException e) {
+            // expected
+        }
+    }
+
+    public void testShouldTimeOutAfterDeadlineMoved() throws Exception {
+        SessionMultiplexer timing = new SessionMultiplexer(new InetSocketAddress("127.0.0.1", server.getPort()),
+                new NullMonitor(), null, 1, 300);
+        timing.start();
+        try {
+            long start = System.currentTimeMillis();
+            SessionMultiplexer.Execution execution = timing.submit(Scripts.plan("S: \\* OK IMAP4rev1 Server ready\n"
+                    + "C: a001 NOOP\n" + "S: a001 OK NOOP completed\\.\n" + "S: \\* NEVER\n"));
+            try {
+                execution.await();
+                fail("Expected timeout");
+            }
+            catch (SocketTimeoutException e) {
+                assertTrue(System.currentTimeMillis() - start >= 300);
+            }
+        }
+        finally {
+            timing.stop();
+        }
+    }
+
+    public void testShouldReplaceCharactersWhichAreNotAscii() throws Exception {
+        multiplexer.submit(Scripts.plan("S: \\* OK IMAP4rev1 Server ready\n" + "C: caf\u00e9 NOOP\n"
+                + "S: caf\\? OK NOOP completed\\.\n")).await();
+    }
+
+    public void testShouldSuspendOnWait() throws Exception {
+        ProtocolSession session = new ProtocolSession();
+        session.SL(-1, "\\* OK IMAP4rev1 Server ready", "test:0", "");
+        session.WAIT(-1, 100);
+        session.CL(-1, "a001 LOGOUT");
+        session.SL(-1, "\\* BYE IMAP4rev1 Server logging out", "test:1", "");
+        session.SL(-1, "a001 OK LOGOUT completed\\.", "test:2", "");
+        long start = System.currentTimeMillis();
+        multiplexer.submit(session.compile()).await();
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+}
@@ -0,0 +1,191 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.ProtocolSessionBuilder;
+import org.apache.james.mpt.protocol.StreamingScript;
+
+public class TestStreamingScript extends TestCase {
+
+    private ProtocolSessionBuilder builder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        builder = new ProtocolSessionBuilder();
+    }
+
+    public void testShouldParseJustAheadOfExecution() throws Exception {
+        GeneratedScript script = new GeneratedScript(100000);
+        EchoSession session = new EchoSession(script);
+        StreamingScript streaming = builder.openStreamingScript("generated", script, 1);
+        streaming.setChunkSize(10);
+        streaming.run(new Session[] { session });
+        assertEquals(100000, session.commands);
+        assertTrue("Parsed " + session.generatedAtFirstCommand + " commands ahead",
+                session.generatedAtFirstCommand < 100);
+        assertTrue(script.closed);
+    }
+
+    public void testShouldKeepContinuationsWithinChunk() throws Exception {
+        String script = "C: a1 APPEND INBOX {5}\n"
+                + "S: \\+ Ready\n"
+                + "C: Hello\n"
+                + "S: a1 OK APPEND\n"
+                + "C: a2 APPEND INBOX {5}\n"
+                + "S: \\+ Ready\n"
+                + "C: Hello\n"
+                + "S: a2 OK APPEND\n";
+        QueuedSession session = new QueuedSession("+ Ready", "a1 OK APPEND", "+ Ready", "a2 OK APPEND");
+        StreamingScript streaming = builder.openStreamingScript("test", new StringReader(script), 1);
+        streaming.setChunkSize(1);
+        streaming.run(new Session[] { session });
+        assertEquals(4, session.getClientLines().size());
+        assertEquals(Integer.valueOf(1), session.getReadsBeforeWrites().get(1));
+    }
+
+    public void testShouldSubstituteVariables() throws Exception {
+        builder.setVariable("user", "imapuser");
+        QueuedSession session = new QueuedSession("a1 OK");
+        builder.openStreamingScript("test", new StringReader("C: a1 LOGIN ${user} pass\nS: a1 OK\n"), 1).run(
+                new Session[] { session });
+        assertEquals("a1 LOGIN imapuser pass", session.getClientLines().get(0));
+    }
+
+    public void testShouldKeepCapturesAcrossChunks() throws Exception {
+        String script = "C: a1 SELECT INBOX\n"
+                + "S: \\* OK \\[UIDNEXT (?<uidnext>\\d+)\\]\n"
+                + "S: a1 OK\n"
+                + "C: a2 UID FETCH ${uidnext-1} (FLAGS)\n"
+                + "S: a2 OK\n";
+        QueuedSession session = new QueuedSession("* OK [UIDNEXT 42]", "a1 OK", "a2 OK");
+        StreamingScript streaming = builder.openStreamingScript("test", new StringReader(script), 1);
+        streaming.setChunkSize(1);
+        streaming.run(new Session[] { session });
+        assertEquals("a2 UID FETCH 41 (FLAGS)", session.getClientLines().get(1));
+    }
+
+    public void testShouldRejectUndeclaredSessions() throws Exception {
+        QueuedSession session = new QueuedSession("a1 OK");
+        try {
+            builder.openStreamingScript("test", new StringReader("SESSION: 1\nC: a1 NOOP\nS: a1 OK\n"), 1).run(
+                    new Session[] { session });
+            fail("Expected failure");
+        }
+        catch (Exception e) {
+            assertEquals("Script uses session 1 but only 1 sessions are open", e.getMessage());
+        }
+    }
+
+    public void testShouldOnlyRunOnce() throws Exception {
+        StreamingScript streaming = builder.openStreamingScript("test", new StringReader(""), 1);
+        streaming.run(new Session[] { new QueuedSession() });
+        try {
+            streaming.run(new Session[] { new QueuedSession() });
+            fail("Expected failure");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Generates NOOP commands on demand.
+     */
+    private static final class GeneratedScript extends Reader {
+
+        private final int commands;
+
+        private int generated = 0;
+
+        private String pending = "";
+
+        private int offset = 0;
+
+        private boolean closed = false;
+
+        GeneratedScript(int commands) {
+            this.commands = commands;
+        }
+
+        public int read(char[] buffer, int start, int length) throws IOException {
+            if (offset == pending.length()) {
+                if (generated == commands) {
+                    return -1;
+                }
+                generated++;
+                pending = "C: t" + generated + " NOOP\nS: t" + generated + " OK NOOP\n";
+                offset = 0;
+            }
+            final int count = Math.min(length, pending.length() - offset);
+            pending.getChars(offset, offset + count, buffer, start);
+            offset += count;
+            return count;
+        }
+
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    /**
+     * Completes each command it receives.
+     */
+    private static final class EchoSession implements Session {
+
+        private final GeneratedScript script;
+
+        private final LinkedList<String> responses = new LinkedList<String>();
+
+        private int commands = 0;
+
+        private int generatedAtFirstCommand = -1;
+
+        EchoSession(GeneratedScript script) {
+            this.script = script;
+        }
+
+        public String readLine() throws Exception {
+            return responses.removeFirst();
+        }
+
+        public void writeLine(String line) throws Exception {
+            if (generatedAtFirstCommand < 0) {
+                generatedAtFirstCommand = script.generated;
+            }
+            commands++;
+            responses.add(line.substring(0, line.indexOf(' ')) + " OK NOOP");
+        }
+
+        public void start() throws Exception {
+        }
+
+        public void stop() throws Exception {
+        }
+    }
+}
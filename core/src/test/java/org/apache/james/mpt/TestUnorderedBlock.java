@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mpt.api.Session;
+import org.apache.james.mpt.protocol.ProtocolSession;
+import org.apache.james.mpt.protocol.ProtocolSession.InvalidServerResponseException;
+
+public class TestUnorderedBlock extends TestCase {
+
+    public void testShouldMatchLargeBlockInAnyOrder() throws Exception {
+        final int lines = 50000;
+        StringBuilder script = new StringBuilder("C: a1 FETCH 1:* (FLAGS)\nSUB {\n");
+        List<String> responses = new ArrayList<String>(lines + 1);
+        for (int i = 1; i <= lines; i++) {
+            script.append("S: \\* ").append(i).append(" FETCH \\(FLAGS \\(\\\\Seen\\)\\)\n");
+            responses.add("* " + i + " FETCH (FLAGS (\\Seen))");
+        }
+        script.append("}\nS: a1 OK FETCH completed\\.\n");
+        Collections.shuffle(responses, new Random(42));
+        responses.add("a1 OK FETCH completed.");
+        QueuedSession queued = new QueuedSession(responses.toArray(new String[responses.size()]));
+        Scripts.session(script.toString()).runSessions(new Session[] { queued });
+    }
+
+    public void testShouldPreferLiteralLinesOverPatterns() throws Exception {
+        String script = "C: a1 NOOP\n"
+                + "SUB {\n"
+                + "S: \\* \\d+ EXISTS\n"
+                + "S: \\* 3 EXISTS\n"
+                + "}\n"
+                + "S: a1 OK\n";
+        QueuedSession queued = new QueuedSession("* 3 EXISTS", "* 4 EXISTS", "a1 OK");
+        Scripts.session(script).runSessions(new Session[] { queued });
+    }
+
+    public void testShouldMatchDuplicateLines() throws Exception {
+        String script = "C: a1 NOOP\n"
+                + "SUB {\n"
+                + "S: \\* OK\n"
+                + "S: \\* \\d+ RECENT\n"
+                + "S: \\* OK\n"
+                + "}\n"
+                + "S: a1 OK\n";
+        QueuedSession queued = new QueuedSession("* OK", "* 1 RECENT", "* OK", "a1 OK");
+        Scripts.session(script).runSessions(new Session[] { queued });
+    }
+
+    public void testShouldFailOnUnexpectedLine() throws Exception {
+        String script = "C: a1 NOOP\n"
+                + "SUB {\n"
+                + "S: \\* OK\n"
+                + "S: \\* \\d+ EXISTS\n"
+                + "}\n"
+                + "S: a1 OK\n";
+        QueuedSession queued = new QueuedSession("* OK", "* OK", "* 1 EXISTS", "a1 OK");
+        try {
+            Scripts.session(script).runSessions(new Session[] { queued });
+            fail("Expected unexpected line");
+        }
+        catch (InvalidServerResponseException e) {
+            assertTrue(e.getMessage().indexOf("* OK") >= 0);
+        }
+    }
+
+    public void testShouldMatchUnorderedBlocksWhenPipelined() throws Exception {
+        String script = "C: a1 NOOP\n"
+                + "SUB {\n"
+                + "S: \\* 1 EXISTS\n"
+                + "S: \\* \\d+ RECENT\n"
+                + "}\n"
+                + "S: a1 OK\n"
+                + "C: a2 NOOP\n"
+                + "S: a2 OK\n";
+        QueuedSession queued = new QueuedSession("* 0 RECENT", "* 1 EXISTS", "a1 OK", "a2 OK");
+        ProtocolSession session = Scripts.session(script);
+        session.setPipelineDepth(2);
+        session.runSessions(new Session[] { queued });
+    }
+}
@@ -0,0 +1,513 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.host;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.imap.api.process.ImapProcessor;
+import org.apache.james.imap.decode.ImapDecoder;
+import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
+import org.apache.james.imap.encode.ImapEncoder;
+import org.apache.james.mpt.session.ChunkPool;
+import org.apache.james.mpt.session.ChunkedBuffer;
+import org.apache.james.mpt.session.ChunkedPipe;
+import org.apache.james.mpt.session.ImapSessionImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Lightweight IMAP server exposing an {@link ImapDecoder},
+ * {@link ImapProcessor} and {@link ImapEncoder} on a local port, so that
+ * in-process backends may be driven by socket clients such as
+ * <code>ExternalSession</code> and the load tools.
+ * </p>
+ * <p>
+ * A single selector thread accepts connections and moves bytes. Requests are
+ * handled by a pool of worker threads: a connection holds a worker only
+ * while a whole request line has been received and not yet handled, so many
+ * idle connections may share a few workers. A worker blocks while it waits
+ * for the literals of its request.
+ * </p>
+ * <p>
+ * Responses waiting to be sent are bounded: workers block while a connection
+ * has more than {@link #OUTPUT_CAPACITY} bytes to send. Requests are not
+ * bounded, clients are expected to wait for responses.
+ * </p>
+ */
+public final class ImapServer {
+
+    /** Number of bytes waiting to be sent above which workers block */
+    public static final int OUTPUT_CAPACITY = 65536;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] GREETING = { '*', ' ', 'O', 'K', ' ', 'I', 'M', 'A', 'P', '4', 'r', 'e', 'v', '1',
+            ' ', 'S', 'e', 'r', 'v', 'e', 'r', ' ', 'r', 'e', 'a', 'd', 'y', '\r', '\n' };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImapServer.class);
+
+    private final ImapDecoder decoder;
+
+    private final ImapProcessor processor;
+
+    private final ImapEncoder encoder;
+
+    private final int workerCount;
+
+    /** Connections with bytes to send, whose interest must be updated */
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+    /** Bytes read from connections by the selector thread */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private ServerSocketChannel serverChannel;
+
+    private Selector selector;
+
+    private ExecutorService workers;
+
+    private Thread selectorThread;
+
+    private volatile boolean running = false;
+
+    /**
+     * Constructs a server for the configuration of the given host system.
+     * 
+     * @param hostSystem
+     *            configured host system, not null
+     * @param workerCount
+     *            number of threads handling requests, positive
+     */
+    public ImapServer(final JamesImapHostSystem hostSystem, final int workerCount) {
+        this(hostSystem.getImapDecoder(), hostSystem.getImapProcessor(), hostSystem.getImapEncoder(), workerCount);
+    }
+
+    public ImapServer(final ImapDecoder decoder, final ImapProcessor processor, final ImapEncoder encoder,
+            final int workerCount) {
+        this.decoder = decoder;
+        this.processor = processor;
+        this.encoder = encoder;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Starts listening on the given address.
+     * 
+     * @param address
+     *            local address, port 0 for any free port, not null
+     * @return the address bound, not null
+     */
+    public synchronized InetSocketAddress start(InetSocketAddress address) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "mpt-imap-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return getAddress();
+    }
+
+    /**
+     * Gets the address the server listens on.
+     * 
+     * @return the address, or null when the server is not started
+     */
+    public synchronized InetSocketAddress getAddress() {
+        if (serverChannel == null) {
+            return null;
+        }
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        selectorThread.join();
+        workers.shutdownNow();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+        serverChannel = null;
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection next;
+                while ((next = pendingWrites.poll()) != null) {
+                    next.updateInterest();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        else {
+                            final Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.send();
+                            }
+                        }
+                    }
+                    catch (CancelledKeyException e) {
+                        // closed by a worker
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            LOGGER.error("Selector failed, server stopped", e);
+        }
+        catch (ClosedSelectorException e) {
+            // stopped
+        }
+        finally {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            closeQuietly(serverChannel);
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug("Cannot close selector", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.output.write(GREETING, 0, GREETING.length);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        }
+        catch (IOException e) {
+            LOGGER.debug("Cannot close", e);
+        }
+    }
+
+    public String toString() {
+        final String TAB = " ";
+
+        String result = "ImapServer ( " + "address = " + getAddress() + TAB + "workerCount = " + this.workerCount
+                + TAB + "running = " + this.running + TAB + " )";
+
+        return result;
+    }
+
+    /**
+     * A client connection. Received bytes are piped to the worker handling
+     * requests, responses are buffered until the selector sends them.
+     * Guarded by itself, except for the fields used by the selector only.
+     */
+    private final class Connection implements Runnable {
+
+        private final SocketChannel channel;
+
+        private final ChunkedPipe requests = new ChunkedPipe(Integer.MAX_VALUE, ChunkPool.getShared());
+
+        private final ChunkedBuffer responses = new ChunkedBuffer();
+
+        private final OutputStream output = new ConnectionOutputStream();
+
+        private final ImapRequestStreamHandler handler;
+
+        private final ImapSessionImpl session;
+
+        /** Bytes being sent, used by the selector only */
+        private final ByteBuffer sending = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private SelectionKey key;
+
+        /** Has the client closed its output? Used by the selector only */
+        private boolean inputEnded = false;
+
+        /** Is a worker handling requests? */
+        private boolean handling = false;
+
+        /** Should the connection close once responses have been sent? */
+        private boolean closing = false;
+
+        private boolean closed = false;
+
+        public Connection(final SocketChannel channel) {
+            this.channel = channel;
+            handler = new ImapRequestStreamHandler(decoder, processor, encoder);
+            session = new ImapSessionImpl(LoggerFactory.getLogger("sessionLog"));
+            sending.flip();
+        }
+
+        /**
+         * Handles requests until no whole request line is left.
+         */
+        public void run() {
+            final InputStream input = requests.getInputStream();
+            try {
+                while (true) {
+                    if (!handler.handleRequest(input, output, session)) {
+                        closeWhenSent();
+                        return;
+                    }
+                    synchronized (this) {
+                        if (closed || !requests.hasLine()) {
+                            handling = false;
+                            if (!closed && requests.isClosed()) {
+                                // the client sent its last bytes, no request will complete
+                                closeWhenSent();
+                            }
+                            return;
+                        }
+                    }
+                }
+            }
+            catch (Exception e) {
+                LOGGER.debug("Request failed, closing connection", e);
+                close();
+            }
+        }
+
+        /**
+         * Reads available bytes, then dispatches a worker when a request line
+         * is complete. Called by the selector.
+         */
+        public void read() {
+            readBuffer.clear();
+            final int read;
+            try {
+                read = channel.read(readBuffer);
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                // nothing more to read, the selector must not report the end again
+                inputEnded = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                requests.close();
+                synchronized (this) {
+                    if (!handling) {
+                        closeWhenSent();
+                    }
+                }
+                return;
+            }
+            try {
+                requests.write(readBuffer.array(), 0, read);
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            synchronized (this) {
+                if (!handling && !closed && requests.hasLine()) {
+                    handling = true;
+                    workers.execute(this);
+                }
+            }
+        }
+
+        /**
+         * Sends buffered responses until the channel is full. Called by the
+         * selector.
+         */
+        public void send() {
+            try {
+                while (true) {
+                    if (!sending.hasRemaining()) {
+                        synchronized (this) {
+                            sending.clear();
+                            final int count = Math.max(0, responses.read(sending.array(), 0, sending.capacity()));
+                            sending.limit(count);
+                            notifyAll();
+                            if (count == 0) {
+                                key.interestOps(readInterest());
+                                if (closing) {
+                                    close();
+                                }
+                                return;
+                            }
+                        }
+                    }
+                    if (channel.write(sending) == 0) {
+                        return;
+                    }
+                }
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        private int readInterest() {
+            return inputEnded ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Registers interest in writing. Called by the selector.
+         */
+        public void updateInterest() {
+            try {
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+            }
+            catch (CancelledKeyException e) {
+                // closed by a worker
+            }
+        }
+
+        /**
+         * Buffers response bytes, waiting while too many are buffered.
+         * Called by workers.
+         */
+        private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (responses.size() >= OUTPUT_CAPACITY && !closed) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted sending responses");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            final boolean wasEmpty = responses.isEmpty();
+            responses.write(bytes, offset, length);
+            if (wasEmpty) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        private synchronized void closeWhenSent() {
+            closing = true;
+            handling = false;
+            if (responses.isEmpty()) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                responses.clear();
+                notifyAll();
+            }
+            requests.closeRead();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            session.deselect();
+        }
+
+        private final class ConnectionOutputStream extends OutputStream {
+
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                Connection.this.write(bytes, offset, length);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger ids = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "mpt-imap-worker-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
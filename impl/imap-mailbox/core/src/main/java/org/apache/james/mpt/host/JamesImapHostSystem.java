@@ -23,11 +23,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.james.imap.api.process.ImapProcessor;
 import org.apache.james.imap.decode.ImapDecoder;
@@ -35,13 +33,24 @@ import org.apache.james.imap.decode.main.ImapRequestStreamHandler;
 import org.apache.james.imap.encode.ImapEncoder;
 import org.apache.james.mailbox.MailboxSession.User;
 import org.apache.james.mailbox.model.MailboxPath;
+import org.apache.james.mpt.api.AsciiLine;
+import org.apache.james.mpt.api.AsyncSession;
+import org.apache.james.mpt.api.ByteSession;
 import org.apache.james.mpt.api.Continuation;
 import org.apache.james.mpt.api.ImapHostSystem;
+import org.apache.james.mpt.session.ChunkedBuffer;
+import org.apache.james.mpt.session.ChunkedPipe;
+import org.apache.james.mpt.session.ExecutorAsyncSession;
 import org.apache.james.mpt.session.ImapSessionImpl;
 import org.slf4j.LoggerFactory;
 
 public abstract class JamesImapHostSystem implements ImapHostSystem {
 
+    /** Default number of milliseconds allowed to receive each line of a streaming session */
+    public static final long DEFAULT_LINE_TIMEOUT = 30000;
+
+    private static final AtomicInteger WORKER_IDS = new AtomicInteger();
+
     private ImapDecoder decoder;
 
     private ImapEncoder encoder;
@@ -50,6 +59,8 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
 
     private final Set<User> users;
 
+    private boolean streamingSessions = false;
+
     public JamesImapHostSystem() {
         super();
         users = new HashSet<User>();
@@ -62,11 +73,55 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
         this.processor = processor;
     }
 
-    public Session newSession(Continuation continuation)
+    public org.apache.james.mpt.api.Session newSession(Continuation continuation)
             throws Exception {
+        if (streamingSessions) {
+            return newStreamingSession();
+        }
         return new Session(continuation);
     }
 
+    /**
+     * Opens an in-process session which behaves as a socket: requests are
+     * handled on a worker thread and responses are read while the server is
+     * still writing them. Continuation requests are read as lines rather than
+     * notified.
+     * 
+     * @return not null
+     */
+    public StreamingSession newStreamingSession() {
+        return new StreamingSession();
+    }
+
+    public boolean isStreamingSessions() {
+        return streamingSessions;
+    }
+
+    /**
+     * Sets whether {@link #newSession(Continuation)} opens
+     * {@link #newStreamingSession() streaming sessions}.
+     * 
+     * @param streamingSessions
+     *            true for streaming sessions, false to handle each request on
+     *            the thread reading its response
+     */
+    public void setStreamingSessions(boolean streamingSessions) {
+        this.streamingSessions = streamingSessions;
+    }
+
+    /**
+     * Opens an in-process session driven asynchronously. Requests are handled
+     * on the thread calling the session, which is never blocked waiting for
+     * input: many sessions may be interleaved by a single thread.
+     * 
+     * @param continuation
+     *            notified when the server requests a continuation, not null
+     * @return not null
+     */
+    public AsyncSession newAsyncSession(Continuation continuation) {
+        return new ExecutorAsyncSession(new Session(continuation));
+    }
+
     public void beforeTest() throws Exception {
     }
     
@@ -110,7 +165,11 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
         return name;
     }
 
-    class Session implements org.apache.james.mpt.api.Session {
+    /**
+     * In-process session. Lines are read as views over the response buffer,
+     * so that scripts match them without decoding.
+     */
+    class Session implements ByteSession {
         ByteBufferOutputStream out;
 
         ByteBufferInputStream in;
@@ -121,6 +180,8 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
 
         boolean isReadLast = true;
 
+        final AsciiLine lineView = new AsciiLine();
+
         public Session(Continuation continuation) {
             out = new ByteBufferOutputStream(continuation);
             in = new ByteBufferInputStream();
@@ -137,6 +198,14 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
             return result;
         }
 
+        public AsciiLine readLineView() throws Exception {
+            if (!isReadLast) {
+                handler.handleRequest(in, out, session);
+                isReadLast = true;
+            }
+            return out.nextLine(lineView);
+        }
+
         public void start() throws Exception {
             // Welcome message handled in the server
             out.write("* OK IMAP4rev1 Server ready\r\n");
@@ -144,6 +213,8 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
 
         public void stop() throws Exception {
             session.deselect();
+            in.release();
+            out.release();
         }
 
         public void writeLine(String line) throws Exception {
@@ -151,6 +222,11 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
             in.nextLine(line);
         }
 
+        public void writeLine(ByteBuffer line) throws Exception {
+            isReadLast = false;
+            in.nextLine(line);
+        }
+
         public void forceConnectionClose(String byeMessage) {
             try {
                 out.write(byeMessage);
@@ -161,41 +237,194 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
         }
     }
 
-    static class ByteBufferInputStream extends InputStream {
+    /**
+     * <p>
+     * In-process session handling requests on a worker thread. Requests and
+     * responses flow through bounded pipes, so responses are read as they are
+     * encoded and memory is bounded whatever the size of a response.
+     * </p>
+     * <p>
+     * {@link #getTimeToFirstByteNanos()} times the server from the last
+     * request line written to the first response byte.
+     * </p>
+     */
+    public class StreamingSession implements ByteSession {
 
-        ByteBuffer buffer = ByteBuffer.allocate(16384);
+        final ChunkedPipe requests = new ChunkedPipe();
 
-        CharsetEncoder encoder = Charset.forName("ASCII").newEncoder();
+        final ChunkedPipe responses = new ChunkedPipe();
 
-        boolean readLast = true;
+        final ImapRequestStreamHandler handler;
 
-        public int read() throws IOException {
-            if (!readLast) {
-                readLast = true;
-                buffer.flip();
+        final ImapSessionImpl session;
+
+        final AsciiLine lineView = new AsciiLine();
+
+        volatile long lineTimeout = DEFAULT_LINE_TIMEOUT;
+
+        volatile long requestNanos = -1;
+
+        Thread worker;
+
+        StreamingSession() {
+            handler = new ImapRequestStreamHandler(decoder, processor, encoder);
+            session = new ImapSessionImpl(LoggerFactory.getLogger("sessionLog"));
+        }
+
+        public long getLineTimeout() {
+            return lineTimeout;
+        }
+
+        /**
+         * Sets the number of milliseconds allowed to receive each line.
+         */
+        public void setLineTimeout(long lineTimeout) {
+            this.lineTimeout = lineTimeout;
+        }
+
+        /**
+         * Gets the time taken by the server to start responding to the last
+         * request line written.
+         * 
+         * @return nanoseconds from the request line to the first response
+         *         byte, or -1 when the server has not responded yet
+         */
+        public long getTimeToFirstByteNanos() {
+            final long firstByte = responses.getFirstWriteNanos();
+            if (firstByte < 0 || requestNanos < 0) {
+                return -1;
+            }
+            return firstByte - requestNanos;
+        }
+
+        public void start() throws Exception {
+            // Welcome message handled in the server
+            responses.writeLine("* OK IMAP4rev1 Server ready");
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (handler.handleRequest(requests.getInputStream(), responses.getOutputStream(),
+                                session)) {
+                            // until logout or end of requests
+                        }
+                        responses.close();
+                    } catch (Exception e) {
+                        responses.close(e);
+                    }
+                }
+            }, "mpt-imap-session-" + WORKER_IDS.incrementAndGet());
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        public String readLine() throws Exception {
+            return readLineView().toString();
+        }
+
+        public AsciiLine readLineView() throws Exception {
+            return responses.readLine(lineView, lineTimeout);
+        }
+
+        public void writeLine(String line) throws Exception {
+            startRequest();
+            requests.writeLine(line);
+        }
+
+        public void writeLine(ByteBuffer line) throws Exception {
+            startRequest();
+            final byte[] bytes = new byte[line.remaining()];
+            line.get(bytes);
+            final OutputStream out = requests.getOutputStream();
+            out.write(bytes);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private void startRequest() {
+            responses.resetFirstWrite();
+            requestNanos = System.nanoTime();
+        }
+
+        public void stop() throws Exception {
+            requests.close();
+            responses.closeRead();
+            awaitWorker();
+            session.deselect();
+            requests.closeRead();
+        }
+
+        public void forceConnectionClose(String byeMessage) {
+            try {
+                responses.getOutputStream().write(byeMessage.getBytes("US-ASCII"));
+                requests.close();
+                awaitWorker();
+                session.deselect();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-            int result = -1;
-            if (buffer.hasRemaining()) {
-                result = buffer.get();
+        }
+
+        /**
+         * Waits for the worker to finish, interrupting it when it does not in
+         * time.
+         */
+        private void awaitWorker() throws InterruptedException {
+            if (worker != null) {
+                worker.join(lineTimeout);
+                if (worker.isAlive()) {
+                    worker.interrupt();
+                    worker.join(lineTimeout);
+                }
             }
-            return result;
+        }
+    }
+
+    /**
+     * Requests written by the client. Storage grows with the requests and is
+     * drawn from the shared chunk pool.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        ChunkedBuffer buffer = new ChunkedBuffer();
+
+        public int read() throws IOException {
+            return buffer.read();
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return buffer.read(bytes, offset, length);
+        }
+
+        public int available() throws IOException {
+            return buffer.size();
         }
 
         public void nextLine(String line) {
-            if (buffer.position() > 0 && readLast) {
-                buffer.compact();
-            }
-            encoder.encode(CharBuffer.wrap(line), buffer, true);
-            buffer.put((byte) '\r');
-            buffer.put((byte) '\n');
-            readLast = false;
+            buffer.writeAscii(line);
+            buffer.write('\r');
+            buffer.write('\n');
+        }
+
+        public void nextLine(ByteBuffer line) {
+            buffer.write(line);
+            buffer.write('\r');
+            buffer.write('\n');
+        }
+
+        /**
+         * Gives the storage back to the pool.
+         */
+        public void release() {
+            buffer.clear();
         }
     }
 
+    /**
+     * Responses written by the server. Storage grows with the responses and
+     * is drawn from the shared chunk pool.
+     */
     static class ByteBufferOutputStream extends OutputStream {
-        ByteBuffer buffer = ByteBuffer.allocate(65536);
-
-        Charset ascii = Charset.forName("ASCII");
+        ChunkedBuffer buffer = new ChunkedBuffer();
 
         Continuation continuation;
 
@@ -210,16 +439,55 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
         }
 
         public void write(String message) throws IOException {
-            ascii.newEncoder().encode(CharBuffer.wrap(message), buffer, true);
+            buffer.writeAscii(message);
         }
 
         public void write(int b) throws IOException {
-            buffer.put((byte) b);
+            buffer.write(b);
+            if (matchContinuation(b)) {
+                continuation.doContinue();
+            }
+        }
+
+        /**
+         * Copies the bytes in bulk. Only a line feed can start a
+         * continuation request, so bytes are skipped up to the next line
+         * feed unless a request may be in progress.
+         */
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            final int end = offset + length;
+            int start = offset;
+            int index = offset;
+            while (index < end) {
+                if (!matchLF) {
+                    while (index < end && bytes[index] != '\n') {
+                        index++;
+                    }
+                    if (index == end) {
+                        break;
+                    }
+                }
+                if (matchContinuation(bytes[index++])) {
+                    buffer.write(bytes, start, index - start);
+                    start = index;
+                    continuation.doContinue();
+                }
+            }
+            buffer.write(bytes, start, end - start);
+        }
+
+        /**
+         * Runs the byte through the state machine looking for a
+         * continuation request.
+         * 
+         * @return true when the byte completes a continuation request
+         */
+        private boolean matchContinuation(int b) {
             if (b == '\n' && matchPlus && matchCR && matchLF) {
                 matchPlus = false;
                 matchCR = false;
                 matchLF = false;
-                continuation.doContinue();
+                return true;
             } else if (b == '\n') {
                 matchLF = true;
                 matchPlus = false;
@@ -234,28 +502,26 @@ public abstract class JamesImapHostSystem implements ImapHostSystem {
                 matchCR = false;
                 matchLF = false;
             }
+            return false;
         }
 
         public String nextLine() throws Exception {
-            buffer.flip();
-            byte last = 0;
-            while (buffer.hasRemaining()) {
-                byte next = buffer.get();
-                if (last == '\r' && next == '\n') {
-                    break;
-                }
-                last = next;
-            }
-            final ByteBuffer readOnlyBuffer = buffer.asReadOnlyBuffer();
-            readOnlyBuffer.flip();
-            int limit = readOnlyBuffer.limit() - 2;
-            if (limit < 0) {
-                limit = 0;
-            }
-            readOnlyBuffer.limit(limit);
-            String result = ascii.decode(readOnlyBuffer).toString();
-            buffer.compact();
-            return result;
+            return buffer.readLine();
+        }
+
+        /**
+         * Points the view at the next line, without copying it when possible.
+         * The view is valid until the next line is read.
+         */
+        public AsciiLine nextLine(AsciiLine view) throws Exception {
+            return buffer.readLine(view);
+        }
+
+        /**
+         * Gives the storage back to the pool.
+         */
+        public void release() {
+            buffer.clear();
         }
     }
 
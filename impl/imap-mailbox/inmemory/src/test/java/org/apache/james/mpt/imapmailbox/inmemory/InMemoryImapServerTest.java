@@ -0,0 +1,101 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mpt.imapmailbox.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.james.mpt.host.ImapServer;
+import org.apache.james.mpt.host.JamesImapHostSystem;
+import org.apache.james.mpt.imapmailbox.inmemory.host.InMemoryHostSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryImapServerTest {
+
+    private ImapServer server;
+
+    private Socket socket;
+
+    private BufferedReader in;
+
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws Exception {
+        JamesImapHostSystem hostSystem = InMemoryHostSystem.build();
+        server = new ImapServer(hostSystem, 2);
+        InetSocketAddress address = server.start(new InetSocketAddress("127.0.0.1", 0));
+        socket = new Socket(address.getAddress(), address.getPort());
+        socket.setSoTimeout(5000);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        out = socket.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        server.stop();
+    }
+
+    private void writeLine(String line) throws Exception {
+        out.write((line + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    @Test
+    public void shouldGreetClients() throws Exception {
+        assertEquals("* OK IMAP4rev1 Server ready", in.readLine());
+    }
+
+    @Test
+    public void shouldRespondToNoop() throws Exception {
+        in.readLine();
+        writeLine("a001 NOOP");
+        assertTrue(in.readLine().startsWith("a001 OK"));
+    }
+
+    @Test
+    public void shouldCloseConnectionOnLogout() throws Exception {
+        in.readLine();
+        writeLine("a001 LOGOUT");
+        assertTrue(in.readLine().startsWith("* BYE"));
+        assertTrue(in.readLine().startsWith("a001 OK"));
+        assertNull(in.readLine());
+    }
+
+    @Test
+    public void shouldCloseConnectionWhenClientCloses() throws Exception {
+        in.readLine();
+        writeLine("a001 NOOP");
+        out.write("a002 NO".getBytes("US-ASCII"));
+        socket.shutdownOutput();
+        assertTrue(in.readLine().startsWith("a001 OK"));
+        assertNull(in.readLine());
+    }
+}
@@ -191,4 +191,35 @@ public class MailProtocolTest implements Monitor{
 		//getLog().debug(message);
 		System.out.println(message);
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.james.mpt.api.Monitor#isNoteEnabled()
+	 */
+	public boolean isNoteEnabled() {
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.james.mpt.api.Monitor#isDebugEnabled()
+	 */
+	public boolean isDebugEnabled() {
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.james.mpt.api.Monitor#isEventEnabled()
+	 */
+	public boolean isEventEnabled() {
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.apache.james.mpt.api.Monitor#lineTransferred(int, org.apache.james.mpt.api.Monitor.Direction, java.lang.CharSequence, int, long)
+	 */
+	public void lineTransferred(int sessionId, Direction direction, CharSequence line, int octets, long timestamp) {
+	}
 }